@@ -0,0 +1,51 @@
+package org.mrtrustworthy.kafka.connect.googleanalytics;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Hashing of page paths into the urlHash
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UtilsBenchmark {
+
+    @Param({ "20", "200" })
+    public int pathLength;
+
+    private String path;
+
+    @Setup
+    public void setUp() {
+        StringBuilder path = new StringBuilder("/");
+        while (path.length() < this.pathLength) {
+            path.append("section-").append(path.length()).append('/');
+        }
+        this.path = path.substring(0, this.pathLength);
+    }
+
+    @Benchmark
+    public String md5() {
+        return Utils.md5(this.path);
+    }
+
+    @Benchmark
+    public String fnv1a64() {
+        return Utils.fnv1a64(this.path);
+    }
+}
@@ -0,0 +1,69 @@
+package org.mrtrustworthy.kafka.connect.googleanalytics.source;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.google.api.services.analyticsreporting.v4.model.ColumnHeader;
+import com.google.api.services.analyticsreporting.v4.model.DateRangeValues;
+import com.google.api.services.analyticsreporting.v4.model.MetricHeader;
+import com.google.api.services.analyticsreporting.v4.model.MetricHeaderEntry;
+import com.google.api.services.analyticsreporting.v4.model.Report;
+import com.google.api.services.analyticsreporting.v4.model.ReportData;
+import com.google.api.services.analyticsreporting.v4.model.ReportRow;
+
+/**
+ * Synthetic reports for the benchmarks, shaped like the ones the Reporting API
+ * returns: pagePath and dateHourMinute first, then generic dimensions, then
+ * alternating INTEGER and FLOAT metrics.
+ */
+public class ReportFixtures {
+    // page paths repeat like they do on real views
+    private static final int DISTINCT_PATHS = 500;
+
+    /**
+     * @param rows
+     *            number of rows in the report
+     * @param dimensions
+     *            number of dimensions, at least 2
+     * @param metrics
+     *            number of metrics, at least 1
+     * @return a report with a full column header and data
+     */
+    public static Report createReport(int rows, int dimensions, int metrics) {
+        List<String> dimensionNames = new ArrayList<>(dimensions);
+        dimensionNames.add("ga:pagePath");
+        dimensionNames.add("ga:dateHourMinute");
+        for (int d = 2; d < dimensions; d++) {
+            dimensionNames.add("ga:dimension" + d);
+        }
+
+        List<MetricHeaderEntry> metricEntries = new ArrayList<>(metrics);
+        for (int m = 0; m < metrics; m++) {
+            metricEntries.add(new MetricHeaderEntry().setName("metric" + m).setType(m % 2 == 0 ? "INTEGER" : "FLOAT"));
+        }
+
+        List<ReportRow> reportRows = new ArrayList<>(rows);
+        for (int r = 0; r < rows; r++) {
+            List<String> dimensionValues = new ArrayList<>(dimensions);
+            dimensionValues.add("/section/" + (r % 17) + "/page/" + (r % DISTINCT_PATHS));
+            dimensionValues.add(String.format("20180315%02d%02d", (r / 60) % 24, r % 60));
+            for (int d = 2; d < dimensions; d++) {
+                dimensionValues.add("value" + (r % (d * 10)));
+            }
+
+            List<String> metricValues = new ArrayList<>(metrics);
+            for (int m = 0; m < metrics; m++) {
+                metricValues.add(m % 2 == 0 ? Integer.toString(r % 1000) : Double.toString((r % 1000) / 7.0));
+            }
+
+            reportRows.add(new ReportRow().setDimensions(dimensionValues)
+                    .setMetrics(Collections.singletonList(new DateRangeValues().setValues(metricValues))));
+        }
+
+        ColumnHeader header = new ColumnHeader().setDimensions(dimensionNames)
+                .setMetricHeader(new MetricHeader().setMetricHeaderEntries(metricEntries));
+        return new Report().setColumnHeader(header)
+                .setData(new ReportData().setRows(reportRows).setRowCount(rows));
+    }
+}
@@ -0,0 +1,53 @@
+package org.mrtrustworthy.kafka.connect.googleanalytics.source;
+
+import java.util.concurrent.TimeUnit;
+
+import com.google.api.services.analyticsreporting.v4.model.Report;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Turning one report page into structs, including schema lookup and url
+ * hashing
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReportParserBenchmark {
+
+    @Param({ "1000", "10000" })
+    public int rows;
+
+    @Param({ "2", "5" })
+    public int dimensions;
+
+    @Param({ "2", "10" })
+    public int metrics;
+
+    private Report report;
+    private ReportParser parser;
+
+    @Setup
+    public void setUp() {
+        this.report = ReportFixtures.createReport(this.rows, this.dimensions, this.metrics);
+        this.parser = new ReportParser();
+    }
+
+    @Benchmark
+    public RecordBatch parseReport() {
+        return this.parser.parseReport(this.report, "benchmark");
+    }
+}
@@ -0,0 +1,73 @@
+package org.mrtrustworthy.kafka.connect.googleanalytics.source;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.services.analyticsreporting.v4.model.GetReportsResponse;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Turning the body of a batchGet response into structs, once through the
+ * Report object model and once while the body streams in
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseDecodeBenchmark {
+    private static final JsonFactory JSON_FACTORY = GsonFactory.getDefaultInstance();
+
+    @Param({ "1000", "10000" })
+    public int rows;
+
+    @Param({ "2", "5" })
+    public int dimensions;
+
+    @Param({ "2", "10" })
+    public int metrics;
+
+    private byte[] body;
+    private ReportParser parser;
+    private StreamingReportDecoder decoder;
+
+    @Setup
+    public void setUp() throws IOException {
+        this.body = JSON_FACTORY.toByteArray(new GetReportsResponse().setReports(
+                Collections.singletonList(ReportFixtures.createReport(this.rows, this.dimensions, this.metrics))));
+        this.parser = new ReportParser();
+        this.decoder = new StreamingReportDecoder(this.parser, "benchmark");
+    }
+
+    @Benchmark
+    public RecordBatch decodeReport() throws IOException {
+        GetReportsResponse response = JSON_FACTORY.fromInputStream(new ByteArrayInputStream(this.body),
+                StandardCharsets.UTF_8, GetReportsResponse.class);
+        return this.parser.parseReport(response.getReports().get(0), "benchmark");
+    }
+
+    @Benchmark
+    public RecordBatch decodeStreaming() throws IOException {
+        List<StreamingReportDecoder.DecodedReport> reports = this.decoder
+                .decode(new ByteArrayInputStream(this.body), StandardCharsets.UTF_8);
+        return reports.get(0).getStructs();
+    }
+}
@@ -0,0 +1,78 @@
+package org.mrtrustworthy.kafka.connect.googleanalytics.source;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.kafka.connect.source.SourceRecord;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.api.services.analyticsreporting.v4.model.DateRange;
+import com.google.api.services.analyticsreporting.v4.model.Report;
+
+/**
+ * Wrapping parsed structs into SourceRecords, the source partition is shared by
+ * all records of a page, the offset points at the row of the record
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SourceRecordBenchmark {
+    private static final int ROWS = 1000;
+
+    private GASourceTask task;
+    private FetchedPage page;
+    private RecordBatch structs;
+
+    @Setup
+    public void setUp() {
+        Map<String, String> props = new HashMap<>();
+        props.put(GAConnectorConfig.VIEW_CONFIG, "1");
+        props.put(GAConnectorConfig.TOPIC_CONFIG, "benchmark");
+        props.put(GAConnectorConfig.DIMENSIONS, "pagePath,dateHourMinute");
+        props.put(GAConnectorConfig.MEASURES, "sessions,hits");
+        props.put(GAConnectorConfig.POLLING_FREQUENCY, "1000");
+        props.put(GAConnectorConfig.PROCESS_FROM, "today");
+
+        ReportParser parser = new ReportParser();
+        Report report = ReportFixtures.createReport(ROWS, 2, 2);
+        this.structs = parser.parseReport(report, "benchmark");
+
+        GAConnectorConfig config = GAConnectorConfig.fromConfigMap(props, GAConnectorConfig.ConfigType.TASK_CONFIG);
+        this.task = new GASourceTask();
+        this.task.setConfig(config);
+        this.task.setReportParser(parser);
+        ViewState view = new ViewState(config.getReports().get(0), "1", null,
+                new DateRange().setStartDate("1DaysAgo").setEndDate("yesterday"));
+        this.page = new FetchedPage(view, view.getSourceOffset(), 0, report);
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.task.stop();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public SourceRecord[] buildSourceRecords() {
+        SourceRecord[] records = new SourceRecord[this.structs.size()];
+        for (int i = 0; i < this.structs.size(); i++) {
+            records[i] = this.task.buildSourceRecord(this.page, this.structs, i);
+        }
+        return records;
+    }
+}
@@ -1,27 +1,93 @@
 package org.mrtrustworthy.kafka.connect.googleanalytics;
 
-import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.time.LocalDate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class Utils {
+    private static final Pattern DAYS_AGO = Pattern.compile("(\\d+)daysAgo", Pattern.CASE_INSENSITIVE);
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    // MessageDigest is not thread safe, but expensive enough to look up that we keep one per thread
+    private static final ThreadLocal<MessageDigest> MD5 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Every JVM has to support MD5", e);
+        }
+    });
+
     public static final String md5(String value) {
         if (value == null) {
             return null;
         }
 
-        try {
-            MessageDigest md = MessageDigest.getInstance("MD5");
-            byte[] bytes = value.getBytes("UTF-8");
-            byte[] array = md.digest(bytes);
-
-            StringBuffer sb = new StringBuffer();
-            for (int i = 0; i < array.length; ++i) {
-                sb.append(Integer.toHexString((array[i] & 0xFF) | 0x100).substring(1, 3));
-            }
-            return sb.toString();
-        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+        return toHex(MD5.get().digest(value.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * A much cheaper, non-cryptographic alternative to {@link #md5(String)}. The
+     * FNV-1a hash runs over the UTF-16 chars of the value, so there is no
+     * encoding step either.
+     *
+     * @param value
+     *            the value to hash
+     * @return 16 lower case hex characters
+     */
+    public static final String fnv1a64(String value) {
+        if (value == null) {
             return null;
         }
+
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+
+        char[] hex = new char[16];
+        for (int i = 15; i >= 0; i--) {
+            hex[i] = HEX[(int) (hash & 0x0F)];
+            hash >>>= 4;
+        }
+        return new String(hex);
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[2 * i] = HEX[(bytes[i] >> 4) & 0x0F];
+            hex[2 * i + 1] = HEX[bytes[i] & 0x0F];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * Resolves a date the way Google Analytics understands it into an absolute
+     * date
+     *
+     * @param value
+     *            one of today, yesterday, NdaysAgo or a YYYY-MM-DD date
+     * @param today
+     *            the date the relative values are resolved against
+     * @return the absolute date
+     */
+    public static LocalDate resolveDate(String value, LocalDate today) {
+        String date = value.trim();
+        Matcher daysAgo = DAYS_AGO.matcher(date);
+        if (daysAgo.matches()) {
+            return today.minusDays(Long.parseLong(daysAgo.group(1)));
+        }
+        switch (date) {
+        case "today":
+            return today;
+        case "yesterday":
+            return today.minusDays(1);
+        default:
+            return LocalDate.parse(date);
+        }
     }
 }
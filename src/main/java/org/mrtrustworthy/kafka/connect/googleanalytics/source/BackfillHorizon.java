@@ -0,0 +1,121 @@
+package org.mrtrustworthy.kafka.connect.googleanalytics.source;
+
+import java.time.LocalDate;
+import java.util.Map;
+
+import org.mrtrustworthy.kafka.connect.googleanalytics.Utils;
+
+import com.google.api.services.analyticsreporting.v4.model.DateRange;
+
+/**
+ * The days the backfill of a view covers and how they are split into shards.
+ * process.from and yesterday are resolved once, on the first start, and the
+ * absolute dates are kept in the offsets of every shard. Later starts take
+ * the horizon from there, so the shards and their partitions stay the same no
+ * matter on which day the task restarts; the view itself pulls the days after
+ * the horizon.
+ */
+public class BackfillHorizon {
+    public static final String FROM_OFFSET_KEY = "backfillFrom";
+    public static final String TO_OFFSET_KEY = "backfillTo";
+    public static final String SHARD_DAYS_OFFSET_KEY = "shardDays";
+
+    private final LocalDate from;
+    private final LocalDate to;
+    private final int shardDays;
+
+    /**
+     * @param from
+     *            the first day of the backfill
+     * @param to
+     *            the last day of the backfill, before from if there is nothing
+     *            to backfill
+     * @param shardDays
+     *            how many days a shard spans
+     */
+    public BackfillHorizon(LocalDate from, LocalDate to, int shardDays) {
+        this.from = from;
+        this.to = to;
+        this.shardDays = Math.max(1, shardDays);
+    }
+
+    /**
+     * @param processFrom
+     *            the configured start, relative dates are resolved against today
+     * @param shardDays
+     *            how many days a shard spans
+     * @param today
+     *            the date of the first start
+     * @return the horizon from processFrom up to yesterday
+     */
+    public static BackfillHorizon resolve(String processFrom, int shardDays, LocalDate today) {
+        return new BackfillHorizon(Utils.resolveDate(processFrom, today), today.minusDays(1), shardDays);
+    }
+
+    /**
+     * @param offset
+     *            the offset of a shard, may be null
+     * @return the horizon kept in the offset, null if it has none
+     */
+    public static BackfillHorizon fromOffset(Map<String, Object> offset) {
+        if (offset == null || offset.get(FROM_OFFSET_KEY) == null || offset.get(TO_OFFSET_KEY) == null
+                || offset.get(SHARD_DAYS_OFFSET_KEY) == null) {
+            return null;
+        }
+        return new BackfillHorizon(LocalDate.parse((String) offset.get(FROM_OFFSET_KEY)),
+                LocalDate.parse((String) offset.get(TO_OFFSET_KEY)),
+                ((Number) offset.get(SHARD_DAYS_OFFSET_KEY)).intValue());
+    }
+
+    /**
+     * @param offset
+     *            the offset of a shard to keep the horizon in
+     */
+    public void addTo(Map<String, Object> offset) {
+        offset.put(FROM_OFFSET_KEY, this.from.toString());
+        offset.put(TO_OFFSET_KEY, this.to.toString());
+        offset.put(SHARD_DAYS_OFFSET_KEY, this.shardDays);
+    }
+
+    /**
+     * @return how many shards the horizon is split into, 0 if it is empty
+     */
+    public int getShardCount() {
+        if (this.from.isAfter(this.to)) {
+            return 0;
+        }
+        long days = this.to.toEpochDay() - this.from.toEpochDay() + 1;
+        return (int) ((days + this.shardDays - 1) / this.shardDays);
+    }
+
+    /**
+     * @param index
+     *            the position of the shard, oldest first
+     * @return the dates of the shard, the last one may be shorter
+     */
+    public DateRange getShard(int index) {
+        LocalDate start = this.from.plusDays((long) index * this.shardDays);
+        LocalDate end = start.plusDays(this.shardDays - 1);
+        if (end.isAfter(this.to)) {
+            end = this.to;
+        }
+        return new DateRange().setStartDate(start.toString()).setEndDate(end.toString());
+    }
+
+    public LocalDate getFrom() {
+        return from;
+    }
+
+    public LocalDate getTo() {
+        return to;
+    }
+
+    public int getShardDays() {
+        return shardDays;
+    }
+
+    @Override
+    public String toString() {
+        return this.from + ".." + this.to + " in shards of " + this.shardDays + " days";
+    }
+}
@@ -0,0 +1,223 @@
+package org.mrtrustworthy.kafka.connect.googleanalytics.source;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.kafka.connect.data.ConnectSchema;
+import org.apache.kafka.connect.data.Field;
+import org.apache.kafka.connect.data.Schema;
+import org.apache.kafka.connect.data.Struct;
+
+/**
+ * Remembers a fingerprint of the metrics of every row emitted, so that rows
+ * fetched again unchanged are not emitted again. GA revises the latest days
+ * until their data is golden, the daily pull pulls them again for
+ * refetch.days and intraday runs repeat their last minutes; only the rows
+ * that are new or whose metrics changed since make it into records.
+ * <p>
+ * A row is identified by its view, its report, its key (dateHourMinute and
+ * urlHash) and the other non-numeric fields of its value, which tell rows of
+ * reports without a pagePath apart. The fingerprint covers the numeric
+ * fields. Both are 64 bit hashes kept in open addressing tables of longs, no
+ * objects per row: two tables with twice as many slots as rows, 16 bytes per
+ * slot. Once the current table is full it becomes the previous one and a new
+ * one is started. Rows only found in the previous table move over to the new
+ * one when they are seen again, rows that were not seen for two generations
+ * are forgotten and count as new. The tables live on the heap only: after a
+ * restart every row is emitted once more. Pages left without any row commit
+ * their offsets through a heartbeat.
+ * <p>
+ * Different rows with the same hashes are not told apart, at 64 bits that is
+ * unlikely enough to ignore. Only poll() uses the detector, it is not thread
+ * safe.
+ */
+public class ChangeDetector {
+    // marks free slots, hashes that happen to be 0 are stored as 1
+    private static final long FREE = 0;
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final int maxEntries;
+    private final int mask;
+    private long[] keys;
+    private long[] fingerprints;
+    private int size;
+    private long[] previousKeys;
+    private long[] previousFingerprints;
+
+    // the fields of a value schema that identify a row and the ones that make up its fingerprint
+    private final Map<ConnectSchema, Field[][]> fieldsBySchema = new HashMap<>();
+
+    /**
+     * @param maxEntries
+     *            how many rows a generation remembers
+     */
+    public ChangeDetector(int maxEntries) {
+        this.maxEntries = Math.max(1, maxEntries);
+        // at most half of the slots are taken, which keeps the probe sequences short
+        int slots = Integer.highestOneBit(Math.max(2, this.maxEntries) * 2 - 1) << 1;
+        this.mask = slots - 1;
+        this.keys = new long[slots];
+        this.fingerprints = new long[slots];
+        this.previousKeys = new long[slots];
+        this.previousFingerprints = new long[slots];
+    }
+
+    /**
+     * Finds the rows of a page that are new or changed and remembers their
+     * fingerprints
+     *
+     * @param state
+     *            the state the rows were fetched for
+     * @param structs
+     *            the rows
+     * @param from
+     *            the first row to look at
+     * @return the positions of the rows to emit, in order
+     */
+    public int[] filter(ViewState state, RecordBatch structs, int from) {
+        Field[][] fields = this.fieldsBySchema.computeIfAbsent(structs.getValueSchema(), ChangeDetector::split);
+        long stateHash = hash(hash(FNV_OFFSET, state.getViewId()),
+                state.getReport() == null ? null : state.getReport().getName());
+
+        int[] rows = new int[structs.size() - from];
+        int count = 0;
+        for (int r = from; r < structs.size(); r++) {
+            Struct key = structs.getKey(r);
+            Struct value = structs.getValue(r);
+            long rowHash = stateHash;
+            for (Field field : key.schema().fields()) {
+                rowHash = hash(rowHash, key.get(field));
+            }
+            for (Field field : fields[0]) {
+                rowHash = hash(rowHash, value.get(field));
+            }
+            long fingerprint = FNV_OFFSET;
+            for (Field field : fields[1]) {
+                fingerprint = hash(fingerprint, value.get(field));
+            }
+            if (this.changed(mix(rowHash), mix(fingerprint))) {
+                rows[count++] = r;
+            }
+        }
+        return count == rows.length ? rows : Arrays.copyOf(rows, count);
+    }
+
+    /**
+     * @param key
+     *            the hash that identifies the row
+     * @param fingerprint
+     *            the hash of its metrics
+     * @return whether the row is new or its fingerprint differs from the one
+     *         remembered, the fingerprint is remembered either way
+     */
+    boolean changed(long key, long fingerprint) {
+        key = key == FREE ? 1 : key;
+        int slot = this.find(this.keys, key);
+        if (this.keys[slot] == key) {
+            boolean changed = this.fingerprints[slot] != fingerprint;
+            this.fingerprints[slot] = fingerprint;
+            return changed;
+        }
+
+        int previous = this.find(this.previousKeys, key);
+        boolean changed = this.previousKeys[previous] != key || this.previousFingerprints[previous] != fingerprint;
+        if (this.size == this.maxEntries) {
+            this.rotate();
+            slot = this.find(this.keys, key);
+        }
+        this.keys[slot] = key;
+        this.fingerprints[slot] = fingerprint;
+        this.size++;
+        return changed;
+    }
+
+    /**
+     * @return the rows remembered by the current generation
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the slot of the key, or the free slot it would go to
+     */
+    private int find(long[] keys, long key) {
+        int slot = (int) key & this.mask;
+        while (keys[slot] != FREE && keys[slot] != key) {
+            slot = (slot + 1) & this.mask;
+        }
+        return slot;
+    }
+
+    /**
+     * The current generation becomes the previous one, the arrays of the one
+     * before are reused for the next
+     */
+    private void rotate() {
+        long[] keys = this.previousKeys;
+        long[] fingerprints = this.previousFingerprints;
+        this.previousKeys = this.keys;
+        this.previousFingerprints = this.fingerprints;
+        Arrays.fill(keys, FREE);
+        this.keys = keys;
+        this.fingerprints = fingerprints;
+        this.size = 0;
+    }
+
+    /**
+     * Numeric fields are metrics, every other field identifies the row
+     */
+    private static Field[][] split(ConnectSchema valueSchema) {
+        List<Field> identity = new ArrayList<>();
+        List<Field> metrics = new ArrayList<>();
+        for (Field field : valueSchema.fields()) {
+            Schema.Type type = field.schema().type();
+            boolean numeric = type.isPrimitive() && type != Schema.Type.STRING && type != Schema.Type.BOOLEAN
+                    && type != Schema.Type.BYTES;
+            (numeric ? metrics : identity).add(field);
+        }
+        return new Field[][] { identity.toArray(new Field[0]), metrics.toArray(new Field[0]) };
+    }
+
+    /**
+     * Adds a value to a FNV-1a hash, numbers by their bits and strings by
+     * their chars. Nulls get a marker of their own and strings their length,
+     * which keeps ("ab", "c") and ("a", "bc") apart.
+     */
+    private static long hash(long hash, Object value) {
+        hash = (hash ^ (value == null ? 0 : 1)) * FNV_PRIME;
+        if (value == null) {
+            return hash;
+        }
+        if (value instanceof String) {
+            String string = (String) value;
+            for (int i = 0; i < string.length(); i++) {
+                hash = (hash ^ string.charAt(i)) * FNV_PRIME;
+            }
+            return (hash ^ string.length()) * FNV_PRIME;
+        }
+        long bits = value instanceof Double || value instanceof Float
+                ? Double.doubleToLongBits(((Number) value).doubleValue())
+                : value instanceof Number ? ((Number) value).longValue() : value.hashCode();
+        for (int i = 0; i < 8; i++) {
+            hash = (hash ^ (bits & 0xFF)) * FNV_PRIME;
+            bits >>>= 8;
+        }
+        return hash;
+    }
+
+    /**
+     * Spreads the bits of a FNV hash, its low bits pick the slot
+     */
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        return hash ^ (hash >>> 33);
+    }
+}
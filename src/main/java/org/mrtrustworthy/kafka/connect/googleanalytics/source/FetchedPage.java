@@ -0,0 +1,188 @@
+package org.mrtrustworthy.kafka.connect.googleanalytics.source;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.google.api.services.analyticsreporting.v4.model.Report;
+
+/**
+ * A page fetched in the background, waiting to be turned into records by
+ * poll(). The state keeps moving on while the page waits, so the source
+ * partition and offsets are taken when the page was fetched.
+ * <p>
+ * Every record points at its own row: all but the last record of a page carry
+ * the offset of the page with their row and the rows of the page added, a
+ * restart fetches the page again with that many rows and skips the rows up to
+ * that one. The last record carries the offset after
+ * the page, so a restart after a completely emitted page continues with the
+ * next page without fetching this one again.
+ * <p>
+ * With the page journal enabled the report stays on disk until poll() reads it
+ * back, the page only holds its sequence number in the journal. Pages decoded
+ * while they streamed in hold their structs instead of a report.
+ */
+public class FetchedPage {
+    private final ViewState state;
+    private final Map<String, String> sourcePartition;
+    private final Map<String, Object> pageOffset;
+    private final Map<String, Object> nextOffset;
+    private final int skipRows;
+    // the rows GA returned for the page, before any of them were merged
+    private final int pageRows;
+    private final Report report;
+    private final RecordBatch structs;
+    private final long journalSeq;
+
+    /**
+     * @param state
+     *            the state the page was fetched for, already advanced past it
+     * @param pageOffset
+     *            the offset of the state before it was advanced past the page
+     * @param skipRows
+     *            the rows of the page that were emitted before a restart
+     * @param report
+     *            the page
+     */
+    public FetchedPage(ViewState state, Map<String, Object> pageOffset, int skipRows, Report report) {
+        this(state, pageOffset, state.getSourceOffset(), skipRows, rows(report), report, null, -1);
+    }
+
+    /**
+     * A page that was decoded while it streamed in
+     *
+     * @param state
+     *            the state the page was fetched for, already advanced past it
+     * @param pageOffset
+     *            the offset of the state before it was advanced past the page
+     * @param skipRows
+     *            the rows of the page that were emitted before a restart
+     * @param pageRows
+     *            the rows of the response the structs were decoded from
+     * @param structs
+     *            the structs of the page
+     */
+    public FetchedPage(ViewState state, Map<String, Object> pageOffset, int skipRows, int pageRows,
+            RecordBatch structs) {
+        this(state, pageOffset, state.getSourceOffset(), skipRows, pageRows, null, structs, -1);
+    }
+
+    /**
+     * A page kept in the journal
+     *
+     * @param state
+     *            the state the page was fetched for
+     * @param pageOffset
+     *            the offset of the state before the page
+     * @param nextOffset
+     *            the offset of the state after the page
+     * @param skipRows
+     *            the rows of the page that were emitted before a restart
+     * @param pageRows
+     *            the rows of the page
+     * @param journalSeq
+     *            the sequence number of the page in the journal
+     */
+    public FetchedPage(ViewState state, Map<String, Object> pageOffset, Map<String, Object> nextOffset,
+            int skipRows, int pageRows, long journalSeq) {
+        this(state, pageOffset, nextOffset, skipRows, pageRows, null, null, journalSeq);
+    }
+
+    private FetchedPage(ViewState state, Map<String, Object> pageOffset, Map<String, Object> nextOffset,
+            int skipRows, int pageRows, Report report, RecordBatch structs, long journalSeq) {
+        this.state = state;
+        this.sourcePartition = state.getSourcePartition();
+        this.pageOffset = pageOffset;
+        this.nextOffset = nextOffset;
+        this.skipRows = skipRows;
+        this.pageRows = pageRows;
+        this.report = report;
+        this.structs = structs;
+        this.journalSeq = journalSeq;
+    }
+
+    public ViewState getState() {
+        return state;
+    }
+
+    public Map<String, String> getSourcePartition() {
+        return sourcePartition;
+    }
+
+    /**
+     * @param row
+     *            the position of the record within the page
+     * @param rowCount
+     *            the number of records of the page
+     * @return the offset to attach to the record
+     */
+    public Map<String, Object> getSourceOffset(int row, int rowCount) {
+        if (row == rowCount - 1) {
+            return this.nextOffset;
+        }
+        Map<String, Object> offset = new HashMap<>(this.pageOffset);
+        offset.put(ViewState.ROW_OFFSET_KEY, row);
+        offset.put(ViewState.PAGE_SIZE_OFFSET_KEY, this.pageRows);
+        return offset;
+    }
+
+    /**
+     * @return the offset of the state before the page
+     */
+    public Map<String, Object> getPageOffset() {
+        return pageOffset;
+    }
+
+    /**
+     * @return the offset of the state after the page
+     */
+    public Map<String, Object> getNextOffset() {
+        return nextOffset;
+    }
+
+    /**
+     * @return whether the run of the state ended with this page
+     */
+    public boolean isLastOfRun() {
+        return !this.nextOffset.containsKey(ViewState.PAGE_TOKEN_OFFSET_KEY);
+    }
+
+    public int getSkipRows() {
+        return skipRows;
+    }
+
+    public int getPageRows() {
+        return pageRows;
+    }
+
+    /**
+     * @return the page, null if it is kept in the journal or was decoded into
+     *         structs
+     */
+    public Report getReport() {
+        return report;
+    }
+
+    /**
+     * @return the structs of the page, null unless it was decoded while it
+     *         streamed in
+     */
+    public RecordBatch getStructs() {
+        return structs;
+    }
+
+    public boolean isJournaled() {
+        return journalSeq >= 0;
+    }
+
+    public long getJournalSeq() {
+        return journalSeq;
+    }
+
+    /**
+     * @return the rows of the report, 0 if it has none
+     */
+    static int rows(Report report) {
+        return report.getData() == null || report.getData().getRows() == null ? 0
+                : report.getData().getRows().size();
+    }
+}
@@ -5,11 +5,14 @@ import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
 import org.apache.kafka.common.config.ConfigDef;
+import org.apache.kafka.connect.util.ConnectorUtils;
 import org.mrtrustworthy.kafka.connect.googleanalytics.GASourceConnector;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -29,6 +32,117 @@ public class GAConnectorConfig {
     public final static String MEASURES = "fetch.measures";
     public final static String PROCESS_FROM = "process.from";
 
+    // named reports, every report.<name>.* setting overrides the top-level one of the same name for that report
+    public final static String REPORTS = "reports";
+    public final static String REPORT_PREFIX = "report.";
+
+    // task identity, the name is set by the worker, the task id by the connector
+    public final static String CONNECTOR_NAME = "name";
+    public final static String CONNECTOR_NAME_DEFAULT = "ga";
+    public final static String TASK_ID = "task.id";
+
+    // fetch tuning
+    public final static String PREFETCH_DEPTH = "prefetch.depth";
+    public final static int PREFETCH_DEPTH_DEFAULT = 0;
+    public final static String BACKFILL_SHARD_DAYS = "backfill.shard.days";
+    public final static int BACKFILL_SHARD_DAYS_DEFAULT = 1;
+    public final static String BACKFILL_THREADS = "backfill.threads";
+    public final static int BACKFILL_THREADS_DEFAULT = 4;
+    public final static String FETCH_QUEUE_PAGES = "fetch.queue.pages";
+    public final static int FETCH_QUEUE_PAGES_DEFAULT = 8;
+    public final static String HTTP_MAX_CONNECTIONS = "http.max.connections";
+    public final static int HTTP_MAX_CONNECTIONS_DEFAULT = 20;
+    public final static String FETCH_FIELDS = "fetch.fields";
+    // what the task reads of a report: the header, the rows, the row count it logs, whether the data is final
+    public final static String FETCH_FIELDS_DEFAULT = "reports(columnHeader,data(rows,rowCount,isDataGolden),"
+            + "nextPageToken)";
+    public final static String FETCH_HIDE_TOTALS = "fetch.hide.totals";
+    public final static boolean FETCH_HIDE_TOTALS_DEFAULT = true;
+    public final static String FETCH_INCLUDE_EMPTY_ROWS = "fetch.include.empty.rows";
+    public final static boolean FETCH_INCLUDE_EMPTY_ROWS_DEFAULT = false;
+    public final static String FETCH_DECODE_STREAMING = "fetch.decode.streaming";
+    public final static boolean FETCH_DECODE_STREAMING_DEFAULT = false;
+    // the Reporting API pages 1000 rows by default and 100000 at most
+    public final static int FETCH_PAGE_SIZE_LIMIT = 100000;
+    public final static String FETCH_PAGE_SIZE = "fetch.page.size";
+    public final static int FETCH_PAGE_SIZE_DEFAULT = 1000;
+    public final static String FETCH_PAGE_SIZE_ADAPTIVE = "fetch.page.size.adaptive";
+    public final static boolean FETCH_PAGE_SIZE_ADAPTIVE_DEFAULT = false;
+    public final static String FETCH_PAGE_SIZE_MIN = "fetch.page.size.min";
+    public final static int FETCH_PAGE_SIZE_MIN_DEFAULT = 100;
+    public final static String FETCH_PAGE_SIZE_MAX = "fetch.page.size.max";
+    public final static int FETCH_PAGE_SIZE_MAX_DEFAULT = FETCH_PAGE_SIZE_LIMIT;
+    public final static String FETCH_PAGE_TARGET_LATENCY_MS = "fetch.page.target.latency.ms";
+    public final static int FETCH_PAGE_TARGET_LATENCY_MS_DEFAULT = 5000;
+    public final static String FETCH_PAGE_TARGET_BYTES = "fetch.page.target.bytes";
+    public final static int FETCH_PAGE_TARGET_BYTES_DEFAULT = 16 * 1024 * 1024;
+
+    // page journal
+    public final static String JOURNAL_DIR = "journal.dir";
+    public final static String JOURNAL_DIR_DEFAULT = "";
+    public final static String JOURNAL_SEGMENT_BYTES = "journal.segment.bytes";
+    public final static int JOURNAL_SEGMENT_BYTES_DEFAULT = 64 * 1024 * 1024;
+
+    // response cache
+    public final static String CACHE_MEMORY_BYTES = "cache.memory.bytes";
+    public final static int CACHE_MEMORY_BYTES_DEFAULT = 32 * 1024 * 1024;
+    public final static String CACHE_TTL_MS = "cache.ttl.ms";
+    public final static int CACHE_TTL_MS_DEFAULT = 3600000;
+    public final static String CACHE_DIR = "cache.dir";
+    public final static String CACHE_DIR_DEFAULT = "";
+    public final static String CACHE_DISK_BYTES = "cache.disk.bytes";
+    public final static long CACHE_DISK_BYTES_DEFAULT = 1024L * 1024 * 1024;
+
+    // intraday mode
+    public final static String INTRADAY_ENABLED = "intraday.enabled";
+    public final static boolean INTRADAY_ENABLED_DEFAULT = false;
+    public final static String INTRADAY_INTERVAL_MS = "intraday.interval.ms";
+    public final static int INTRADAY_INTERVAL_MS_DEFAULT = 300000;
+    public final static String INTRADAY_SETTLE_MINUTES = "intraday.settle.minutes";
+    public final static int INTRADAY_SETTLE_MINUTES_DEFAULT = 10;
+
+    // rollup
+    public final static String ROLLUP_WINDOW = "rollup.window";
+    public final static String ROLLUP_WINDOW_DEFAULT = "none";
+    public final static String ROLLUP_SUM_METRICS = "rollup.sum.metrics";
+    public final static String ROLLUP_SUM_METRICS_DEFAULT = "sessions,pageviews,hits,entrances,exits,bounces,"
+            + "timeOnPage,sessionDuration,totalEvents,transactions,transactionRevenue";
+
+    // trailing re-pulls
+    public final static String REFETCH_DAYS = "refetch.days";
+    public final static int REFETCH_DAYS_DEFAULT = 0;
+
+    // change detection
+    public final static String CHANGE_DETECTION_ENABLED = "change.detection.enabled";
+    public final static boolean CHANGE_DETECTION_ENABLED_DEFAULT = false;
+    public final static String CHANGE_DETECTION_ROWS = "change.detection.rows";
+    public final static int CHANGE_DETECTION_ROWS_DEFAULT = 500000;
+
+    // heartbeats
+    public final static String HEARTBEAT_TOPIC = "heartbeat.topic";
+    public final static String HEARTBEAT_TOPIC_DEFAULT = "";
+
+    // quotas and retries
+    public final static String QUOTA_REQUESTS_PER_100S = "quota.requests.per.100s";
+    public final static double QUOTA_REQUESTS_PER_100S_DEFAULT = 100;
+    public final static String QUOTA_VIEW_REQUESTS_PER_DAY = "quota.view.requests.per.day";
+    public final static double QUOTA_VIEW_REQUESTS_PER_DAY_DEFAULT = 10000;
+    public final static String QUOTA_VIEW_SHARES = "quota.view.shares";
+    public final static String RETRY_MAX_ATTEMPTS = "retry.max.attempts";
+    public final static int RETRY_MAX_ATTEMPTS_DEFAULT = 5;
+    public final static String RETRY_BACKOFF_MS = "retry.backoff.ms";
+    public final static int RETRY_BACKOFF_MS_DEFAULT = 1000;
+    public final static String RETRY_BACKOFF_MAX_MS = "retry.backoff.max.ms";
+    public final static int RETRY_BACKOFF_MAX_MS_DEFAULT = 64000;
+
+    // parse tuning
+    public final static String URL_HASH_ALGORITHM = "url.hash.algorithm";
+    public final static String URL_HASH_ALGORITHM_DEFAULT = "md5";
+    public final static String URL_HASH_CACHE_SIZE = "url.hash.cache.size";
+    public final static int URL_HASH_CACHE_SIZE_DEFAULT = 10000;
+    public final static String DUPLICATE_KEY_POLICY = "duplicate.key.policy";
+    public final static String DUPLICATE_KEY_POLICY_DEFAULT = "keep_all";
+
     // Google key stuff
     public final static String TYPE = "google.type";
     public final static String PROJECT_ID = "google.project_id";
@@ -41,17 +155,159 @@ public class GAConnectorConfig {
     public final static String AUTH_PROVIDER_X509_CERT_URL = "google.auth_provider_x509_cert_url";
     public final static String CLIENT_X509_CERT_URL = "google.client_x509_cert_url";
 
+    // Google endpoint, only changed to point the connector at a local stand-in of the API
+    public final static String ROOT_URL = "google.root_url";
+    public final static String ROOT_URL_DEFAULT = "https://analyticsreporting.googleapis.com/";
+    public final static String ANONYMOUS = "google.anonymous";
+    public final static boolean ANONYMOUS_DEFAULT = false;
+
     public static final ConfigDef CONFIG_DEF = new ConfigDef()
             // basic stuff
-            .define(VIEW_CONFIG, ConfigDef.Type.STRING, ConfigDef.Importance.HIGH,
-                    "View Id of Google Analytics View, typically numeric value")
+            .define(VIEW_CONFIG, ConfigDef.Type.LIST, "", ConfigDef.Importance.HIGH,
+                    "View Ids of the Google Analytics Views, typically numeric values. Views are spread over the tasks")
             .define(POLLING_FREQUENCY, ConfigDef.Type.INT, ConfigDef.Importance.HIGH,
                     "How frequently to poll for new data, in milliseconds")
-            .define(DIMENSIONS, ConfigDef.Type.LIST, ConfigDef.Importance.HIGH, "The dimensions to fetch")
-            .define(MEASURES, ConfigDef.Type.LIST, ConfigDef.Importance.HIGH, "The measures to fetch")
-            .define(TOPIC_CONFIG, ConfigDef.Type.STRING, ConfigDef.Importance.HIGH, "The topic to publish data to")
+            .define(DIMENSIONS, ConfigDef.Type.LIST, "", ConfigDef.Importance.HIGH, "The dimensions to fetch")
+            .define(MEASURES, ConfigDef.Type.LIST, "", ConfigDef.Importance.HIGH, "The measures to fetch")
+            .define(TOPIC_CONFIG, ConfigDef.Type.STRING, "", ConfigDef.Importance.HIGH,
+                    "The topic to publish data to")
+            .define(REPORTS, ConfigDef.Type.LIST, "", ConfigDef.Importance.MEDIUM,
+                    "Names of the reports to pull, each configured with report.<name>.view.id, .topic.name, "
+                            + ".fetch.dimensions and .fetch.measures, which default to the settings without the "
+                            + "prefix. The reports of all views are spread over the tasks and share their connections "
+                            + "and quota. Empty pulls the single report the settings without prefix describe")
             .define(PROCESS_FROM, ConfigDef.Type.STRING, ConfigDef.Importance.HIGH,
-                    "Start processing the data from, possible values 30DaysAgo, today, yesterday, lastWeek, lastMonth")
+                    "Start processing the data from, possible values NDaysAgo, today, yesterday or a YYYY-MM-DD "
+                            + "date. Everything from there up to yesterday is backfilled on the first run, the dates "
+                            + "are resolved once and kept in the offsets of the backfill")
+            // fetch tuning
+            .define(PREFETCH_DEPTH, ConfigDef.Type.INT, PREFETCH_DEPTH_DEFAULT, ConfigDef.Importance.LOW,
+                    "How many pages to fetch ahead in the background while the current page is processed, "
+                            + "0 disables prefetching. Reports fetched ahead do not share batchGet calls")
+            .define(BACKFILL_SHARD_DAYS, ConfigDef.Type.INT, BACKFILL_SHARD_DAYS_DEFAULT, ConfigDef.Importance.LOW,
+                    "How many days the backfill shards span, every shard is fetched and resumed on its own")
+            .define(BACKFILL_THREADS, ConfigDef.Type.INT, BACKFILL_THREADS_DEFAULT, ConfigDef.Importance.LOW,
+                    "How many backfill shards of a task are fetched concurrently")
+            .define(FETCH_QUEUE_PAGES, ConfigDef.Type.INT, FETCH_QUEUE_PAGES_DEFAULT, ConfigDef.Importance.LOW,
+                    "How many pages fetched in the background may wait for the task to poll them, fetching pauses "
+                            + "while the queue is full")
+            .define(HTTP_MAX_CONNECTIONS, ConfigDef.Type.INT, HTTP_MAX_CONNECTIONS_DEFAULT, ConfigDef.Importance.LOW,
+                    "Size of the connection pool, shared by all tasks of a worker that use the same service account")
+            .define(FETCH_FIELDS, ConfigDef.Type.STRING, FETCH_FIELDS_DEFAULT, ConfigDef.Importance.LOW,
+                    "Partial response field mask of the batchGet calls, GA leaves out everything else. Empty "
+                            + "requests the full response")
+            .define(FETCH_HIDE_TOTALS, ConfigDef.Type.BOOLEAN, FETCH_HIDE_TOTALS_DEFAULT, ConfigDef.Importance.LOW,
+                    "Ask GA not to compute the totals, minimums and maximums of a report, the task never reads them")
+            .define(FETCH_INCLUDE_EMPTY_ROWS, ConfigDef.Type.BOOLEAN, FETCH_INCLUDE_EMPTY_ROWS_DEFAULT,
+                    ConfigDef.Importance.LOW, "Also fetch rows whose metrics are all zero")
+            .define(FETCH_DECODE_STREAMING, ConfigDef.Type.BOOLEAN, FETCH_DECODE_STREAMING_DEFAULT,
+                    ConfigDef.Importance.LOW,
+                    "Decode responses into structs row by row while they stream in, on the fetch threads, instead "
+                            + "of into report objects first. Such pages are neither cached nor journaled, and their "
+                            + "reports do not share batchGet calls")
+            .define(FETCH_PAGE_SIZE, ConfigDef.Type.INT, FETCH_PAGE_SIZE_DEFAULT, ConfigDef.Importance.MEDIUM,
+                    "Rows per page of a report, at most 100000. The first page size in adaptive mode")
+            .define(FETCH_PAGE_SIZE_ADAPTIVE, ConfigDef.Type.BOOLEAN, FETCH_PAGE_SIZE_ADAPTIVE_DEFAULT,
+                    ConfigDef.Importance.LOW,
+                    "Size pages by the latency, size and failures of the last responses, so large views need "
+                            + "fewer round trips without pages that time out or take too much memory")
+            .define(FETCH_PAGE_SIZE_MIN, ConfigDef.Type.INT, FETCH_PAGE_SIZE_MIN_DEFAULT, ConfigDef.Importance.LOW,
+                    "The smallest page size of adaptive mode")
+            .define(FETCH_PAGE_SIZE_MAX, ConfigDef.Type.INT, FETCH_PAGE_SIZE_MAX_DEFAULT, ConfigDef.Importance.LOW,
+                    "The largest page size of adaptive mode")
+            .define(FETCH_PAGE_TARGET_LATENCY_MS, ConfigDef.Type.INT, FETCH_PAGE_TARGET_LATENCY_MS_DEFAULT,
+                    ConfigDef.Importance.LOW,
+                    "How long a page may take to fetch and decode in adaptive mode, well below the request timeout")
+            .define(FETCH_PAGE_TARGET_BYTES, ConfigDef.Type.INT, FETCH_PAGE_TARGET_BYTES_DEFAULT,
+                    ConfigDef.Importance.LOW, "How large the decoded body of a page may get in adaptive mode")
+            // page journal
+            .define(JOURNAL_DIR, ConfigDef.Type.STRING, JOURNAL_DIR_DEFAULT, ConfigDef.Importance.LOW,
+                    "Directory to journal fetched pages in until their offsets are committed, every task uses a "
+                            + "sub directory. Pages waiting for the task are kept there instead of the heap and a "
+                            + "restart emits them from there instead of requesting them again. Empty disables it")
+            .define(JOURNAL_SEGMENT_BYTES, ConfigDef.Type.INT, JOURNAL_SEGMENT_BYTES_DEFAULT, ConfigDef.Importance.LOW,
+                    "Size of the memory-mapped journal segments, a segment is deleted once all its pages are "
+                            + "committed")
+            // response cache
+            .define(CACHE_MEMORY_BYTES, ConfigDef.Type.INT, CACHE_MEMORY_BYTES_DEFAULT, ConfigDef.Importance.LOW,
+                    "Upper bound of the gzipped GA responses the tasks of a worker keep on the heap, the least "
+                            + "recently used are dropped first. Requests that cover today are never cached")
+            .define(CACHE_TTL_MS, ConfigDef.Type.INT, CACHE_TTL_MS_DEFAULT, ConfigDef.Importance.LOW,
+                    "How long cached responses are served, in milliseconds. Responses GA marks as golden never "
+                            + "change and never expire")
+            .define(CACHE_DIR, ConfigDef.Type.STRING, CACHE_DIR_DEFAULT, ConfigDef.Importance.LOW,
+                    "Directory to also keep cached responses in, so they survive restarts of the worker. Empty "
+                            + "disables it")
+            .define(CACHE_DISK_BYTES, ConfigDef.Type.LONG, CACHE_DISK_BYTES_DEFAULT, ConfigDef.Importance.LOW,
+                    "Upper bound of the responses kept in cache.dir, the least recently used are deleted first")
+            // intraday mode
+            .define(INTRADAY_ENABLED, ConfigDef.Type.BOOLEAN, INTRADAY_ENABLED_DEFAULT, ConfigDef.Importance.MEDIUM,
+                    "Also pull today's data every intraday.interval.ms, only rows newer than the last pull are "
+                            + "emitted. Requires dateHourMinute in fetch.dimensions")
+            .define(INTRADAY_INTERVAL_MS, ConfigDef.Type.INT, INTRADAY_INTERVAL_MS_DEFAULT, ConfigDef.Importance.LOW,
+                    "How often today's data is pulled in intraday mode, in milliseconds")
+            .define(INTRADAY_SETTLE_MINUTES, ConfigDef.Type.INT, INTRADAY_SETTLE_MINUTES_DEFAULT,
+                    ConfigDef.Importance.LOW,
+                    "GA keeps filling in the latest minutes for a while, rows of the last minutes of a pull are "
+                            + "emitted again by the next pull")
+            // rollup
+            .define(ROLLUP_WINDOW, ConfigDef.Type.STRING, ROLLUP_WINDOW_DEFAULT,
+                    ConfigDef.ValidString.in("none", "hour", "day"), ConfigDef.Importance.MEDIUM,
+                    "Sum up the metrics of all rows of an hour or a day that share their other dimensions into "
+                            + "a single record, none emits every row. Requires dateHourMinute in fetch.dimensions "
+                            + "and metrics listed in rollup.sum.metrics. In intraday mode a day window fetches "
+                            + "all of today again every intraday.interval.ms")
+            .define(ROLLUP_SUM_METRICS, ConfigDef.Type.LIST, ROLLUP_SUM_METRICS_DEFAULT, ConfigDef.Importance.LOW,
+                    "The metrics whose values add up over the rows of a window, reports with other metrics, like "
+                            + "users or ratios, cannot be rolled up")
+            // trailing re-pulls
+            .define(REFETCH_DAYS, ConfigDef.Type.INT, REFETCH_DAYS_DEFAULT, ConfigDef.Importance.MEDIUM,
+                    "GA revises the latest days until their data is golden. The daily pull also pulls up to this "
+                            + "many of the days it pulled before again, as long as GA did not report them golden")
+            // change detection
+            .define(CHANGE_DETECTION_ENABLED, ConfigDef.Type.BOOLEAN, CHANGE_DETECTION_ENABLED_DEFAULT,
+                    ConfigDef.Importance.MEDIUM,
+                    "Only emit rows that are new or whose metrics changed since they were last emitted, so the "
+                            + "days refetch.days pulls again and the minutes intraday runs repeat cost little "
+                            + "traffic. Forgotten on restarts, needs refetch.days or intraday.enabled and "
+                            + "heartbeat.topic")
+            .define(CHANGE_DETECTION_ROWS, ConfigDef.Type.INT, CHANGE_DETECTION_ROWS_DEFAULT,
+                    ConfigDef.Importance.LOW,
+                    "How many rows change detection remembers at least, each costs up to 64 bytes of heap")
+            // heartbeats
+            .define(HEARTBEAT_TOPIC, ConfigDef.Type.STRING, HEARTBEAT_TOPIC_DEFAULT, ConfigDef.Importance.MEDIUM,
+                    "Topic of the records that only carry the offset of a page that emits no records, e.g. because "
+                            + "change detection left out all of its rows. Without them a restart fetches such pages "
+                            + "again. Empty disables them, change.detection.enabled needs them")
+            // quotas and retries
+            .define(QUOTA_REQUESTS_PER_100S, ConfigDef.Type.DOUBLE, QUOTA_REQUESTS_PER_100S_DEFAULT,
+                    ConfigDef.Importance.MEDIUM,
+                    "How many requests the connector may send per 100 seconds, split evenly over its tasks. The "
+                            + "default is the per user quota a service account runs into, 0 disables the limit")
+            .define(QUOTA_VIEW_REQUESTS_PER_DAY, ConfigDef.Type.DOUBLE, QUOTA_VIEW_REQUESTS_PER_DAY_DEFAULT,
+                    ConfigDef.Importance.LOW,
+                    "How many requests may be sent per view and day, split over the tasks that pull the view. The "
+                            + "budget is reset at midnight Pacific time like the API quota, 0 disables the limit")
+            .define(QUOTA_VIEW_SHARES, ConfigDef.Type.LIST, "", ConfigDef.Importance.LOW,
+                    "Set by the connector for its tasks: how many tasks share the daily budget of a view, as "
+                            + "viewId:tasks pairs. A view that is not listed has the budget to itself")
+            .define(RETRY_MAX_ATTEMPTS, ConfigDef.Type.INT, RETRY_MAX_ATTEMPTS_DEFAULT, ConfigDef.Importance.LOW,
+                    "How often a request failing with a quota, server or network error is sent at most")
+            .define(RETRY_BACKOFF_MS, ConfigDef.Type.INT, RETRY_BACKOFF_MS_DEFAULT, ConfigDef.Importance.LOW,
+                    "The backoff after the first failed attempt, it doubles with every further failure")
+            .define(RETRY_BACKOFF_MAX_MS, ConfigDef.Type.INT, RETRY_BACKOFF_MAX_MS_DEFAULT, ConfigDef.Importance.LOW,
+                    "Upper bound of the backoff between two attempts")
+            // parse tuning
+            .define(URL_HASH_ALGORITHM, ConfigDef.Type.STRING, URL_HASH_ALGORITHM_DEFAULT,
+                    ConfigDef.ValidString.in("md5", "fnv1a64"), ConfigDef.Importance.LOW,
+                    "How the urlHash of a pagePath is computed, md5 or the faster, non-cryptographic fnv1a64")
+            .define(URL_HASH_CACHE_SIZE, ConfigDef.Type.INT, URL_HASH_CACHE_SIZE_DEFAULT, ConfigDef.Importance.LOW,
+                    "How many pagePaths to keep the urlHash of, 0 disables the cache")
+            .define(DUPLICATE_KEY_POLICY, ConfigDef.Type.STRING, DUPLICATE_KEY_POLICY_DEFAULT,
+                    ConfigDef.ValidString.in("keep_all", "keep_last", "merge_metrics"), ConfigDef.Importance.LOW,
+                    "What to do with rows of a page that share their key: keep_all emits every row, keep_last only "
+                            + "the last one and merge_metrics sums up their numeric metrics. The last two require "
+                            + "pagePath and dateHourMinute in fetch.dimensions")
             // Google analytics key
             .define(TYPE, ConfigDef.Type.STRING, ConfigDef.Importance.HIGH, "The google analytics type")
             .define(PROJECT_ID, ConfigDef.Type.STRING, ConfigDef.Importance.HIGH, "The google analytics project_id")
@@ -65,7 +321,12 @@ public class GAConnectorConfig {
             .define(AUTH_PROVIDER_X509_CERT_URL, ConfigDef.Type.STRING, ConfigDef.Importance.HIGH,
                     "The google analytics auth_provider_x509_cert_url")
             .define(CLIENT_X509_CERT_URL, ConfigDef.Type.STRING, ConfigDef.Importance.HIGH,
-                    "The google analytics client_x509_cert_url");
+                    "The google analytics client_x509_cert_url")
+            // Google endpoint
+            .define(ROOT_URL, ConfigDef.Type.STRING, ROOT_URL_DEFAULT, ConfigDef.Importance.LOW,
+                    "The root url of the Analytics Reporting API, only changed for testing")
+            .define(ANONYMOUS, ConfigDef.Type.BOOLEAN, ANONYMOUS_DEFAULT, ConfigDef.Importance.LOW,
+                    "Send requests without credentials, only useful against a local stand-in of the API");
 
     // This is one of {ConnectorConfig, TaskConfig} and allows us to use this class
     // for both use cases
@@ -73,11 +334,75 @@ public class GAConnectorConfig {
 
     // basic stuff
     private String topicName;
-    private String viewId;
+    private List<String> viewIds;
     private int pollingFrequency;
     private List<String> dimensions;
     private List<String> measures;
     private String processFrom;
+    private List<ReportDefinition> reports;
+
+    // task identity
+    private String connectorName;
+    private int taskId;
+
+    // fetch tuning
+    private int prefetchDepth;
+    private int backfillShardDays;
+    private int backfillThreads;
+    private int fetchQueuePages;
+    private int httpMaxConnections;
+    private String fetchFields;
+    private boolean fetchHideTotals;
+    private boolean fetchIncludeEmptyRows;
+    private boolean fetchDecodeStreaming;
+    private int fetchPageSize;
+    private boolean fetchPageSizeAdaptive;
+    private int fetchPageSizeMin;
+    private int fetchPageSizeMax;
+    private int fetchPageTargetLatencyMs;
+    private int fetchPageTargetBytes;
+
+    // page journal
+    private String journalDir;
+    private int journalSegmentBytes;
+
+    // response cache
+    private int cacheMemoryBytes;
+    private int cacheTtlMs;
+    private String cacheDir;
+    private long cacheDiskBytes;
+
+    // intraday mode
+    private boolean intradayEnabled;
+    private int intradayIntervalMs;
+    private int intradaySettleMinutes;
+
+    // rollup
+    private RollupStage.Window rollupWindow;
+    private List<String> rollupSumMetrics;
+
+    // trailing re-pulls
+    private int refetchDays;
+
+    // change detection
+    private boolean changeDetectionEnabled;
+    private int changeDetectionRows;
+
+    // heartbeats
+    private String heartbeatTopic;
+
+    // quotas and retries
+    private double quotaRequestsPer100s;
+    private double quotaViewRequestsPerDay;
+    private Map<String, Integer> quotaViewShares;
+    private int retryMaxAttempts;
+    private int retryBackoffMs;
+    private int retryBackoffMaxMs;
+
+    // parse tuning
+    private UrlHasher.Algorithm urlHashAlgorithm;
+    private int urlHashCacheSize;
+    private RecordBatch.DuplicateKeyPolicy duplicateKeyPolicy;
 
     // google analytics key stuff
     private String type;
@@ -91,18 +416,117 @@ public class GAConnectorConfig {
     private String auth_provider_x509_cert_url;
     private String client_x509_cert_url;
 
+    // Google endpoint
+    private String rootUrl;
+    private boolean anonymous;
+
     public static GAConnectorConfig fromConfigMap(Map<String, String> map, ConfigType configType) {
 
         GAConnectorConfig conf = new GAConnectorConfig();
         // basic config
         conf.setConfigType(configType);
         conf.setTopicName(map.get(TOPIC_CONFIG));
-        conf.setViewId(map.get(VIEW_CONFIG));
-        conf.setDimensions(Arrays.asList(map.get(DIMENSIONS).split("\\s*,\\s*")));
-        conf.setMeasures(Arrays.asList(map.get(MEASURES).split("\\s*,\\s*")));
+        conf.setViewIds(getList(map, VIEW_CONFIG));
+        conf.setDimensions(getList(map, DIMENSIONS));
+        conf.setMeasures(getList(map, MEASURES));
         conf.setPollingFrequency(Integer.parseInt(map.get(POLLING_FREQUENCY)));
         conf.setProcessFrom(map.get(PROCESS_FROM));
 
+        // task identity
+        conf.setConnectorName(map.getOrDefault(CONNECTOR_NAME, CONNECTOR_NAME_DEFAULT));
+        conf.setTaskId(getInt(map, TASK_ID, 0));
+
+        // fetch tuning
+        conf.setPrefetchDepth(getInt(map, PREFETCH_DEPTH, PREFETCH_DEPTH_DEFAULT));
+        conf.setBackfillShardDays(getInt(map, BACKFILL_SHARD_DAYS, BACKFILL_SHARD_DAYS_DEFAULT));
+        conf.setBackfillThreads(getInt(map, BACKFILL_THREADS, BACKFILL_THREADS_DEFAULT));
+        conf.setFetchQueuePages(getInt(map, FETCH_QUEUE_PAGES, FETCH_QUEUE_PAGES_DEFAULT));
+        conf.setHttpMaxConnections(getInt(map, HTTP_MAX_CONNECTIONS, HTTP_MAX_CONNECTIONS_DEFAULT));
+        conf.setFetchFields(map.getOrDefault(FETCH_FIELDS, FETCH_FIELDS_DEFAULT).trim());
+        conf.setFetchHideTotals(
+                Boolean.parseBoolean(map.getOrDefault(FETCH_HIDE_TOTALS, Boolean.toString(FETCH_HIDE_TOTALS_DEFAULT))));
+        conf.setFetchIncludeEmptyRows(Boolean.parseBoolean(
+                map.getOrDefault(FETCH_INCLUDE_EMPTY_ROWS, Boolean.toString(FETCH_INCLUDE_EMPTY_ROWS_DEFAULT))));
+        conf.setFetchDecodeStreaming(Boolean.parseBoolean(
+                map.getOrDefault(FETCH_DECODE_STREAMING, Boolean.toString(FETCH_DECODE_STREAMING_DEFAULT))));
+        conf.setFetchPageSize(getInt(map, FETCH_PAGE_SIZE, FETCH_PAGE_SIZE_DEFAULT));
+        conf.setFetchPageSizeAdaptive(Boolean.parseBoolean(
+                map.getOrDefault(FETCH_PAGE_SIZE_ADAPTIVE, Boolean.toString(FETCH_PAGE_SIZE_ADAPTIVE_DEFAULT))));
+        conf.setFetchPageSizeMin(getInt(map, FETCH_PAGE_SIZE_MIN, FETCH_PAGE_SIZE_MIN_DEFAULT));
+        conf.setFetchPageSizeMax(getInt(map, FETCH_PAGE_SIZE_MAX, FETCH_PAGE_SIZE_MAX_DEFAULT));
+        conf.setFetchPageTargetLatencyMs(
+                getInt(map, FETCH_PAGE_TARGET_LATENCY_MS, FETCH_PAGE_TARGET_LATENCY_MS_DEFAULT));
+        conf.setFetchPageTargetBytes(getInt(map, FETCH_PAGE_TARGET_BYTES, FETCH_PAGE_TARGET_BYTES_DEFAULT));
+
+        // page journal
+        conf.setJournalDir(map.getOrDefault(JOURNAL_DIR, JOURNAL_DIR_DEFAULT).trim());
+        conf.setJournalSegmentBytes(getInt(map, JOURNAL_SEGMENT_BYTES, JOURNAL_SEGMENT_BYTES_DEFAULT));
+
+        // response cache
+        conf.setCacheMemoryBytes(getInt(map, CACHE_MEMORY_BYTES, CACHE_MEMORY_BYTES_DEFAULT));
+        conf.setCacheTtlMs(getInt(map, CACHE_TTL_MS, CACHE_TTL_MS_DEFAULT));
+        conf.setCacheDir(map.getOrDefault(CACHE_DIR, CACHE_DIR_DEFAULT).trim());
+        conf.setCacheDiskBytes(getLong(map, CACHE_DISK_BYTES, CACHE_DISK_BYTES_DEFAULT));
+
+        // intraday mode
+        conf.setIntradayEnabled(
+                Boolean.parseBoolean(map.getOrDefault(INTRADAY_ENABLED, Boolean.toString(INTRADAY_ENABLED_DEFAULT))));
+        conf.setIntradayIntervalMs(getInt(map, INTRADAY_INTERVAL_MS, INTRADAY_INTERVAL_MS_DEFAULT));
+        conf.setIntradaySettleMinutes(getInt(map, INTRADAY_SETTLE_MINUTES, INTRADAY_SETTLE_MINUTES_DEFAULT));
+
+        // rollup
+        conf.setRollupWindow(RollupStage.Window
+                .valueOf(map.getOrDefault(ROLLUP_WINDOW, ROLLUP_WINDOW_DEFAULT).trim().toUpperCase()));
+        conf.setRollupSumMetrics(map.containsKey(ROLLUP_SUM_METRICS) ? getList(map, ROLLUP_SUM_METRICS)
+                : Arrays.asList(ROLLUP_SUM_METRICS_DEFAULT.split(",")));
+
+        // trailing re-pulls
+        conf.setRefetchDays(getInt(map, REFETCH_DAYS, REFETCH_DAYS_DEFAULT));
+
+        // change detection
+        conf.setChangeDetectionEnabled(Boolean.parseBoolean(
+                map.getOrDefault(CHANGE_DETECTION_ENABLED, Boolean.toString(CHANGE_DETECTION_ENABLED_DEFAULT))));
+        conf.setChangeDetectionRows(getInt(map, CHANGE_DETECTION_ROWS, CHANGE_DETECTION_ROWS_DEFAULT));
+        if (conf.isChangeDetectionEnabled() && conf.getRefetchDays() <= 0 && !conf.isIntradayEnabled()) {
+            throw new IllegalArgumentException(CHANGE_DETECTION_ENABLED + " needs " + REFETCH_DAYS + " or "
+                    + INTRADAY_ENABLED + ", without them no row is pulled twice");
+        }
+
+        // heartbeats
+        conf.setHeartbeatTopic(map.getOrDefault(HEARTBEAT_TOPIC, HEARTBEAT_TOPIC_DEFAULT).trim());
+        if (conf.isChangeDetectionEnabled() && conf.getHeartbeatTopic().isEmpty()) {
+            throw new IllegalArgumentException(CHANGE_DETECTION_ENABLED + " needs a " + HEARTBEAT_TOPIC
+                    + ", pages whose rows are all left out commit their offsets through it");
+        }
+
+        // parse tuning
+        conf.setUrlHashAlgorithm(UrlHasher.Algorithm
+                .valueOf(map.getOrDefault(URL_HASH_ALGORITHM, URL_HASH_ALGORITHM_DEFAULT).trim().toUpperCase()));
+        conf.setUrlHashCacheSize(getInt(map, URL_HASH_CACHE_SIZE, URL_HASH_CACHE_SIZE_DEFAULT));
+        conf.setDuplicateKeyPolicy(RecordBatch.DuplicateKeyPolicy
+                .valueOf(map.getOrDefault(DUPLICATE_KEY_POLICY, DUPLICATE_KEY_POLICY_DEFAULT).trim().toUpperCase()));
+
+        // reports, the settings above are complete by now
+        conf.setReports(createReports(map, conf));
+
+        // quotas and retries
+        conf.setQuotaRequestsPer100s(getDouble(map, QUOTA_REQUESTS_PER_100S, QUOTA_REQUESTS_PER_100S_DEFAULT));
+        conf.setQuotaViewRequestsPerDay(
+                getDouble(map, QUOTA_VIEW_REQUESTS_PER_DAY, QUOTA_VIEW_REQUESTS_PER_DAY_DEFAULT));
+        Map<String, Integer> viewShares = new HashMap<>();
+        for (String share : getList(map, QUOTA_VIEW_SHARES)) {
+            String[] parts = share.split(":");
+            if (parts.length != 2 || !parts[1].trim().matches("[1-9]\\d*")) {
+                throw new IllegalArgumentException("Invalid view share '" + share + "' in " + QUOTA_VIEW_SHARES
+                        + ", expected viewId:tasks");
+            }
+            viewShares.put(parts[0].trim(), Integer.parseInt(parts[1].trim()));
+        }
+        conf.setQuotaViewShares(viewShares);
+        conf.setRetryMaxAttempts(getInt(map, RETRY_MAX_ATTEMPTS, RETRY_MAX_ATTEMPTS_DEFAULT));
+        conf.setRetryBackoffMs(getInt(map, RETRY_BACKOFF_MS, RETRY_BACKOFF_MS_DEFAULT));
+        conf.setRetryBackoffMaxMs(getInt(map, RETRY_BACKOFF_MAX_MS, RETRY_BACKOFF_MAX_MS_DEFAULT));
+
         // GA key config
         conf.setType(map.get(TYPE));
         conf.setProject_id(map.get(PROJECT_ID));
@@ -115,33 +539,292 @@ public class GAConnectorConfig {
         conf.setAuth_provider_x509_cert_url(map.get(AUTH_PROVIDER_X509_CERT_URL));
         conf.setClient_x509_cert_url(map.get(CLIENT_X509_CERT_URL));
 
+        // Google endpoint
+        conf.setRootUrl(map.getOrDefault(ROOT_URL, ROOT_URL_DEFAULT));
+        conf.setAnonymous(Boolean.parseBoolean(map.getOrDefault(ANONYMOUS, Boolean.toString(ANONYMOUS_DEFAULT))));
+
         return conf;
     }
 
     /**
+     * Assembles the reports of the reports setting, every report.&lt;name&gt;.*
+     * setting that is not present falls back to the top-level one. Without
+     * named reports the top-level settings describe the only, unnamed report.
+     *
+     * @param map
+     *            the raw configuration
+     * @param conf
+     *            the configuration with the top-level settings read
+     * @return the reports to pull
+     */
+    private static List<ReportDefinition> createReports(Map<String, String> map, GAConnectorConfig conf) {
+        List<String> names = getList(map, REPORTS);
+        if (names.isEmpty()) {
+            names = Collections.singletonList(null);
+        }
+
+        Map<String, ReportDefinition> reports = new LinkedHashMap<>();
+        for (String name : names) {
+            String prefix = name == null ? "" : REPORT_PREFIX + name + ".";
+            String topicName = map.getOrDefault(prefix + TOPIC_CONFIG, conf.getTopicName());
+            List<String> dimensions = map.containsKey(prefix + DIMENSIONS) ? getList(map, prefix + DIMENSIONS)
+                    : conf.getDimensions();
+            List<String> measures = map.containsKey(prefix + MEASURES) ? getList(map, prefix + MEASURES)
+                    : conf.getMeasures();
+            List<String> viewIds = map.containsKey(prefix + VIEW_CONFIG) ? getList(map, prefix + VIEW_CONFIG)
+                    : conf.getViewIds();
+
+            if (topicName == null || topicName.trim().isEmpty()) {
+                throw new IllegalArgumentException("Missing " + prefix + TOPIC_CONFIG);
+            }
+            if (dimensions.isEmpty() || measures.isEmpty() || viewIds.isEmpty()) {
+                throw new IllegalArgumentException(
+                        "Missing " + prefix + DIMENSIONS + ", " + prefix + MEASURES + " or " + prefix + VIEW_CONFIG);
+            }
+            if (conf.isIntradayEnabled() && !dimensions.contains("dateHourMinute")) {
+                throw new IllegalArgumentException(INTRADAY_ENABLED + " needs dateHourMinute in " + prefix
+                        + DIMENSIONS + " to keep its watermark");
+            }
+            if (conf.getDuplicateKeyPolicy() != RecordBatch.DuplicateKeyPolicy.KEEP_ALL
+                    && !(dimensions.contains("pagePath") && dimensions.contains("dateHourMinute"))) {
+                throw new IllegalArgumentException(DUPLICATE_KEY_POLICY + " needs pagePath and dateHourMinute in "
+                        + prefix + DIMENSIONS + ", without them every row has the same key");
+            }
+            if (conf.getRollupWindow() != RollupStage.Window.NONE && !dimensions.contains("dateHourMinute")) {
+                throw new IllegalArgumentException(ROLLUP_WINDOW + " needs dateHourMinute in " + prefix + DIMENSIONS
+                        + " to find the window of a row");
+            }
+            if (conf.getRollupWindow() != RollupStage.Window.NONE) {
+                for (String measure : measures) {
+                    if (!conf.getRollupSumMetrics().contains(measure)) {
+                        throw new IllegalArgumentException(ROLLUP_WINDOW + " cannot sum up " + measure + " of "
+                                + prefix + MEASURES + ", list it in " + ROLLUP_SUM_METRICS + " if its values add up");
+                    }
+                }
+            }
+            if (reports.containsKey(name)) {
+                throw new IllegalArgumentException("Report " + name + " is listed twice in " + REPORTS);
+            }
+            reports.put(name, new ReportDefinition(name, topicName.trim(), dimensions, measures, viewIds));
+        }
+        return new ArrayList<>(reports.values());
+    }
+
+    /**
+     * Reads an optional list setting
+     *
+     * @param map
+     *            the raw configuration
+     * @param key
+     *            the setting to read
+     * @return the comma separated values, empty if the setting is not present
+     */
+    private static List<String> getList(Map<String, String> map, String key) {
+        String value = map.get(key);
+        return value == null || value.trim().isEmpty() ? new ArrayList<>()
+                : Arrays.asList(value.trim().split("\\s*,\\s*"));
+    }
+
+    /**
+     * Reads an optional integer setting
+     *
+     * @param map
+     *            the raw configuration
+     * @param key
+     *            the setting to read
+     * @param defaultValue
+     *            returned if the setting is not present
+     * @return the parsed setting
+     */
+    private static int getInt(Map<String, String> map, String key, int defaultValue) {
+        String value = map.get(key);
+        return value == null || value.trim().isEmpty() ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    /**
+     * Reads an optional long setting
+     *
+     * @param map
+     *            the raw configuration
+     * @param key
+     *            the setting to read
+     * @param defaultValue
+     *            returned if the setting is not present
+     * @return the parsed setting
+     */
+    private static long getLong(Map<String, String> map, String key, long defaultValue) {
+        String value = map.get(key);
+        return value == null || value.trim().isEmpty() ? defaultValue : Long.parseLong(value.trim());
+    }
+
+    /**
+     * Reads an optional decimal setting
+     *
+     * @param map
+     *            the raw configuration
+     * @param key
+     *            the setting to read
+     * @param defaultValue
+     *            returned if the setting is not present
+     * @return the parsed setting
+     */
+    private static double getDouble(Map<String, String> map, String key, double defaultValue) {
+        String value = map.get(key);
+        return value == null || value.trim().isEmpty() ? defaultValue : Double.parseDouble(value.trim());
+    }
+
+    /**
+     * Spreads the configured views as evenly as possible over the tasks, every
+     * task gets at least one view. The project quota is split evenly over the
+     * tasks, as they all send their requests on behalf of the same project, and
+     * the daily quota of a view over the tasks that pull one of its reports
+     *
      * @param maxTasks
-     *            is ignored, we only spawn one
-     * @return a list containing only one serialized task config
+     *            upper bound of task configurations to create
+     * @return a list containing one serialized task config per task
      */
     public List<Map<String, String>> createTaskConfigurations(int maxTasks) {
-        // TODO validate that task_configs only have one property id
         if (this.configType == ConfigType.TASK_CONFIG) {
             throw new IllegalArgumentException("Can't create task configurations from a task configuration");
         }
 
-        // TODO spawn more tasks if multiple property id's are entered
-        ArrayList<Map<String, String>> configs = new ArrayList<>();
-        // Only one input partition makes sense.
+        // every report of every view is a unit of work, the units are spread over the tasks
+        List<ReportDefinition> units = new ArrayList<>();
+        for (ReportDefinition report : this.reports) {
+            for (String viewId : report.getViewIds()) {
+                units.add(report.withViewIds(Collections.singletonList(viewId)));
+            }
+        }
+
+        int numGroups = Math.min(maxTasks, units.size());
+        List<Map<String, String>> configs = new ArrayList<>();
+        List<List<ReportDefinition>> unitGroups = ConnectorUtils.groupPartitions(units, numGroups);
+
+        // the reports of a view may end up in several tasks, which then share its daily quota
+        Map<String, Integer> viewShares = new HashMap<>();
+        for (List<ReportDefinition> group : unitGroups) {
+            group.stream().flatMap(unit -> unit.getViewIds().stream()).distinct()
+                    .forEach(viewId -> viewShares.merge(viewId, 1, Integer::sum));
+        }
+        for (int taskId = 0; taskId < unitGroups.size(); taskId++) {
+            configs.add(this.createTaskConfiguration(mergeUnits(unitGroups.get(taskId)), taskId, numGroups,
+                    viewShares));
+        }
+        return configs;
+    }
+
+    /**
+     * @return the units of a task merged into one report per name
+     */
+    private static List<ReportDefinition> mergeUnits(List<ReportDefinition> units) {
+        Map<String, ReportDefinition> reports = new LinkedHashMap<>();
+        Map<String, List<String>> viewIds = new HashMap<>();
+        for (ReportDefinition unit : units) {
+            reports.putIfAbsent(unit.getName(), unit);
+            viewIds.computeIfAbsent(unit.getName(), n -> new ArrayList<>()).addAll(unit.getViewIds());
+        }
+        List<ReportDefinition> merged = new ArrayList<>();
+        reports.forEach((name, report) -> merged.add(report.withViewIds(viewIds.get(name))));
+        return merged;
+    }
+
+    /**
+     * @param reports
+     *            the reports the task is responsible for, each with the views of
+     *            the task
+     * @param taskId
+     *            the index of the task, used to tell the metrics of the tasks apart
+     * @param numTasks
+     *            how many tasks the connector is split into
+     * @param viewShares
+     *            how many tasks pull each view
+     * @return a single serialized task config
+     */
+    private Map<String, String> createTaskConfiguration(List<ReportDefinition> reports, int taskId, int numTasks,
+            Map<String, Integer> viewShares) {
         Map<String, String> config = new HashMap<>();
 
         // basic stuff
-        config.put(VIEW_CONFIG, this.viewId);
-        config.put(TOPIC_CONFIG, this.topicName);
-        config.put(DIMENSIONS, String.join(",", this.dimensions));
-        config.put(MEASURES, String.join(",", this.measures));
+        if (reports.size() == 1 && !reports.get(0).isNamed()) {
+            this.putReport(config, "", reports.get(0));
+        } else {
+            List<String> names = new ArrayList<>();
+            for (ReportDefinition report : reports) {
+                names.add(report.getName());
+                this.putReport(config, REPORT_PREFIX + report.getName() + ".", report);
+            }
+            config.put(REPORTS, String.join(",", names));
+        }
         config.put(POLLING_FREQUENCY, Integer.toString(this.pollingFrequency));
         config.put(PROCESS_FROM, this.processFrom);
 
+        // task identity
+        config.put(CONNECTOR_NAME, this.connectorName);
+        config.put(TASK_ID, Integer.toString(taskId));
+
+        // fetch tuning
+        config.put(PREFETCH_DEPTH, Integer.toString(this.prefetchDepth));
+        config.put(BACKFILL_SHARD_DAYS, Integer.toString(this.backfillShardDays));
+        config.put(BACKFILL_THREADS, Integer.toString(this.backfillThreads));
+        config.put(FETCH_QUEUE_PAGES, Integer.toString(this.fetchQueuePages));
+        config.put(HTTP_MAX_CONNECTIONS, Integer.toString(this.httpMaxConnections));
+        config.put(FETCH_FIELDS, this.fetchFields);
+        config.put(FETCH_HIDE_TOTALS, Boolean.toString(this.fetchHideTotals));
+        config.put(FETCH_INCLUDE_EMPTY_ROWS, Boolean.toString(this.fetchIncludeEmptyRows));
+        config.put(FETCH_DECODE_STREAMING, Boolean.toString(this.fetchDecodeStreaming));
+        config.put(FETCH_PAGE_SIZE, Integer.toString(this.fetchPageSize));
+        config.put(FETCH_PAGE_SIZE_ADAPTIVE, Boolean.toString(this.fetchPageSizeAdaptive));
+        config.put(FETCH_PAGE_SIZE_MIN, Integer.toString(this.fetchPageSizeMin));
+        config.put(FETCH_PAGE_SIZE_MAX, Integer.toString(this.fetchPageSizeMax));
+        config.put(FETCH_PAGE_TARGET_LATENCY_MS, Integer.toString(this.fetchPageTargetLatencyMs));
+        config.put(FETCH_PAGE_TARGET_BYTES, Integer.toString(this.fetchPageTargetBytes));
+
+        // page journal
+        config.put(JOURNAL_DIR, this.journalDir);
+        config.put(JOURNAL_SEGMENT_BYTES, Integer.toString(this.journalSegmentBytes));
+
+        // response cache
+        config.put(CACHE_MEMORY_BYTES, Integer.toString(this.cacheMemoryBytes));
+        config.put(CACHE_TTL_MS, Integer.toString(this.cacheTtlMs));
+        config.put(CACHE_DIR, this.cacheDir);
+        config.put(CACHE_DISK_BYTES, Long.toString(this.cacheDiskBytes));
+
+        // intraday mode
+        config.put(INTRADAY_ENABLED, Boolean.toString(this.intradayEnabled));
+        config.put(INTRADAY_INTERVAL_MS, Integer.toString(this.intradayIntervalMs));
+        config.put(INTRADAY_SETTLE_MINUTES, Integer.toString(this.intradaySettleMinutes));
+
+        // rollup
+        config.put(ROLLUP_WINDOW, this.rollupWindow.name().toLowerCase());
+        config.put(ROLLUP_SUM_METRICS, String.join(",", this.rollupSumMetrics));
+
+        // trailing re-pulls
+        config.put(REFETCH_DAYS, Integer.toString(this.refetchDays));
+
+        // change detection
+        config.put(CHANGE_DETECTION_ENABLED, Boolean.toString(this.changeDetectionEnabled));
+        config.put(CHANGE_DETECTION_ROWS, Integer.toString(this.changeDetectionRows));
+
+        // heartbeats
+        config.put(HEARTBEAT_TOPIC, this.heartbeatTopic);
+
+        // quotas and retries
+        config.put(QUOTA_REQUESTS_PER_100S, Double.toString(this.quotaRequestsPer100s / numTasks));
+        config.put(QUOTA_VIEW_REQUESTS_PER_DAY, Double.toString(this.quotaViewRequestsPerDay));
+        List<String> shares = new ArrayList<>();
+        reports.stream().flatMap(report -> report.getViewIds().stream()).distinct()
+                .filter(viewId -> viewShares.get(viewId) > 1)
+                .forEach(viewId -> shares.add(viewId + ":" + viewShares.get(viewId)));
+        config.put(QUOTA_VIEW_SHARES, String.join(",", shares));
+        config.put(RETRY_MAX_ATTEMPTS, Integer.toString(this.retryMaxAttempts));
+        config.put(RETRY_BACKOFF_MS, Integer.toString(this.retryBackoffMs));
+        config.put(RETRY_BACKOFF_MAX_MS, Integer.toString(this.retryBackoffMaxMs));
+
+        // parse tuning
+        config.put(URL_HASH_ALGORITHM, this.urlHashAlgorithm.name().toLowerCase());
+        config.put(URL_HASH_CACHE_SIZE, Integer.toString(this.urlHashCacheSize));
+        config.put(DUPLICATE_KEY_POLICY, this.duplicateKeyPolicy.name().toLowerCase());
+
         // GA key stuff
         config.put(TYPE, this.type);
         config.put(PROJECT_ID, this.project_id);
@@ -154,8 +837,11 @@ public class GAConnectorConfig {
         config.put(AUTH_PROVIDER_X509_CERT_URL, this.auth_provider_x509_cert_url);
         config.put(CLIENT_X509_CERT_URL, this.client_x509_cert_url);
 
-        configs.add(config);
-        return configs;
+        // Google endpoint
+        config.put(ROOT_URL, this.rootUrl);
+        config.put(ANONYMOUS, Boolean.toString(this.anonymous));
+
+        return config;
     }
 
     /**
@@ -195,6 +881,28 @@ public class GAConnectorConfig {
         this.configType = configType;
     }
 
+    /**
+     * Writes the settings of a report into a task config
+     */
+    private void putReport(Map<String, String> config, String prefix, ReportDefinition report) {
+        config.put(prefix + VIEW_CONFIG, String.join(",", report.getViewIds()));
+        config.put(prefix + TOPIC_CONFIG, report.getTopicName());
+        config.put(prefix + DIMENSIONS, String.join(",", report.getDimensions()));
+        config.put(prefix + MEASURES, String.join(",", report.getMeasures()));
+    }
+
+    /**
+     * @return the reports to pull, the single unnamed report unless named
+     *         reports are configured
+     */
+    public List<ReportDefinition> getReports() {
+        return reports;
+    }
+
+    public void setReports(List<ReportDefinition> reports) {
+        this.reports = reports;
+    }
+
     public String getTopicName() {
         return topicName;
     }
@@ -211,8 +919,8 @@ public class GAConnectorConfig {
         this.processFrom = processFrom;
     }
 
-    public String getViewId() {
-        return viewId;
+    public List<String> getViewIds() {
+        return viewIds;
     }
 
     public String getType() {
@@ -255,8 +963,8 @@ public class GAConnectorConfig {
         return client_x509_cert_url;
     }
 
-    public void setViewId(String viewId) {
-        this.viewId = viewId;
+    public void setViewIds(List<String> viewIds) {
+        this.viewIds = viewIds;
     }
 
     public int getPollingFrequency() {
@@ -267,6 +975,348 @@ public class GAConnectorConfig {
         this.pollingFrequency = pollingFrequency;
     }
 
+    public String getConnectorName() {
+        return connectorName;
+    }
+
+    public void setConnectorName(String connectorName) {
+        this.connectorName = connectorName;
+    }
+
+    public int getTaskId() {
+        return taskId;
+    }
+
+    public void setTaskId(int taskId) {
+        this.taskId = taskId;
+    }
+
+    public int getPrefetchDepth() {
+        return prefetchDepth;
+    }
+
+    public void setPrefetchDepth(int prefetchDepth) {
+        this.prefetchDepth = prefetchDepth;
+    }
+
+    public int getBackfillShardDays() {
+        return backfillShardDays;
+    }
+
+    public void setBackfillShardDays(int backfillShardDays) {
+        this.backfillShardDays = backfillShardDays;
+    }
+
+    public int getBackfillThreads() {
+        return backfillThreads;
+    }
+
+    public void setBackfillThreads(int backfillThreads) {
+        this.backfillThreads = backfillThreads;
+    }
+
+    public int getFetchQueuePages() {
+        return fetchQueuePages;
+    }
+
+    public void setFetchQueuePages(int fetchQueuePages) {
+        this.fetchQueuePages = fetchQueuePages;
+    }
+
+    public int getHttpMaxConnections() {
+        return httpMaxConnections;
+    }
+
+    public void setHttpMaxConnections(int httpMaxConnections) {
+        this.httpMaxConnections = httpMaxConnections;
+    }
+
+    public String getFetchFields() {
+        return fetchFields;
+    }
+
+    public void setFetchFields(String fetchFields) {
+        this.fetchFields = fetchFields;
+    }
+
+    public boolean isFetchHideTotals() {
+        return fetchHideTotals;
+    }
+
+    public void setFetchHideTotals(boolean fetchHideTotals) {
+        this.fetchHideTotals = fetchHideTotals;
+    }
+
+    public boolean isFetchIncludeEmptyRows() {
+        return fetchIncludeEmptyRows;
+    }
+
+    public void setFetchIncludeEmptyRows(boolean fetchIncludeEmptyRows) {
+        this.fetchIncludeEmptyRows = fetchIncludeEmptyRows;
+    }
+
+    public boolean isFetchDecodeStreaming() {
+        return fetchDecodeStreaming;
+    }
+
+    public void setFetchDecodeStreaming(boolean fetchDecodeStreaming) {
+        this.fetchDecodeStreaming = fetchDecodeStreaming;
+    }
+
+    public int getFetchPageSize() {
+        return fetchPageSize;
+    }
+
+    public void setFetchPageSize(int fetchPageSize) {
+        this.fetchPageSize = fetchPageSize;
+    }
+
+    public boolean isFetchPageSizeAdaptive() {
+        return fetchPageSizeAdaptive;
+    }
+
+    public void setFetchPageSizeAdaptive(boolean fetchPageSizeAdaptive) {
+        this.fetchPageSizeAdaptive = fetchPageSizeAdaptive;
+    }
+
+    public int getFetchPageSizeMin() {
+        return fetchPageSizeMin;
+    }
+
+    public void setFetchPageSizeMin(int fetchPageSizeMin) {
+        this.fetchPageSizeMin = fetchPageSizeMin;
+    }
+
+    public int getFetchPageSizeMax() {
+        return fetchPageSizeMax;
+    }
+
+    public void setFetchPageSizeMax(int fetchPageSizeMax) {
+        this.fetchPageSizeMax = fetchPageSizeMax;
+    }
+
+    public int getFetchPageTargetLatencyMs() {
+        return fetchPageTargetLatencyMs;
+    }
+
+    public void setFetchPageTargetLatencyMs(int fetchPageTargetLatencyMs) {
+        this.fetchPageTargetLatencyMs = fetchPageTargetLatencyMs;
+    }
+
+    public int getFetchPageTargetBytes() {
+        return fetchPageTargetBytes;
+    }
+
+    public void setFetchPageTargetBytes(int fetchPageTargetBytes) {
+        this.fetchPageTargetBytes = fetchPageTargetBytes;
+    }
+
+    public String getJournalDir() {
+        return journalDir;
+    }
+
+    public void setJournalDir(String journalDir) {
+        this.journalDir = journalDir;
+    }
+
+    /**
+     * @return whether fetched pages are journaled on disk
+     */
+    public boolean isJournalEnabled() {
+        return !journalDir.isEmpty();
+    }
+
+    public int getJournalSegmentBytes() {
+        return journalSegmentBytes;
+    }
+
+    public void setJournalSegmentBytes(int journalSegmentBytes) {
+        this.journalSegmentBytes = journalSegmentBytes;
+    }
+
+    public int getCacheMemoryBytes() {
+        return cacheMemoryBytes;
+    }
+
+    public void setCacheMemoryBytes(int cacheMemoryBytes) {
+        this.cacheMemoryBytes = cacheMemoryBytes;
+    }
+
+    public int getCacheTtlMs() {
+        return cacheTtlMs;
+    }
+
+    public void setCacheTtlMs(int cacheTtlMs) {
+        this.cacheTtlMs = cacheTtlMs;
+    }
+
+    public String getCacheDir() {
+        return cacheDir;
+    }
+
+    public void setCacheDir(String cacheDir) {
+        this.cacheDir = cacheDir;
+    }
+
+    public long getCacheDiskBytes() {
+        return cacheDiskBytes;
+    }
+
+    public void setCacheDiskBytes(long cacheDiskBytes) {
+        this.cacheDiskBytes = cacheDiskBytes;
+    }
+
+    /**
+     * @return whether responses of GA are cached
+     */
+    public boolean isCacheEnabled() {
+        return cacheMemoryBytes > 0 || !cacheDir.isEmpty();
+    }
+
+    public boolean isIntradayEnabled() {
+        return intradayEnabled;
+    }
+
+    public void setIntradayEnabled(boolean intradayEnabled) {
+        this.intradayEnabled = intradayEnabled;
+    }
+
+    public int getIntradayIntervalMs() {
+        return intradayIntervalMs;
+    }
+
+    public void setIntradayIntervalMs(int intradayIntervalMs) {
+        this.intradayIntervalMs = intradayIntervalMs;
+    }
+
+    public int getIntradaySettleMinutes() {
+        return intradaySettleMinutes;
+    }
+
+    public void setIntradaySettleMinutes(int intradaySettleMinutes) {
+        this.intradaySettleMinutes = intradaySettleMinutes;
+    }
+
+    public RollupStage.Window getRollupWindow() {
+        return rollupWindow;
+    }
+
+    public void setRollupWindow(RollupStage.Window rollupWindow) {
+        this.rollupWindow = rollupWindow;
+    }
+
+    public List<String> getRollupSumMetrics() {
+        return rollupSumMetrics;
+    }
+
+    public void setRollupSumMetrics(List<String> rollupSumMetrics) {
+        this.rollupSumMetrics = rollupSumMetrics;
+    }
+
+    public int getRefetchDays() {
+        return refetchDays;
+    }
+
+    public void setRefetchDays(int refetchDays) {
+        this.refetchDays = refetchDays;
+    }
+
+    public boolean isChangeDetectionEnabled() {
+        return changeDetectionEnabled;
+    }
+
+    public void setChangeDetectionEnabled(boolean changeDetectionEnabled) {
+        this.changeDetectionEnabled = changeDetectionEnabled;
+    }
+
+    public int getChangeDetectionRows() {
+        return changeDetectionRows;
+    }
+
+    public void setChangeDetectionRows(int changeDetectionRows) {
+        this.changeDetectionRows = changeDetectionRows;
+    }
+
+    public String getHeartbeatTopic() {
+        return heartbeatTopic;
+    }
+
+    public void setHeartbeatTopic(String heartbeatTopic) {
+        this.heartbeatTopic = heartbeatTopic;
+    }
+
+    public double getQuotaRequestsPer100s() {
+        return quotaRequestsPer100s;
+    }
+
+    public void setQuotaRequestsPer100s(double quotaRequestsPer100s) {
+        this.quotaRequestsPer100s = quotaRequestsPer100s;
+    }
+
+    public double getQuotaViewRequestsPerDay() {
+        return quotaViewRequestsPerDay;
+    }
+
+    public void setQuotaViewRequestsPerDay(double quotaViewRequestsPerDay) {
+        this.quotaViewRequestsPerDay = quotaViewRequestsPerDay;
+    }
+
+    public Map<String, Integer> getQuotaViewShares() {
+        return quotaViewShares;
+    }
+
+    public void setQuotaViewShares(Map<String, Integer> quotaViewShares) {
+        this.quotaViewShares = quotaViewShares;
+    }
+
+    public int getRetryMaxAttempts() {
+        return retryMaxAttempts;
+    }
+
+    public void setRetryMaxAttempts(int retryMaxAttempts) {
+        this.retryMaxAttempts = retryMaxAttempts;
+    }
+
+    public int getRetryBackoffMs() {
+        return retryBackoffMs;
+    }
+
+    public void setRetryBackoffMs(int retryBackoffMs) {
+        this.retryBackoffMs = retryBackoffMs;
+    }
+
+    public int getRetryBackoffMaxMs() {
+        return retryBackoffMaxMs;
+    }
+
+    public void setRetryBackoffMaxMs(int retryBackoffMaxMs) {
+        this.retryBackoffMaxMs = retryBackoffMaxMs;
+    }
+
+    public UrlHasher.Algorithm getUrlHashAlgorithm() {
+        return urlHashAlgorithm;
+    }
+
+    public void setUrlHashAlgorithm(UrlHasher.Algorithm urlHashAlgorithm) {
+        this.urlHashAlgorithm = urlHashAlgorithm;
+    }
+
+    public int getUrlHashCacheSize() {
+        return urlHashCacheSize;
+    }
+
+    public void setUrlHashCacheSize(int urlHashCacheSize) {
+        this.urlHashCacheSize = urlHashCacheSize;
+    }
+
+    public RecordBatch.DuplicateKeyPolicy getDuplicateKeyPolicy() {
+        return duplicateKeyPolicy;
+    }
+
+    public void setDuplicateKeyPolicy(RecordBatch.DuplicateKeyPolicy duplicateKeyPolicy) {
+        this.duplicateKeyPolicy = duplicateKeyPolicy;
+    }
+
     public List<String> getDimensions() {
         return dimensions;
     }
@@ -322,4 +1372,20 @@ public class GAConnectorConfig {
     public void setClient_x509_cert_url(String client_x509_cert_url) {
         this.client_x509_cert_url = client_x509_cert_url;
     }
+
+    public String getRootUrl() {
+        return rootUrl;
+    }
+
+    public void setRootUrl(String rootUrl) {
+        this.rootUrl = rootUrl;
+    }
+
+    public boolean isAnonymous() {
+        return anonymous;
+    }
+
+    public void setAnonymous(boolean anonymous) {
+        this.anonymous = anonymous;
+    }
 }
@@ -1,21 +1,42 @@
 package org.mrtrustworthy.kafka.connect.googleanalytics.source;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.Charset;
 import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToIntFunction;
 import java.util.stream.Collectors;
 
-import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
-import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
-import com.google.api.client.http.HttpTransport;
+import org.apache.kafka.common.metrics.Metrics;
+import org.mrtrustworthy.kafka.connect.googleanalytics.GASourceConnector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.api.client.http.HttpResponse;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.gson.GsonFactory;
 import com.google.api.services.analyticsreporting.v4.AnalyticsReporting;
-import com.google.api.services.analyticsreporting.v4.AnalyticsReportingScopes;
 import com.google.api.services.analyticsreporting.v4.model.DateRange;
 import com.google.api.services.analyticsreporting.v4.model.Dimension;
+import com.google.api.services.analyticsreporting.v4.model.DimensionFilter;
+import com.google.api.services.analyticsreporting.v4.model.DimensionFilterClause;
 import com.google.api.services.analyticsreporting.v4.model.GetReportsRequest;
 import com.google.api.services.analyticsreporting.v4.model.GetReportsResponse;
 import com.google.api.services.analyticsreporting.v4.model.Metric;
@@ -25,16 +46,85 @@ import com.google.api.services.analyticsreporting.v4.model.ReportRequest;
 import kafka.common.KafkaException;
 
 public class GAReportFetcher {
-    private static final String APPLICATION_NAME = "org.mrtrustworthy.kafka.connect.googleanalytics.GAReportFetcher";
+    private static final Logger log = LoggerFactory.getLogger(GASourceConnector.class);
+    // GA only compresses responses for clients that mention gzip in their user agent
+    private static final String APPLICATION_NAME = "org.mrtrustworthy.kafka.connect.googleanalytics.GAReportFetcher"
+            + " (gzip)";
+    private static final String GZIP = "gzip";
     private static final JsonFactory JSON_FACTORY = GsonFactory.getDefaultInstance();
+    // The Reporting API v4 accepts at most five report requests per batchGet call
+    public static final int MAX_REQUESTS_PER_BATCH = 5;
+    private static final String DATE_HOUR_MINUTE = "ga:dateHourMinute";
 
     private GAConnectorConfig conf;
 
     private AnalyticsReporting service;
+    private SharedGoogleClient client;
+    private ReportCache cache;
+
+    // shared by the calling threads and the prefetch threads
+    private final QuotaLimiter quotaLimiter;
+    private final RetryPolicy retryPolicy;
+    private final PageSizer pageSizer;
+    private final TaskMetrics metrics;
+
+    // pages fetched ahead in the background, one bounded lookahead per report
+    private ExecutorService prefetchExecutor;
+    private final Map<String, Lookahead> lookahead = new ConcurrentHashMap<>();
 
     public GAReportFetcher(GAConnectorConfig conf) {
+        // the metrics are only kept in memory, nothing is registered over JMX
+        this(conf, new TaskMetrics(new Metrics(), conf));
+    }
+
+    /**
+     * @param conf
+     *            the task configuration
+     * @param metrics
+     *            the metrics of the task, the fetcher records its requests there
+     */
+    public GAReportFetcher(GAConnectorConfig conf, TaskMetrics metrics) {
         // TODO how can we update this on-demand?
         this.conf = conf;
+        this.metrics = metrics;
+        this.quotaLimiter = new QuotaLimiter(conf.getQuotaRequestsPer100s(), conf.getQuotaViewRequestsPerDay(),
+                conf.getQuotaViewShares());
+        this.metrics.addQuotaGauges(this.quotaLimiter);
+        this.retryPolicy = new RetryPolicy(conf.getRetryMaxAttempts(), conf.getRetryBackoffMs(),
+                conf.getRetryBackoffMaxMs());
+        this.pageSizer = new PageSizer(conf.getFetchPageSize(), conf.isFetchPageSizeAdaptive(),
+                conf.getFetchPageSizeMin(), conf.getFetchPageSizeMax(), conf.getFetchPageTargetLatencyMs(),
+                conf.getFetchPageTargetBytes());
+        this.metrics.addPageSizeGauge(this.pageSizer);
+        if (conf.getPrefetchDepth() > 0) {
+            AtomicInteger threadCount = new AtomicInteger();
+            this.prefetchExecutor = Executors.newFixedThreadPool(conf.getPrefetchDepth(), r -> {
+                Thread thread = new Thread(r, "ga-prefetch-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Cancels all pages that are still being fetched ahead, stops the
+     * background threads and gives the shared transport and cache back
+     */
+    public synchronized void close() {
+        this.lookahead.values().forEach(Lookahead::cancel);
+        this.lookahead.clear();
+        if (this.prefetchExecutor != null) {
+            this.prefetchExecutor.shutdownNow();
+        }
+        if (this.client != null) {
+            this.client.release();
+            this.client = null;
+            this.service = null;
+        }
+        if (this.cache != null) {
+            this.cache.release();
+            this.cache = null;
+        }
     }
 
     /**
@@ -56,7 +146,10 @@ public class GAReportFetcher {
     }
 
     /**
-     * Initializes an Analytics Reporting API V4 service object.
+     * Initializes an Analytics Reporting API V4 service object. Transport and
+     * credential are shared with the other tasks of the worker that use the same
+     * service account, the response cache with those that use the same cache
+     * settings.
      *
      * @throws IOException
      *             might fail
@@ -64,18 +157,100 @@ public class GAReportFetcher {
      *             might fail
      */
     protected AnalyticsReporting getAnalyticsService() throws GeneralSecurityException, IOException {
-
-        HttpTransport httpTransport = GoogleNetHttpTransport.newTrustedTransport();
-        GoogleCredential credential = GoogleCredential.fromStream(this.conf.getGoogleConfigurationAsInputStream())
-                .createScoped(AnalyticsReportingScopes.all());
+        if (this.client == null) {
+            this.client = SharedGoogleClient.acquire(this.conf);
+        }
+        if (this.cache == null && this.conf.isCacheEnabled()) {
+            this.cache = ReportCache.acquire(this.conf);
+        }
 
         // Construct the Analytics Reporting service object.
-        AnalyticsReporting service = new AnalyticsReporting.Builder(httpTransport, JSON_FACTORY, credential)
-                .setApplicationName(APPLICATION_NAME).build();
+        AnalyticsReporting service = new AnalyticsReporting.Builder(this.client.getTransport(), JSON_FACTORY,
+                this.client.getCredential()).setApplicationName(APPLICATION_NAME).setRootUrl(this.conf.getRootUrl())
+                        .build();
 
         return service;
     }
 
+    /**
+     * Queries the Analytics Reporting API V4. If prefetching is enabled, the page
+     * is taken from the lookahead queue of the report and the following pages are
+     * requested in the background while the caller processes this one.
+     *
+     * @param report
+     *            the report to query
+     * @param viewId
+     *            the view to query
+     * @param dateRange
+     *            the date range to query
+     * @param pageToken
+     *            the page to fetch
+     * @param dateHourMinuteAfter
+     *            only fetch rows with a later dateHourMinute, null for all rows
+     * @param pageSize
+     *            the exact size of the page, 0 to let the page sizer decide
+     * @return GetReportResponse The Analytics Reporting API V4 response.
+     * @throws IOException
+     *             might fail
+     */
+    protected Report getReport(ReportDefinition report, String viewId, DateRange dateRange, String pageToken,
+            String dateHourMinuteAfter, int pageSize) throws IOException {
+        if (this.prefetchExecutor == null || pageSize > 0) {
+            // the lookahead pages with the page sizer, a page of a given size is fetched on its own
+            return this.fetchReport(report, viewId, dateRange, pageToken, dateHourMinuteAfter, pageSize);
+        }
+
+        // the caller may change its date range, the background fetches must not see that
+        DateRange range = new DateRange().setStartDate(dateRange.getStartDate()).setEndDate(dateRange.getEndDate());
+        return this.getPrefetchedReport(report, viewId, range, pageToken, dateHourMinuteAfter);
+    }
+
+    /**
+     * Serves the page from the lookahead of its report if it was fetched
+     * ahead, and keeps that lookahead filled. Every report has a lookahead with
+     * a lock of its own, callers never wait for the pages of another report.
+     */
+    private Report getPrefetchedReport(ReportDefinition report, String viewId, DateRange dateRange,
+            String pageToken, String dateHourMinuteAfter) throws IOException {
+        String reportKey = report.getName() + "|" + viewId + "|" + dateRange.getStartDate() + "|"
+                + dateRange.getEndDate() + "|" + dateHourMinuteAfter;
+        // a state has a single page in flight, taking the lookahead out keeps it to this caller
+        Lookahead lookahead = this.lookahead.remove(reportKey);
+
+        Report page = null;
+        if (lookahead != null) {
+            try {
+                page = lookahead.take(pageToken);
+            } catch (IOException e) {
+                lookahead.cancel();
+                throw e;
+            }
+            if (page == null) {
+                // the caller jumped to another page, the lookahead is of no use
+                lookahead.cancel();
+                lookahead = null;
+            }
+        }
+
+        if (page == null) {
+            page = this.fetchReport(report, viewId, dateRange, pageToken, dateHourMinuteAfter, 0);
+        }
+
+        if (page.getNextPageToken() == null) {
+            if (lookahead != null) {
+                lookahead.cancel();
+            }
+            return page;
+        }
+
+        if (lookahead == null) {
+            lookahead = new Lookahead(report, viewId, dateRange, dateHourMinuteAfter, page.getNextPageToken());
+        }
+        lookahead.fill();
+        this.lookahead.put(reportKey, lookahead);
+        return page;
+    }
+
     /**
      * Queries the Analytics Reporting API V4.
      *
@@ -83,33 +258,466 @@ public class GAReportFetcher {
      * @throws IOException
      *             might fail
      */
-    protected Report getReport(DateRange dateRange, String pageToken) throws IOException {
-        // Create the ReportRequest object.
-        ReportRequest request = new ReportRequest().setViewId(this.conf.getViewId())
-                .setDateRanges(Collections.singletonList(dateRange)).setMetrics(this.getMetricsFromConfig())
-                .setDimensions(this.getDimensionsFromConfig()).setPageToken(pageToken);
+    private Report fetchReport(ReportDefinition report, String viewId, DateRange dateRange, String pageToken,
+            String dateHourMinuteAfter, int pageSize) throws IOException {
+        BitSet pinned = new BitSet();
+        pinned.set(0, pageSize > 0);
+        return this.getReports(Collections.singletonList(
+                this.buildReportRequest(report, viewId, dateRange, pageToken, dateHourMinuteAfter, pageSize)),
+                pinned).get(0);
+    }
+
+    /**
+     * Creates the request for a single page of a report, as large as the page
+     * sizer currently allows
+     *
+     * @param report
+     *            the report to query
+     * @param viewId
+     *            the view to query
+     * @param dateRange
+     *            the date range to query
+     * @param pageToken
+     *            the page to fetch
+     * @param dateHourMinuteAfter
+     *            only request rows with a later dateHourMinute, null for all rows
+     * @return the request, ready to be passed to {@link #getReports(List)}
+     */
+    public ReportRequest buildReportRequest(ReportDefinition report, String viewId, DateRange dateRange,
+            String pageToken, String dateHourMinuteAfter) {
+        return this.buildReportRequest(report, viewId, dateRange, pageToken, dateHourMinuteAfter, 0);
+    }
+
+    /**
+     * Creates the request for a single page of a report
+     *
+     * @param pageSize
+     *            the size of the page, 0 for as large as the page sizer currently
+     *            allows
+     * @see #buildReportRequest(ReportDefinition, String, DateRange, String,
+     *      String)
+     */
+    public ReportRequest buildReportRequest(ReportDefinition report, String viewId, DateRange dateRange,
+            String pageToken, String dateHourMinuteAfter, int pageSize) {
+        ReportRequest request = new ReportRequest().setViewId(viewId)
+                .setDateRanges(Collections.singletonList(dateRange)).setMetrics(this.getMetrics(report))
+                .setDimensions(this.getDimensions(report)).setPageToken(pageToken)
+                .setPageSize(pageSize > 0 ? pageSize : this.pageSizer.getPageSize());
+        if (this.conf.isFetchHideTotals()) {
+            request.setHideTotals(true).setHideValueRanges(true);
+        }
+        if (this.conf.isFetchIncludeEmptyRows()) {
+            request.setIncludeEmptyRows(true);
+        }
+        if (dateHourMinuteAfter != null) {
+            // dateHourMinute is a yyyyMMddHHmm number, so GA can filter on it numerically
+            DimensionFilter filter = new DimensionFilter().setDimensionName(DATE_HOUR_MINUTE)
+                    .setOperator("NUMERIC_GREATER_THAN").setExpressions(Collections.singletonList(dateHourMinuteAfter));
+            request.setDimensionFilterClauses(Collections
+                    .singletonList(new DimensionFilterClause().setFilters(Collections.singletonList(filter))));
+        }
+        return request;
+    }
+
+    /**
+     * Queries the Analytics Reporting API V4 for several reports at once. The API
+     * only allows requests in the same batchGet call if they share view, date
+     * ranges and sampling level, so the requests are grouped by those and every
+     * group is sent in calls of up to {@link #MAX_REQUESTS_PER_BATCH} requests.
+     * Every call waits for the quota and is retried on quota and server errors.
+     * Requests the response cache can answer are not sent at all.
+     *
+     * @param requests
+     *            the requests to send
+     * @return the reports, in the same order as the requests
+     * @throws IOException
+     *             might fail
+     */
+    protected List<Report> getReports(List<ReportRequest> requests) throws IOException {
+        return this.getReports(requests, new BitSet());
+    }
+
+    /**
+     * Queries the Analytics Reporting API V4 for several reports at once, some
+     * of them with a page size that must not change. Retries keep the size of
+     * those pages, and the cache only answers them with pages at least as large.
+     *
+     * @param requests
+     *            the requests to send
+     * @param pinned
+     *            the positions of the requests whose page size must not change
+     * @return the reports, in the same order as the requests
+     * @throws IOException
+     *             might fail
+     * @see #getReports(List)
+     */
+    protected List<Report> getReports(List<ReportRequest> requests, BitSet pinned) throws IOException {
+        Report[] reports = new Report[requests.size()];
+        Map<String, List<Integer>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < requests.size(); i++) {
+            if (this.cache != null) {
+                reports[i] = this.cache.get(requests.get(i));
+                if (reports[i] != null && pinned.get(i) && reports[i].getNextPageToken() != null
+                        && FetchedPage.rows(reports[i]) < pageSize(requests.get(i))) {
+                    // the cached page ends before the one asked for
+                    reports[i] = null;
+                }
+                if (reports[i] != null) {
+                    this.metrics.recordCacheHit();
+                    continue;
+                }
+                this.metrics.recordCacheMiss();
+            }
+            groups.computeIfAbsent(this.batchKey(requests.get(i)), k -> new ArrayList<>()).add(i);
+        }
 
-        ArrayList<ReportRequest> requests = new ArrayList<ReportRequest>();
-        requests.add(request);
+        for (List<Integer> group : groups.values()) {
+            for (int from = 0; from < group.size(); from += MAX_REQUESTS_PER_BATCH) {
+                List<Integer> batch = group.subList(from, Math.min(from + MAX_REQUESTS_PER_BATCH, group.size()));
 
-        // Create the GetReportsRequest object.
-        GetReportsRequest getReport = new GetReportsRequest().setReportRequests(requests);
+                // Create the GetReportsRequest object.
+                GetReportsRequest getReport = new GetReportsRequest()
+                        .setReportRequests(batch.stream().map(requests::get).collect(Collectors.toList()));
+                BitSet batchPinned = new BitSet();
+                for (int i = 0; i < batch.size(); i++) {
+                    batchPinned.set(i, pinned.get(batch.get(i)));
+                }
 
-        // Call the batchGet method.
-        GetReportsResponse response = service.reports().batchGet(getReport).execute();
+                // Call the batchGet method, the reports come back in request order
+                GetReportsResponse response = this.execute(getReport, requests.get(batch.get(0)).getViewId(),
+                        (content, charset) -> JSON_FACTORY.fromInputStream(content, charset,
+                                GetReportsResponse.class),
+                        r -> r.getReports().stream().mapToInt(FetchedPage::rows).sum(), batchPinned);
+                for (int i = 0; i < batch.size(); i++) {
+                    reports[batch.get(i)] = response.getReports().get(i);
+                    if (this.cache != null) {
+                        this.cache.put(requests.get(batch.get(i)), reports[batch.get(i)]);
+                    }
+                }
+            }
+        }
+        return Arrays.asList(reports);
+    }
 
-        // Return the response.
-        return response.getReports().get(0);
+    /**
+     * Queries the Analytics Reporting API V4 for a single page and decodes the
+     * response into structs while it streams in. The page bypasses the response
+     * cache and the lookahead, both keep reports.
+     *
+     * @param report
+     *            the report to query
+     * @param viewId
+     *            the view to query
+     * @param dateRange
+     *            the date range to query
+     * @param pageToken
+     *            the page to fetch
+     * @param dateHourMinuteAfter
+     *            only fetch rows with a later dateHourMinute, null for all rows
+     * @param pageSize
+     *            the exact size of the page, 0 to let the page sizer decide
+     * @param decoder
+     *            turns the response into structs
+     * @return the structs of the page
+     * @throws IOException
+     *             might fail
+     */
+    public StreamingReportDecoder.DecodedReport getDecodedReport(ReportDefinition report, String viewId,
+            DateRange dateRange, String pageToken, String dateHourMinuteAfter, int pageSize,
+            StreamingReportDecoder decoder) throws IOException {
+        GetReportsRequest request = new GetReportsRequest().setReportRequests(Collections.singletonList(
+                this.buildReportRequest(report, viewId, dateRange, pageToken, dateHourMinuteAfter, pageSize)));
+        ReportRequest reportRequest = request.getReportRequests().get(0);
+        BitSet pinned = new BitSet();
+        pinned.set(0, pageSize > 0);
+        return this.execute(request, viewId,
+                (content, charset) -> decoder.decode(content, charset, pageSize(reportRequest)),
+                reports -> reports.get(0).getPageRows(), pinned).get(0);
     }
 
-    private List<Metric> getMetricsFromConfig() {
-        return this.conf.getMeasures().stream().map((m) -> new Metric().setExpression("ga:" + m).setAlias(m))
+    /**
+     * Sends a batchGet call once the quota allows it, failed calls are retried
+     * with backoff as long as the retry policy allows. The response comes gzipped
+     * and limited to the configured fields. It is decoded through a counting
+     * stream, so its size and decode time end up in the metrics next to the
+     * request latency, and in the page sizer. A retry asks for pages of the size
+     * the page sizer allows after the failure, unless their size is pinned.
+     *
+     * @param request
+     *            the call to send
+     * @param viewId
+     *            the view all reports of the call are for
+     * @param decoder
+     *            decodes the body of the response
+     * @param rowCounter
+     *            counts the rows of all pages of a decoded response
+     * @param pinned
+     *            the positions of the requests whose page size must not change
+     * @return the decoded response of the first successful attempt
+     * @throws IOException
+     *             the failure of the last attempt
+     */
+    private <T> T execute(GetReportsRequest request, String viewId, ResponseDecoder<T> decoder,
+            ToIntFunction<T> rowCounter, BitSet pinned) throws IOException {
+        for (int failures = 0;; failures++) {
+            long waitStart = System.nanoTime();
+            try {
+                this.quotaLimiter.acquire(viewId);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the quota of view " + viewId);
+            }
+            long requestStart = System.nanoTime();
+            this.metrics.recordQuotaWait(requestStart - waitStart);
+
+            IOException failure;
+            try {
+                AnalyticsReporting.Reports.BatchGet batchGet = service.reports().batchGet(request);
+                if (!this.conf.getFetchFields().isEmpty()) {
+                    batchGet.setFields(this.conf.getFetchFields());
+                }
+                batchGet.getRequestHeaders().setAcceptEncoding(GZIP);
+                HttpResponse response = batchGet.executeUnparsed();
+                long parseStart = System.nanoTime();
+                this.metrics.recordRequest(parseStart - requestStart);
+
+                // closes the stream, which hands the connection back to the pool
+                CountingInputStream content = new CountingInputStream(response.getContent());
+                T reports = decoder.decode(content, response.getContentCharset());
+                long end = System.nanoTime();
+                this.metrics.recordResponse(content.getCount(), end - parseStart);
+                int requestedRows = request.getReportRequests().stream().mapToInt(GAReportFetcher::pageSize).sum();
+                this.pageSizer.recordResponse(requestedRows, rowCounter.applyAsInt(reports), end - requestStart,
+                        content.getCount());
+                return reports;
+            } catch (IOException e) {
+                failure = e;
+            }
+            this.pageSizer.recordFailure(failure);
+
+            if (failures + 1 >= this.retryPolicy.getMaxAttempts() || !this.retryPolicy.isRetryable(failure)) {
+                throw failure;
+            }
+            long backoff = this.retryPolicy.getBackoffMs(failures + 1);
+            this.metrics.recordRetry(backoff);
+            log.warn("Request for view " + viewId + " failed (" + failure.getMessage() + "), attempt "
+                    + (failures + 1) + " of " + this.retryPolicy.getMaxAttempts() + ", retrying in " + backoff + "ms");
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while backing off from a failed request");
+            }
+            // pages start at their token, so the page size may change between attempts
+            for (int i = 0; i < request.getReportRequests().size(); i++) {
+                if (!pinned.get(i)) {
+                    request.getReportRequests().get(i).setPageSize(this.pageSizer.getPageSize());
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the rows the request asks for, GA pages 1000 if it does not say
+     */
+    private static int pageSize(ReportRequest request) {
+        return request.getPageSize() == null ? GAConnectorConfig.FETCH_PAGE_SIZE_DEFAULT : request.getPageSize();
+    }
+
+    private String batchKey(ReportRequest request) {
+        StringBuilder key = new StringBuilder(request.getViewId()).append('|').append(request.getSamplingLevel());
+        for (DateRange range : request.getDateRanges()) {
+            key.append('|').append(range.getStartDate()).append('-').append(range.getEndDate());
+        }
+        return key.toString();
+    }
+
+    private List<Metric> getMetrics(ReportDefinition report) {
+        return report.getMeasures().stream().map((m) -> new Metric().setExpression("ga:" + m).setAlias(m))
                 .collect(Collectors.toList());
     }
 
-    private List<Dimension> getDimensionsFromConfig() {
-        return this.conf.getDimensions().stream().map((m) -> new Dimension().setName("ga:" + m))
+    private List<Dimension> getDimensions(ReportDefinition report) {
+        return report.getDimensions().stream().map((m) -> new Dimension().setName("ga:" + m))
                 .collect(Collectors.toList());
     }
 
-}
\ No newline at end of file
+    /**
+     * Decodes the body of a batchGet response and closes it
+     */
+    private interface ResponseDecoder<T> {
+        T decode(InputStream content, Charset charset) throws IOException;
+    }
+
+    /**
+     * Counts the bytes read through it
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        private long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                this.count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                this.count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            this.count += skipped;
+            return skipped;
+        }
+
+        long getCount() {
+            return this.count;
+        }
+    }
+
+    /**
+     * The pages of a report fetched ahead in the background, at most
+     * prefetch.depth of them. The pages are fetched one after the other on the
+     * prefetch threads, each on the token of the page before. Only bookkeeping
+     * happens under the lock of the lookahead, never a fetch. Cancelling
+     * interrupts the fetch in flight, which ends it while it waits for the
+     * quota or backs off from a failure.
+     */
+    private class Lookahead {
+        private final ReportDefinition report;
+        private final String viewId;
+        private final DateRange dateRange;
+        private final String dateHourMinuteAfter;
+
+        private final Deque<PrefetchedPage> pages = new ArrayDeque<>();
+        // the page to fetch next, null once the last page of the report was fetched
+        private String nextToken;
+        private String inFlightToken;
+        private Future<?> inFlight;
+        // the failure of the page at nextToken, the lookahead stops there
+        private IOException failure;
+        private boolean cancelled;
+
+        Lookahead(ReportDefinition report, String viewId, DateRange dateRange, String dateHourMinuteAfter,
+                String nextToken) {
+            this.report = report;
+            this.viewId = viewId;
+            this.dateRange = dateRange;
+            this.dateHourMinuteAfter = dateHourMinuteAfter;
+            this.nextToken = nextToken;
+        }
+
+        /**
+         * Waits for the page if it is the one being fetched
+         *
+         * @return the page, null if it is neither fetched nor being fetched
+         * @throws IOException
+         *             the page could not be fetched
+         */
+        synchronized Report take(String pageToken) throws IOException {
+            while (this.pages.isEmpty() && !this.cancelled && this.inFlight != null
+                    && pageToken.equals(this.inFlightToken)) {
+                try {
+                    this.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException(
+                            "Interrupted while waiting for page " + pageToken + " of view " + this.viewId);
+                }
+            }
+            if (!this.pages.isEmpty()) {
+                return pageToken.equals(this.pages.peek().pageToken) ? this.pages.poll().report : null;
+            }
+            if (this.failure != null && pageToken.equals(this.nextToken)) {
+                throw this.failure;
+            }
+            return null;
+        }
+
+        /**
+         * Starts fetching the next page unless the lookahead is full or a page
+         * is in flight already
+         */
+        synchronized void fill() {
+            if (this.cancelled || this.inFlight != null || this.failure != null || this.nextToken == null
+                    || this.pages.size() >= conf.getPrefetchDepth()) {
+                return;
+            }
+            String pageToken = this.nextToken;
+            try {
+                this.inFlight = prefetchExecutor.submit(() -> this.fetch(pageToken));
+                this.inFlightToken = pageToken;
+            } catch (RejectedExecutionException e) {
+                // the fetcher was closed
+                this.cancelled = true;
+            }
+        }
+
+        /**
+         * Runs on the prefetch threads
+         */
+        private void fetch(String pageToken) {
+            Report page = null;
+            IOException failure = null;
+            try {
+                page = fetchReport(this.report, this.viewId, this.dateRange, pageToken, this.dateHourMinuteAfter,
+                        0);
+            } catch (IOException e) {
+                failure = e;
+            } catch (RuntimeException e) {
+                failure = new IOException(e);
+            }
+
+            synchronized (this) {
+                this.inFlight = null;
+                if (this.cancelled) {
+                    return;
+                }
+                if (failure != null) {
+                    this.failure = failure;
+                } else {
+                    this.pages.add(new PrefetchedPage(pageToken, page));
+                    this.nextToken = page.getNextPageToken();
+                }
+                this.notifyAll();
+                this.fill();
+            }
+        }
+
+        synchronized void cancel() {
+            this.cancelled = true;
+            this.pages.clear();
+            if (this.inFlight != null) {
+                this.inFlight.cancel(true);
+            }
+            this.notifyAll();
+        }
+    }
+
+    /**
+     * A page of a report together with the token it was requested with
+     */
+    private static class PrefetchedPage {
+        private final String pageToken;
+        private final Report report;
+
+        PrefetchedPage(String pageToken, Report report) {
+            this.pageToken = pageToken;
+            this.report = report;
+        }
+    }
+}
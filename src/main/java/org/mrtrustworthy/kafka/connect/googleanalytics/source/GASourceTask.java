@@ -1,13 +1,30 @@
 package org.mrtrustworthy.kafka.connect.googleanalytics.source;
 
 import java.io.IOException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
-
-import org.apache.kafka.connect.data.Struct;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.connect.data.Schema;
 import org.apache.kafka.connect.source.SourceRecord;
 import org.apache.kafka.connect.source.SourceTask;
 import org.apache.kafka.connect.source.SourceTaskContext;
@@ -17,23 +34,47 @@ import org.slf4j.LoggerFactory;
 
 import com.google.api.services.analyticsreporting.v4.model.DateRange;
 import com.google.api.services.analyticsreporting.v4.model.Report;
+import com.google.api.services.analyticsreporting.v4.model.ReportRequest;
+import com.google.api.services.analyticsreporting.v4.model.ReportRow;
 
 public class GASourceTask extends SourceTask {
     private static final Logger log = LoggerFactory.getLogger(GASourceConnector.class);
-    private static final String FETCH_END_DATE = "yesterday";
-    private static final String DEFAULT_START_DATE = "1DaysAgo";
-    private static final String PROCESS_FROM = "30DaysAgo";
-    private static final long DAY_IN_MS = 86400000;
-
+    private static final String INTRADAY_DATE = "today";
+    private static final String DATE_HOUR_MINUTE = "ga:dateHourMinute";
+    private static final DateTimeFormatter DATE_HOUR_MINUTE_FORMAT = DateTimeFormatter.ofPattern("yyyyMMddHHmm");
+    // how long poll() waits for fetched pages before handing control back to the worker
+    private static final long POLL_TIMEOUT_MS = 100;
+    private static final long STOP_TIMEOUT_MS = 10000;
+
+    // one fetcher, and with it one quota limiter and connection pool, for all reports of the task
     private GAReportFetcher fetcher;
     private GAConnectorConfig config;
-    private ReportParser reportParser;
-
-    // https://kafka.apache.org/documentation/#connect_resuming
-    private String pageToken;
-    private DateRange dateRange;
-    private Date lastProcessedDate;
-    private boolean completed;
+    private final Map<ReportDefinition, ReportParser> reportParsers = new HashMap<>();
+    // optional: decode responses into structs on the fetch threads
+    private final Map<ReportDefinition, StreamingReportDecoder> decoders = new HashMap<>();
+    private RetryPolicy retryPolicy;
+    private TaskMetrics metrics;
+    // optional: sums up the rows of a run into hour or day windows, null emits every row
+    private RollupStage rollup;
+    // optional: leaves out rows that were emitted before with the same metrics, null emits every row
+    private ChangeDetector changes;
+
+    // backfill shards and views of every report this task is responsible for
+    private List<ViewState> states;
+    private int nextState;
+
+    // pages are fetched in the background and handed to poll() through a bounded queue
+    private ScheduledExecutorService scheduler;
+    private ExecutorService fetchExecutor;
+    private BlockingQueue<FetchedPage> fetchedPages;
+    private final AtomicInteger fetchesInFlight = new AtomicInteger();
+    private volatile RuntimeException fetchFailure;
+    private volatile boolean stopping;
+
+    // optional: pages wait on disk, the journal learns from the last record of a page when it was written
+    private PageJournal journal;
+    private final Map<Map<String, ?>, List<Long>> lastRecordOfPage = Collections
+            .synchronizedMap(new IdentityHashMap<>());
 
     public void setFetcher(GAReportFetcher fetcher) {
         this.fetcher = fetcher;
@@ -43,34 +84,146 @@ public class GASourceTask extends SourceTask {
         this.config = config;
     }
 
+    /**
+     * @param reportParser
+     *            the parser of every report of the config
+     */
     public void setReportParser(ReportParser reportParser) {
-        this.reportParser = reportParser;
+        for (ReportDefinition report : this.config.getReports()) {
+            this.reportParsers.put(report, reportParser);
+        }
+    }
+
+    public void setMetrics(TaskMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public TaskMetrics getMetrics() {
+        return metrics;
     }
 
     @Override
     public void initialize(SourceTaskContext context) {
-        init();
         this.context = context;
     }
 
-    private void init() {
-        DateRange range = new DateRange();
-        range.setStartDate(PROCESS_FROM);
-        range.setEndDate(FETCH_END_DATE);
+    /**
+     * @param resolved
+     *            the horizon from process.from up to yesterday as of today
+     * @param horizons
+     *            the horizons kept in the offsets, by the partition of the view
+     *            they belong to; views without one get the resolved horizon
+     */
+    private void init(BackfillHorizon resolved, Map<Map<String, String>, BackfillHorizon> horizons) {
+        this.states = new ArrayList<>();
+        for (ReportDefinition report : this.config.getReports()) {
+            for (String viewId : report.getViewIds()) {
+                ViewState view = new ViewState(report, viewId, null, new DateRange());
+                BackfillHorizon horizon = horizons.getOrDefault(view.getSourcePartition(), resolved);
+                this.states.addAll(this.createBackfillShards(report, viewId, horizon));
+
+                // the backfill covers everything up to its horizon, the view takes over after it
+                view.getDateRange().setStartDate(horizon.getTo().toString());
+                view.getDateRange().setEndDate(horizon.getTo().toString());
+                view.setCompleted(true);
+                this.states.add(view);
+
+                if (this.config.isIntradayEnabled()) {
+                    DateRange intradayRange = new DateRange();
+                    intradayRange.setStartDate(INTRADAY_DATE);
+                    intradayRange.setEndDate(INTRADAY_DATE);
+                    this.states.add(ViewState.intraday(report, viewId, intradayRange));
+                }
+            }
+        }
+        this.nextState = 0;
+        this.rollup = this.config.getRollupWindow() == RollupStage.Window.NONE ? null
+                : new RollupStage(this.config.getRollupWindow());
+        this.changes = this.config.isChangeDetectionEnabled()
+                ? new ChangeDetector(this.config.getChangeDetectionRows()) : null;
+        this.retryPolicy = new RetryPolicy(this.config.getRetryMaxAttempts(), this.config.getRetryBackoffMs(),
+                this.config.getRetryBackoffMaxMs());
+
+        AtomicInteger threadCount = new AtomicInteger();
+        this.fetchExecutor = Executors.newFixedThreadPool(Math.max(1, this.config.getBackfillThreads()), r -> {
+            Thread thread = new Thread(r, "ga-fetch-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.fetchedPages = new ArrayBlockingQueue<>(Math.max(1, this.config.getFetchQueuePages()));
+    }
 
-        this.pageToken = "0";
-        this.dateRange = range;
-        this.lastProcessedDate = new Date();
-        this.completed = false;
+    /**
+     * Looks up the horizons the backfills of the views were started with. Any
+     * shard that committed an offset has it, the shards are looked for at the
+     * positions the resolved horizon has. Views without a committed shard get
+     * the resolved horizon.
+     *
+     * @param resolved
+     *            the horizon from process.from up to yesterday as of today
+     * @return the horizons kept in the offsets, by the partition of the view
+     *         they belong to
+     */
+    private Map<Map<String, String>, BackfillHorizon> loadHorizons(BackfillHorizon resolved) {
+        List<ViewState> candidates = new ArrayList<>();
+        List<Map<String, String>> partitions = new ArrayList<>();
+        for (ReportDefinition report : this.config.getReports()) {
+            for (String viewId : report.getViewIds()) {
+                for (ViewState shard : this.createBackfillShards(report, viewId, resolved)) {
+                    candidates.add(shard);
+                    partitions.add(shard.getSourcePartition());
+                }
+            }
+        }
+        Map<Map<String, String>, BackfillHorizon> horizons = new HashMap<>();
+        if (partitions.isEmpty()) {
+            return horizons;
+        }
+        Map<Map<String, String>, Map<String, Object>> offsets = this.context.offsetStorageReader()
+                .offsets(partitions);
+        for (ViewState shard : candidates) {
+            BackfillHorizon horizon = BackfillHorizon.fromOffset(offsets.get(shard.getSourcePartition()));
+            Map<String, String> view = new ViewState(shard.getReport(), shard.getViewId(), null, new DateRange())
+                    .getSourcePartition();
+            if (horizon != null && !horizons.containsKey(view)) {
+                log.info("The backfill of " + view + " covers " + horizon);
+                horizons.put(view, horizon);
+            }
+        }
+        return horizons;
+    }
+
+    /**
+     * Splits the horizon into shards of its number of days. Shards are named by
+     * their position, the partitions of a horizon stay the same on every start.
+     *
+     * @param report
+     *            the report to backfill
+     * @param viewId
+     *            the view to backfill
+     * @param horizon
+     *            the days to backfill
+     * @return one state per shard, oldest first
+     */
+    private List<ViewState> createBackfillShards(ReportDefinition report, String viewId, BackfillHorizon horizon) {
+        List<ViewState> shards = new ArrayList<>();
+        for (int i = 0; i < horizon.getShardCount(); i++) {
+            ViewState shard = new ViewState(report, viewId, Integer.toString(i), horizon.getShard(i));
+            shard.setHorizon(horizon);
+            shards.add(shard);
+        }
+        return shards;
     }
 
     /**
      * This should be the only place where the topic name is assembled
      * 
+     * @param report
+     *            the report the records belong to
      * @return the topic name
      */
-    private String buildTopicName() {
-        return this.config.getTopicName();
+    private String buildTopicName(ReportDefinition report) {
+        return report.getTopicName();
     }
 
     @Override
@@ -81,93 +234,744 @@ public class GASourceTask extends SourceTask {
     @Override
     public void start(Map<String, String> props) {
         this.config = GAConnectorConfig.fromConfigMap(props, GAConnectorConfig.ConfigType.TASK_CONFIG);
-        this.fetcher = new GAReportFetcher(this.config);
-        this.reportParser = new ReportParser();
+        this.metrics = new TaskMetrics(this.config);
+        this.fetcher = new GAReportFetcher(this.config, this.metrics);
+        // every report has schemas of its own, the url hashes are the same for all
+        UrlHasher urlHasher = new UrlHasher(this.config.getUrlHashAlgorithm(), this.config.getUrlHashCacheSize());
+        for (ReportDefinition report : this.config.getReports()) {
+            ReportParser parser = new ReportParser(urlHasher, this.config.getDuplicateKeyPolicy());
+            this.reportParsers.put(report, parser);
+            if (this.config.isFetchDecodeStreaming()) {
+                this.decoders.put(report, new StreamingReportDecoder(parser, this.buildTopicName(report)));
+            }
+        }
+        BackfillHorizon resolved = BackfillHorizon.resolve(this.config.getProcessFrom(),
+                this.config.getBackfillShardDays(), LocalDate.now());
+        this.init(resolved, this.loadHorizons(resolved));
+        if (this.changes != null) {
+            this.metrics.addChangeDetectorGauge(this.changes);
+        }
+        this.loadOffsets();
+        if (this.config.isJournalEnabled() && this.config.isFetchDecodeStreaming()) {
+            log.warn("The journal keeps reports, it is not used while responses are decoded as they stream in");
+        } else if (this.config.isJournalEnabled()) {
+            this.openJournal();
+        }
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "ga-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // every finished fetch schedules the next ones right away, the fixed delay only
+        // picks up views that became due again after a day
+        this.scheduler.scheduleWithFixedDelay(this::scheduleFetches, 0, this.config.getPollingFrequency(),
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Restores all states from the offset storage in a single lookup. The
+     * offsets only matter at startup, from then on the states keep track of
+     * their progress themselves.
+     */
+    private void loadOffsets() {
+        List<Map<String, String>> partitions = new ArrayList<>(this.states.size());
+        for (ViewState state : this.states) {
+            partitions.add(state.getSourcePartition());
+        }
+        Map<Map<String, String>, Map<String, Object>> offsets = this.context.offsetStorageReader()
+                .offsets(partitions);
+        for (ViewState state : this.states) {
+            Map<String, Object> offset = offsets.get(state.getSourcePartition());
+            state.applyOffset(offset);
+            if (offset != null) {
+                log.info("Last recorded offset of " + state.getSourcePartition() + " is == " + offset);
+            }
+        }
     }
 
+    /**
+     * Opens the journal of the task and hands the pages that continue where the
+     * committed offsets left off to their states, those are emitted from the
+     * journal before anything is requested from GA. Pages whose offsets were
+     * committed already are acknowledged right away.
+     */
+    private void openJournal() {
+        Path directory = Paths.get(this.config.getJournalDir(),
+                this.config.getConnectorName() + "-" + this.config.getTaskId());
+        Map<Map<String, String>, ViewState> statesByPartition = new HashMap<>();
+        for (ViewState state : this.states) {
+            statesByPartition.put(state.getSourcePartition(), state);
+        }
+
+        int replayed = 0;
+        try {
+            this.journal = new PageJournal(directory, this.config.getJournalSegmentBytes());
+            for (long seq = this.journal.getFirstSeq(); seq < this.journal.getNextSeq(); seq++) {
+                PageJournal.Entry entry = this.journal.read(seq);
+                ViewState state = statesByPartition.get(entry.getPartition());
+                if (state == null || !state.isAt(entry.getPageOffset())) {
+                    this.journal.ack(seq);
+                    continue;
+                }
+                state.addJournaledPage(new FetchedPage(state, state.getSourceOffset(), entry.getNextOffset(),
+                        state.getSkipRows(), FetchedPage.rows(entry.getReport()), seq));
+                state.applyOffset(entry.getNextOffset());
+                replayed++;
+            }
+        } catch (IOException e) {
+            throw new KafkaException("Could not open the page journal in " + directory, e);
+        }
+        if (replayed > 0) {
+            log.info("Emitting " + replayed + " pages from the journal in " + directory);
+        }
+    }
+
+    /**
+     * Turns the pages fetched in the background into records. Waits at most
+     * {@link #POLL_TIMEOUT_MS} for a page, so the worker thread is never held up
+     * by a slow request.
+     */
     @Override
     public List<SourceRecord> poll() throws InterruptedException {
+        if (this.stopping) {
+            return null;
+        }
+        if (this.fetchFailure != null) {
+            throw new KafkaException("Fetching pages failed", this.fetchFailure);
+        }
+
+        FetchedPage first = this.fetchedPages.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        if (first == null) {
+            return null;
+        }
+        List<FetchedPage> pages = new ArrayList<>();
+        pages.add(first);
+        this.fetchedPages.drainTo(pages);
+
         final ArrayList<SourceRecord> records = new ArrayList<>();
-        this.fetcher.maybeInitializeAnalyticsReporting();
-        Map<String, Object> offset = context.offsetStorageReader()
-                .offset(Collections.singletonMap("key", "lastProcessedDate"));
+        for (FetchedPage page : pages) {
+            Report report = page.getReport();
+            if (page.isJournaled()) {
+                report = this.readJournaled(page);
+                if (report == null) {
+                    // the journal is closed, the pages are emitted again after the restart
+                    return null;
+                }
+            }
 
-        long diff = new Date().getTime() - this.lastProcessedDate.getTime();
+            long parseStart = System.nanoTime();
+            // pages decoded while they streamed in were turned into structs on the fetch threads
+            ReportDefinition definition = page.getState().getReport();
+            RecordBatch structs = page.getStructs() != null ? page.getStructs()
+                    : this.reportParsers.get(definition).parseReport(report, this.buildTopicName(definition));
+            long buildStart = System.nanoTime();
+            // rows emitted before a restart are skipped
+            int from = Math.min(page.getSkipRows(), structs.size());
+            RollupStage.Rollup rolledUp = null;
+            if (this.rollup != null) {
+                // the rows wait in the rollup until the last page of their run arrived
+                rolledUp = this.rollup.add(page, structs, from);
+                structs = rolledUp == null ? null : rolledUp.getStructs();
+                from = 0;
+            }
+            int emitted = 0;
+            if (structs != null) {
+                int[] rows = this.changes == null ? null : this.changes.filter(page.getState(), structs, from);
+                emitted = rows == null ? structs.size() - from : rows.length;
+                records.ensureCapacity(records.size() + emitted);
+                for (int i = 0; i < emitted; i++) {
+                    int row = rows == null ? from + i : rows[i];
+                    // unchanged rows after the last record are done with it, it takes the offset after the page
+                    Map<String, Object> offset = i == emitted - 1 ? page.getNextOffset()
+                            : rolledUp == null ? page.getSourceOffset(row, structs.size())
+                                    : rolledUp.getSourceOffset(row);
+                    records.add(this.buildSourceRecord(page, structs, row, offset));
+                }
+                if (rows != null) {
+                    this.metrics.recordUnchangedRows(structs.size() - from - emitted);
+                }
+            }
+            if (page.getStructs() == null) {
+                this.metrics.recordStructBuild(buildStart - parseStart);
+            }
+            this.metrics.recordRecordBuild(System.nanoTime() - buildStart, emitted);
+            // rows held back by the rollup are emitted with the last page of their run
+            boolean heldBack = this.rollup != null && rolledUp == null;
+            boolean heartbeat = emitted == 0 && !heldBack && !this.config.getHeartbeatTopic().isEmpty();
+            if (heartbeat) {
+                // no record carries the offset after the page, a heartbeat does
+                records.add(this.buildHeartbeatRecord(page));
+            }
 
-        if (offset != null && this.completed) {
-            this.dateRange.setStartDate(DEFAULT_START_DATE);
-            diff = new Date().getTime() - (Long) offset.get("value");
+            // the pages of a rollup run are done with the last record of the run
+            List<Long> journalSeqs = rolledUp != null ? rolledUp.getJournalSeqs()
+                    : page.isJournaled() && !heldBack ? Collections.singletonList(page.getJournalSeq())
+                            : Collections.emptyList();
+            if (!journalSeqs.isEmpty()) {
+                if (emitted == 0 && !heartbeat) {
+                    this.ack(journalSeqs);
+                } else {
+                    this.lastRecordOfPage.put(records.get(records.size() - 1).sourceOffset(), journalSeqs);
+                }
+            }
         }
+        return records;
+    }
 
-        log.info("Last recorded offset is == " + this.pageToken);
+    /**
+     * Hands due states to the fetch threads, at most one page per state and
+     * backfill.threads batchGet calls at a time. Runs on the scheduler thread
+     * only.
+     */
+    private void scheduleFetches() {
+        try {
+            this.fetcher.maybeInitializeAnalyticsReporting();
 
-        if (diff < DAY_IN_MS && !PROCESS_FROM.equals(this.dateRange.getStartDate())) {
-            // do nothing
-            log.info("sleeping, don't wake me up.");
-            Thread.sleep(this.config.getPollingFrequency());
-            return null;
+            int idleThreads = Math.max(1, this.config.getBackfillThreads()) - this.fetchesInFlight.get();
+            if (idleThreads <= 0) {
+                return;
+            }
+            for (List<ViewState> batch : this.nextDueStates(idleThreads)) {
+                batch.forEach(state -> state.setFetching(true));
+                this.fetchesInFlight.incrementAndGet();
+                this.fetchExecutor.execute(() -> this.fetchPages(batch));
+            }
+        } catch (RejectedExecutionException e) {
+            // the task is stopping
+        } catch (RuntimeException e) {
+            // rethrown by the next poll, letting it escape would silently cancel the schedule
+            this.fetchFailure = e;
+        }
+    }
+
+    /**
+     * Fetches the next page of every state of a batch and queues them for
+     * poll(). Runs on the fetch threads; blocks while the queue is full, which
+     * pauses fetching until poll() caught up.
+     */
+    private void fetchPages(List<ViewState> batch) {
+        List<Long> retries = new ArrayList<>();
+        try {
+            List<FetchedPage> pages;
+            FetchedPage journaled = batch.get(0).pollJournaledPage();
+            if (journaled != null) {
+                pages = Collections.singletonList(journaled);
+            } else if (batch.size() == 1) {
+                pages = Collections.singletonList(this.fetchNextPage(batch.get(0)));
+            } else {
+                pages = this.fetchNextPages(batch);
+            }
+            for (int i = 0; i < pages.size(); i++) {
+                if (pages.get(i) != null) {
+                    this.fetchedPages.put(pages.get(i));
+                } else {
+                    retries.add(batch.get(i).getRetryAt() - System.currentTimeMillis());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            this.fetchFailure = e;
+        } finally {
+            batch.forEach(state -> state.setFetching(false));
+            this.fetchesInFlight.decrementAndGet();
         }
 
-        List<Report> reports = fetchPaginatedReports();
+        try {
+            this.scheduler.execute(this::scheduleFetches);
+            for (long retryIn : retries) {
+                if (retryIn > 0) {
+                    this.scheduler.schedule(this::scheduleFetches, retryIn, TimeUnit.MILLISECONDS);
+                }
+            }
+        } catch (RejectedExecutionException e) {
+            // the task is stopping
+        }
+    }
 
-        reports.forEach(report -> {
-            Map<Struct, Struct> structs = this.reportParser.parseReport(report, this.buildTopicName());
+    /**
+     * Finds the next states that have pages left to fetch. Backfill shards are
+     * done once completed, views are due again once their last complete run is
+     * older than a day, intraday states once it is older than
+     * intraday.interval.ms. States whose last page failed wait for their backoff,
+     * states with a page in flight wait for it. States are visited round robin so
+     * that a large view does not starve the others.
+     * <p>
+     * Due states that query the same view and dates, e.g. the reports of a
+     * backfill shard, end up in the same batch and share a batchGet call. Once
+     * there are max batches, due states only join the batches that have room
+     * left.
+     *
+     * @param max
+     *            the maximum number of batches to return
+     * @return the batches of states to fetch a page for, empty if nothing is
+     *         due
+     */
+    private List<List<ViewState>> nextDueStates(int max) {
+        List<List<ViewState>> due = new ArrayList<>();
+        Map<String, List<ViewState>> batches = new HashMap<>();
+        long now = System.currentTimeMillis();
+        int visited = this.states.size();
+        for (int i = 0; i < this.states.size(); i++) {
+            ViewState state = this.states.get((this.nextState + i) % this.states.size());
+            if (!this.isDue(state, now)) {
+                continue;
+            }
+            String key = this.batchKey(state);
+            List<ViewState> batch = key == null ? null : batches.get(key);
+            if (batch != null && batch.size() < GAReportFetcher.MAX_REQUESTS_PER_BATCH) {
+                batch.add(state);
+            } else if (due.size() < max) {
+                batch = new ArrayList<>();
+                batch.add(state);
+                due.add(batch);
+                if (key != null) {
+                    batches.put(key, batch);
+                }
+                if (due.size() == max) {
+                    visited = i + 1;
+                }
+            }
+        }
+        this.nextState = (this.nextState + visited) % this.states.size();
+        return due;
+    }
 
-            structs.forEach((k, v) -> records.add(this.buildSourceRecord(k, v)));
-        });
+    /**
+     * @return whether a page of the state is due, a view whose next run is due
+     *         is set up for it
+     */
+    private boolean isDue(ViewState state, long now) {
+        if (state.isFetching()) {
+            return false;
+        }
+        if (state.hasJournaledPages()) {
+            // the state was advanced past them already
+            return true;
+        }
 
-        return records;
+        if (state.isCompleted()) {
+            long diff = new Date().getTime() - state.getLastProcessedDate().getTime();
+            if (state.isBackfillShard()) {
+                return false;
+            } else if (state.isIntraday()) {
+                if (diff < this.config.getIntradayIntervalMs()) {
+                    return false;
+                }
+            } else {
+                // the days up to yesterday that were not pulled yet, including the ones missed while stopped
+                LocalDate yesterday = LocalDate.now().minusDays(1);
+                LocalDate end = LocalDate.parse(state.getDateRange().getEndDate());
+                if (!yesterday.isAfter(end)) {
+                    return false;
+                }
+                // and the last refetch.days days pulled before, GA may have revised them until they are golden
+                LocalDate start = end.plusDays(1).minusDays(Math.max(0, this.config.getRefetchDays()));
+                if (state.getGoldenDate() != null && !start.isAfter(LocalDate.parse(state.getGoldenDate()))) {
+                    start = LocalDate.parse(state.getGoldenDate()).plusDays(1);
+                }
+                state.getDateRange().setStartDate(start.toString());
+                state.getDateRange().setEndDate(yesterday.toString());
+                log.info("set the dates of view " + state.getViewId() + " to: " + state.getDateRange().getStartDate()
+                        + ".." + state.getDateRange().getEndDate());
+            }
+            state.setPageToken("0");
+            state.setCompleted(false);
+        }
+
+        return state.getRetryAt() <= now;
+    }
+
+    /**
+     * GA only takes requests for the same view and dates in a batchGet call.
+     * Pages from the journal, pages decoded while they stream in and pages
+     * fetched ahead are fetched on their own.
+     *
+     * @return the key of the states that can share a call with this one, null
+     *         if it can't share one
+     */
+    private String batchKey(ViewState state) {
+        if (state.hasJournaledPages() || this.config.getPrefetchDepth() > 0
+                || this.decoders.containsKey(state.getReport())) {
+            return null;
+        }
+        return state.getViewId() + "|" + state.getDateRange().getStartDate() + "|"
+                + state.getDateRange().getEndDate();
     }
 
     /**
-     * Retrieve paginated reports
+     * Writes a fetched page to the journal, only its sequence number stays on
+     * the heap. Once the task is stopping the page is kept on the heap, it is
+     * never polled anyway.
+     */
+    private synchronized FetchedPage journalPage(ViewState state, Map<String, Object> pageOffset, int skipRows,
+            Report report) {
+        if (this.stopping) {
+            return new FetchedPage(state, pageOffset, skipRows, report);
+        }
+        Map<String, Object> nextOffset = state.getSourceOffset();
+        try {
+            long seq = this.journal.append(state.getSourcePartition(), pageOffset, nextOffset, report);
+            return new FetchedPage(state, pageOffset, nextOffset, skipRows, FetchedPage.rows(report), seq);
+        } catch (IOException e) {
+            throw new KafkaException("Could not write page " + pageOffset + " of " + state.getSourcePartition()
+                    + " to the journal", e);
+        }
+    }
+
+    /**
+     * Retrieve the next page of the view's report and advance the view to the
+     * page after it. If the page can't be fetched the view keeps its page token,
+     * so the same page is requested again once the backoff passed.
      * 
-     * @return
-     * @throws IOException
+     * @param view
+     *            the view to fetch the page for
+     * @return the fetched page, null if it could not be fetched
      */
-    private List<Report> fetchPaginatedReports() {
-        List<Report> paginatedReports = new ArrayList<Report>();
+    private FetchedPage fetchNextPage(ViewState view) {
+        Map<String, Object> pageOffset = view.getSourceOffset();
+        int skipRows = view.getSkipRows();
+        Report report = null;
+        StreamingReportDecoder.DecodedReport decoded = null;
+        StreamingReportDecoder decoder = this.decoders.get(view.getReport());
         try {
-            log.info("Page token is == " + this.pageToken);
-            Report report = this.fetcher.getReport(dateRange, this.pageToken);
-            paginatedReports.add(report);
+            log.info("Page token of " + view.getSourcePartition() + " is == " + view.getPageToken());
+            String dateHourMinuteAfter = this.getDateHourMinuteAfter(view);
+            if (decoder == null) {
+                report = this.fetcher.getReport(view.getReport(), view.getViewId(), view.getDateRange(),
+                        view.getPageToken(), dateHourMinuteAfter, view.getPageSize());
+            } else {
+                decoded = this.fetcher.getDecodedReport(view.getReport(), view.getViewId(), view.getDateRange(),
+                        view.getPageToken(), dateHourMinuteAfter, view.getPageSize(), decoder);
+            }
+        } catch (IOException e) {
+            this.recordPageFailure(view, e);
+            return null;
+        }
+        return this.advance(view, pageOffset, skipRows, report, decoded);
+    }
+
+    /**
+     * Retrieve the next pages of several states of the same view and dates in
+     * a single batchGet call, and advance the states past them. If the call
+     * fails every state keeps its page token.
+     *
+     * @param batch
+     *            the states to fetch a page for
+     * @return the fetched pages in the order of the states, nulls if they could
+     *         not be fetched
+     */
+    private List<FetchedPage> fetchNextPages(List<ViewState> batch) {
+        List<Map<String, Object>> pageOffsets = new ArrayList<>();
+        List<ReportRequest> requests = new ArrayList<>();
+        BitSet pinned = new BitSet();
+        for (int i = 0; i < batch.size(); i++) {
+            ViewState view = batch.get(i);
+            log.info("Page token of " + view.getSourcePartition() + " is == " + view.getPageToken());
+            pageOffsets.add(view.getSourceOffset());
+            requests.add(this.fetcher.buildReportRequest(view.getReport(), view.getViewId(), view.getDateRange(),
+                    view.getPageToken(), this.getDateHourMinuteAfter(view), view.getPageSize()));
+            pinned.set(i, view.getPageSize() > 0);
+        }
+
+        List<Report> reports;
+        try {
+            reports = this.fetcher.getReports(requests, pinned);
+        } catch (IOException e) {
+            batch.forEach(view -> this.recordPageFailure(view, e));
+            return Collections.nCopies(batch.size(), null);
+        }
+        List<FetchedPage> pages = new ArrayList<>();
+        for (int i = 0; i < batch.size(); i++) {
+            ViewState view = batch.get(i);
+            pages.add(this.advance(view, pageOffsets.get(i), view.getSkipRows(), reports.get(i), null));
+        }
+        return pages;
+    }
+
+    /**
+     * @return the minute after which the rows of the state are requested, null
+     *         for all rows
+     */
+    private String getDateHourMinuteAfter(ViewState view) {
+        if (!view.isIntraday()) {
+            return null;
+        }
+        // a rollup needs all rows of the window the watermark lies in
+        return this.rollup == null ? view.getWatermark() : this.rollup.rewind(view.getWatermark());
+    }
 
-            int total = report.getData().getRowCount();
-            log.info("the total records is: " + total);
+    /**
+     * The page of the state could not be fetched, it is tried again once the
+     * backoff passed
+     */
+    private void recordPageFailure(ViewState view, IOException e) {
+        this.metrics.recordPageFailure();
+        view.setFailures(view.getFailures() + 1);
+        long backoff = this.retryPolicy.getBackoffMs(view.getFailures());
+        view.setRetryAt(System.currentTimeMillis() + backoff);
+        log.error("Got an IO exception when fetching page " + view.getPageToken() + " of "
+                + view.getSourcePartition() + ", trying again in " + backoff + "ms: " + e.getMessage());
+    }
 
-            while (report.getNextPageToken() != null) {
-                int pageNumber = Integer.valueOf(report.getNextPageToken());
-                this.pageToken = String.valueOf(pageNumber);
+    /**
+     * Advances the state past the page that was fetched for it
+     *
+     * @param view
+     *            the state
+     * @param pageOffset
+     *            the offset of the state before the page
+     * @param skipRows
+     *            the rows of the page that were emitted before a restart
+     * @param report
+     *            the page, null if it was decoded while it streamed in
+     * @param decoded
+     *            the decoded page, null if it was fetched as a report
+     * @return the page, ready for poll()
+     */
+    private FetchedPage advance(ViewState view, Map<String, Object> pageOffset, int skipRows, Report report,
+            StreamingReportDecoder.DecodedReport decoded) {
+        view.setFailures(0);
+        view.setRetryAt(0);
+
+        String nextPageToken;
+        boolean golden;
+        if (report != null) {
+            log.info("the total records is: " + report.getData().getRowCount());
+            if (view.isIntraday()) {
+                this.trackDateHourMinute(view, report);
+            }
+            nextPageToken = report.getNextPageToken();
+            golden = Boolean.TRUE.equals(report.getData().getIsDataGolden());
+        } else {
+            log.info("the total records is: " + decoded.getRowCount());
+            if (view.isIntraday()) {
+                this.trackDateHourMinute(view, decoded.getStructs());
+            }
+            nextPageToken = decoded.getNextPageToken();
+            golden = decoded.isDataGolden();
+        }
 
-                log.info("polling from " + this.pageToken + " of " + total);
-                report = this.fetcher.getReport(dateRange, this.pageToken);
-                paginatedReports.add(report);
-                log.info("new pageToken is: " + this.pageToken);
+        if (nextPageToken != null) {
+            view.setPageToken(nextPageToken);
+            log.info("new pageToken is: " + view.getPageToken());
+        } else {
+            view.setPageToken("0");
+            view.setLastProcessedDate(new Date());
+            view.setCompleted(true);
+            if (view.isIntraday()) {
+                this.advanceWatermark(view);
+            } else if (!view.isBackfillShard() && golden) {
+                // the days of the run are final, the next runs do not pull them again
+                view.setGoldenDate(view.getDateRange().getEndDate());
             }
-        } catch (IOException e) {
-            this.completed = false;
-            log.error("Got an IO exception when fetching paginated reports: " + e.getMessage());
-            return paginatedReports;
         }
+        view.setSkipRows(0);
+        view.setPageSize(0);
 
-        log.info("set the start date to: " + DEFAULT_START_DATE);
-        this.dateRange.setStartDate(DEFAULT_START_DATE);
-        this.pageToken = "0";
-        this.lastProcessedDate = new Date();
-        this.completed = true;
+        if (report == null) {
+            this.metrics.recordPage(decoded.getStructs().size());
+            return new FetchedPage(view, pageOffset, skipRows, decoded.getPageRows(), decoded.getStructs());
+        }
+        List<ReportRow> rows = report.getData().getRows();
+        this.metrics.recordPage(rows == null ? 0 : rows.size());
+        return this.journal == null ? new FetchedPage(view, pageOffset, skipRows, report)
+                : this.journalPage(view, pageOffset, skipRows, report);
+    }
 
-        return paginatedReports;
+    /**
+     * Remembers the latest dateHourMinute of the current intraday run
+     */
+    private void trackDateHourMinute(ViewState view, Report report) {
+        int column = report.getColumnHeader().getDimensions().indexOf(DATE_HOUR_MINUTE);
+        List<ReportRow> rows = report.getData().getRows();
+        if (column < 0 || rows == null) {
+            return;
+        }
+
+        // yyyyMMddHHmm, so the string order is the time order
+        String max = view.getRunMaxDateHourMinute();
+        for (ReportRow row : rows) {
+            String dateHourMinute = row.getDimensions().get(column);
+            if (max == null || dateHourMinute.compareTo(max) > 0) {
+                max = dateHourMinute;
+            }
+        }
+        view.setRunMaxDateHourMinute(max);
     }
 
-    public SourceRecord buildSourceRecord(Struct key, Struct value) {
-        Map<String, String> sourcePartition = Collections.singletonMap("key", "lastProcessedDate");
-        Map<String, Long> sourceOffset = Collections.singletonMap("value", this.lastProcessedDate.getTime());
-        return new SourceRecord(sourcePartition, sourceOffset, this.buildTopicName(), this.reportParser.getKeySchema(),
-                key, this.reportParser.getValueSchema(), value);
+    /**
+     * Remembers the latest dateHourMinute of the current intraday run, read off
+     * the keys of a page that was decoded into structs
+     */
+    private void trackDateHourMinute(ViewState view, RecordBatch structs) {
+        String max = view.getRunMaxDateHourMinute();
+        for (int i = 0; i < structs.size(); i++) {
+            String dateHourMinute = structs.getKey(i).getString("dateHourMinute");
+            if (dateHourMinute != null && (max == null || dateHourMinute.compareTo(max) > 0)) {
+                max = dateHourMinute;
+            }
+        }
+        view.setRunMaxDateHourMinute(max);
     }
 
+    /**
+     * Moves the watermark of an intraday state to the latest minute of the run
+     * that finished, minus the minutes GA may still be filling in. Those are
+     * requested and emitted again by the next run.
+     */
+    private void advanceWatermark(ViewState view) {
+        String max = view.getRunMaxDateHourMinute();
+        view.setRunMaxDateHourMinute(null);
+        if (max == null) {
+            return;
+        }
+
+        String watermark = LocalDateTime.parse(max, DATE_HOUR_MINUTE_FORMAT)
+                .minusMinutes(this.config.getIntradaySettleMinutes()).format(DATE_HOUR_MINUTE_FORMAT);
+        if (view.getWatermark() == null || watermark.compareTo(view.getWatermark()) > 0) {
+            log.info("Intraday watermark of view " + view.getViewId() + " is now " + watermark);
+            view.setWatermark(watermark);
+        }
+    }
+
+    /**
+     * @param page
+     *            the page the record belongs to
+     * @param structs
+     *            the parsed page
+     * @param row
+     *            the position of the record within the page
+     * @return the record, its offset points at its row
+     */
+    public SourceRecord buildSourceRecord(FetchedPage page, RecordBatch structs, int row) {
+        return this.buildSourceRecord(page, structs, row, page.getSourceOffset(row, structs.size()));
+    }
+
+    /**
+     * @param page
+     *            the page the record belongs to
+     * @param structs
+     *            the rows to emit of the page, or of its run if they were
+     *            rolled up
+     * @param row
+     *            the position of the record within the structs
+     * @param offset
+     *            the offset to attach to the record
+     * @return the record
+     */
+    public SourceRecord buildSourceRecord(FetchedPage page, RecordBatch structs, int row,
+            Map<String, Object> offset) {
+        return new SourceRecord(page.getSourcePartition(), offset, this.buildTopicName(page.getState().getReport()),
+                structs.getKeySchema(), structs.getKey(row), structs.getValueSchema(), structs.getValue(row));
+    }
+
+    /**
+     * @param page
+     *            a page that emits no records
+     * @return a record on the heartbeat topic that only carries the offset
+     *         after the page, keyed by its partition
+     */
+    private SourceRecord buildHeartbeatRecord(FetchedPage page) {
+        return new SourceRecord(page.getSourcePartition(), page.getNextOffset(), this.config.getHeartbeatTopic(),
+                Schema.STRING_SCHEMA, page.getSourcePartition().toString(), Schema.INT64_SCHEMA,
+                System.currentTimeMillis());
+    }
+
+    /**
+     * Called for every record once Kafka has written it, the journal learns from
+     * the last record of a page, or of a rollup run, that its pages are done
+     */
     @Override
-    public synchronized void stop() {
+    public void commitRecord(SourceRecord record) {
+        if (this.journal == null) {
+            return;
+        }
+        List<Long> seqs = this.lastRecordOfPage.remove(record.sourceOffset());
+        if (seqs != null) {
+            this.ack(seqs);
+        }
+    }
 
+    /**
+     * Called once the worker committed the offsets of the task, journal segments
+     * whose pages are all committed are deleted
+     */
+    @Override
+    public synchronized void commit() {
+        if (this.journal != null && !this.stopping) {
+            this.journal.offsetsCommitted();
+        }
+    }
+
+    /**
+     * The journal is only touched while holding the task, so stop() cannot close
+     * it under an append, a read or an ack
+     *
+     * @return the report of a journaled page, null once the task is stopping
+     */
+    private synchronized Report readJournaled(FetchedPage page) {
+        if (this.stopping) {
+            return null;
+        }
+        try {
+            return this.journal.read(page.getJournalSeq()).getReport();
+        } catch (IOException e) {
+            throw new KafkaException("Could not read page " + page.getJournalSeq() + " from the journal", e);
+        }
+    }
+
+    /**
+     * Marks journaled pages as done, unless the task is stopping
+     */
+    private synchronized void ack(List<Long> seqs) {
+        if (!this.stopping) {
+            seqs.forEach(this.journal::ack);
+        }
+    }
+
+    /**
+     * Cancels the schedule, interrupts the fetches in flight and closes the
+     * fetcher, which aborts their requests. The journal is closed once the
+     * fetch threads are done; from now on poll(), commitRecord() and fetches
+     * that outlive the wait leave it alone. Pages that were not polled or
+     * written yet are emitted again after the restart.
+     */
+    @Override
+    public void stop() {
+        this.stopping = true;
+        if (this.scheduler != null) {
+            this.scheduler.shutdownNow();
+        }
+        if (this.fetchExecutor != null) {
+            this.fetchExecutor.shutdownNow();
+        }
+        if (this.fetcher != null) {
+            this.fetcher.close();
+        }
+        if (this.fetchExecutor != null) {
+            try {
+                if (!this.fetchExecutor.awaitTermination(STOP_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    log.warn("Fetches still running after " + STOP_TIMEOUT_MS + "ms, closing the journal anyway");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        this.close();
+    }
+
+    private synchronized void close() {
+        if (this.fetchedPages != null) {
+            this.fetchedPages.clear();
+        }
+        if (this.metrics != null) {
+            this.metrics.close();
+        }
+        if (this.journal != null) {
+            this.journal.close();
+            this.lastRecordOfPage.clear();
+        }
     }
 }
@@ -0,0 +1,460 @@
+package org.mrtrustworthy.kafka.connect.googleanalytics.source;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.mrtrustworthy.kafka.connect.googleanalytics.GASourceConnector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.services.analyticsreporting.v4.model.Report;
+
+/**
+ * An append-only journal of fetched pages on local disk. Pages are written as
+ * they arrive and read back when poll() turns them into records, so pages
+ * waiting for the task only take a few bytes of heap. After a restart the
+ * pages of the journal are emitted again instead of being requested from GA.
+ * <p>
+ * The journal is a directory of segment files, each memory-mapped and filled
+ * with entries of
+ * {@code [int length][int crc][long seq][gzipped partition, offsets and report]}.
+ * A length of 0 marks the end of a segment. Pages are acknowledged once the
+ * last of their records was written to Kafka, a segment is deleted once the
+ * offsets of all its pages were committed. Writes go to the page cache, so the
+ * journal survives the worker process dying, not the machine.
+ * <p>
+ * Thread safe, fetch threads append while the poll thread reads.
+ */
+public class PageJournal {
+    private static final Logger log = LoggerFactory.getLogger(GASourceConnector.class);
+    private static final JsonFactory JSON_FACTORY = GsonFactory.getDefaultInstance();
+    private static final String SEGMENT_SUFFIX = ".segment";
+    // length, crc and sequence number
+    private static final int ENTRY_HEADER_BYTES = 4 + 4 + 8;
+
+    private final Path directory;
+    private final int segmentBytes;
+
+    // segments by the sequence number of their first entry, guarded by this
+    private final NavigableMap<Long, Segment> segments = new TreeMap<>();
+    private Segment active;
+    private long nextSeq;
+    private boolean closed;
+
+    // pages that were not acknowledged yet, and the first one that wasn't at the last commit
+    private final ConcurrentSkipListSet<Long> unacked = new ConcurrentSkipListSet<>();
+    private long ackedBeforeLastCommit;
+
+    /**
+     * Opens the journal in the directory, entries left by an earlier run are
+     * kept and count as not acknowledged
+     *
+     * @param directory
+     *            where the segments are kept, created if missing
+     * @param segmentBytes
+     *            the size of a segment, larger pages get a segment of their own
+     * @throws IOException
+     *             if the directory or its segments could not be opened
+     */
+    public PageJournal(Path directory, int segmentBytes) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        Files.createDirectories(directory);
+
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            stream.forEach(files::add);
+        }
+        files.sort(null);
+        for (Path file : files) {
+            Segment segment = Segment.recover(file);
+            if (segment.positions.isEmpty()) {
+                Files.delete(file);
+                continue;
+            }
+            this.segments.put(segment.baseSeq, segment);
+            for (long seq = segment.baseSeq; seq < segment.nextSeq(); seq++) {
+                this.unacked.add(seq);
+            }
+            this.nextSeq = segment.nextSeq();
+            this.active = segment;
+        }
+        this.ackedBeforeLastCommit = this.getFirstSeq();
+        if (!this.segments.isEmpty()) {
+            log.info("Recovered " + (this.nextSeq - this.getFirstSeq()) + " journaled pages from " + directory);
+        }
+    }
+
+    /**
+     * Appends a page
+     *
+     * @param partition
+     *            the source partition of the page
+     * @param pageOffset
+     *            the offset of the state before the page
+     * @param nextOffset
+     *            the offset of the state after the page
+     * @param report
+     *            the page
+     * @return the sequence number of the page
+     * @throws IOException
+     *             if the page could not be written
+     */
+    public long append(Map<String, String> partition, Map<String, Object> pageOffset,
+            Map<String, Object> nextOffset, Report report) throws IOException {
+        // compress outside of the lock, appends of the fetch threads only contend on the copy
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(bytes))) {
+            writeMap(out, partition);
+            writeMap(out, pageOffset);
+            writeMap(out, nextOffset);
+            byte[] json = JSON_FACTORY.toByteArray(report);
+            out.writeInt(json.length);
+            out.write(json);
+        }
+        byte[] payload = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+
+        synchronized (this) {
+            if (this.closed) {
+                throw new IOException("The journal " + this.directory + " is closed");
+            }
+            int entryBytes = ENTRY_HEADER_BYTES + payload.length;
+            if (this.active == null || !this.active.fits(entryBytes)) {
+                this.roll(entryBytes);
+            }
+            long seq = this.nextSeq++;
+            this.active.append(seq, (int) crc.getValue(), payload);
+            this.unacked.add(seq);
+            return seq;
+        }
+    }
+
+    /**
+     * Starts a new segment, always leaving room for the end marker
+     */
+    private void roll(int entryBytes) throws IOException {
+        int size = Math.max(this.segmentBytes, entryBytes + 4);
+        Path file = this.directory.resolve(String.format("%020d", this.nextSeq) + SEGMENT_SUFFIX);
+        this.active = Segment.create(file, this.nextSeq, size);
+        this.segments.put(this.active.baseSeq, this.active);
+    }
+
+    /**
+     * Reads a page back
+     *
+     * @param seq
+     *            the sequence number returned by {@link #append}
+     * @return the page with its partition and offsets
+     * @throws IOException
+     *             if the page is not in the journal or could not be decoded
+     */
+    public Entry read(long seq) throws IOException {
+        byte[] payload;
+        synchronized (this) {
+            Map.Entry<Long, Segment> segment = this.segments.floorEntry(seq);
+            if (segment == null || seq >= segment.getValue().nextSeq()) {
+                throw new IOException("Page " + seq + " is not in the journal " + this.directory);
+            }
+            payload = segment.getValue().read(seq);
+        }
+
+        try (DataInputStream in = new DataInputStream(new GZIPInputStream(new ByteArrayInputStream(payload)))) {
+            Map<String, String> partition = new HashMap<>();
+            readMap(in).forEach((k, v) -> partition.put(k, (String) v));
+            Map<String, Object> pageOffset = readMap(in);
+            Map<String, Object> nextOffset = readMap(in);
+            byte[] json = new byte[in.readInt()];
+            in.readFully(json);
+            Report report = JSON_FACTORY.fromInputStream(new ByteArrayInputStream(json), StandardCharsets.UTF_8,
+                    Report.class);
+            return new Entry(seq, partition, pageOffset, nextOffset, report);
+        }
+    }
+
+    /**
+     * Marks a page as written to Kafka
+     *
+     * @param seq
+     *            the sequence number of the page
+     */
+    public void ack(long seq) {
+        this.unacked.remove(seq);
+    }
+
+    /**
+     * Called once the worker committed the offsets of the task. The offsets of
+     * pages acknowledged before the previous commit are part of this one, the
+     * segments holding only such pages are deleted.
+     */
+    public void offsetsCommitted() {
+        List<Segment> deletable = new ArrayList<>();
+        synchronized (this) {
+            long committedBelow = this.ackedBeforeLastCommit;
+            Long firstUnacked = this.unacked.isEmpty() ? null : this.unacked.first();
+            this.ackedBeforeLastCommit = firstUnacked == null ? this.nextSeq : firstUnacked;
+
+            for (Segment segment : this.segments.values()) {
+                // the active segment is still written to, it goes once the next one took over
+                if (segment == this.active || segment.nextSeq() > committedBelow) {
+                    break;
+                }
+                deletable.add(segment);
+            }
+            deletable.forEach(s -> this.segments.remove(s.baseSeq));
+        }
+        for (Segment segment : deletable) {
+            try {
+                segment.delete();
+            } catch (IOException e) {
+                log.warn("Could not delete journal segment " + segment.file + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return the sequence number of the oldest page in the journal
+     */
+    public synchronized long getFirstSeq() {
+        return this.segments.isEmpty() ? this.nextSeq : this.segments.firstKey();
+    }
+
+    /**
+     * @return the sequence number the next page gets
+     */
+    public synchronized long getNextSeq() {
+        return this.nextSeq;
+    }
+
+    /**
+     * Closes the segment files, the journal stays on disk for the next run
+     */
+    public synchronized void close() {
+        for (Segment segment : this.segments.values()) {
+            try {
+                segment.channel.close();
+            } catch (IOException e) {
+                log.warn("Could not close journal segment " + segment.file + ": " + e.getMessage());
+            }
+        }
+        this.segments.clear();
+        this.active = null;
+        this.closed = true;
+    }
+
+    /**
+     * Offsets only hold strings, longs and ints, the types are kept so that a
+     * replayed offset equals the original one
+     */
+    private static void writeMap(DataOutputStream out, Map<String, ?> map) throws IOException {
+        out.writeInt(map.size());
+        for (Map.Entry<String, ?> entry : map.entrySet()) {
+            out.writeUTF(entry.getKey());
+            Object value = entry.getValue();
+            if (value instanceof Long) {
+                out.writeByte('L');
+                out.writeLong((Long) value);
+            } else if (value instanceof Integer) {
+                out.writeByte('I');
+                out.writeInt((Integer) value);
+            } else if (value == null) {
+                out.writeByte('N');
+            } else {
+                out.writeByte('S');
+                out.writeUTF(value.toString());
+            }
+        }
+    }
+
+    private static Map<String, Object> readMap(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        Map<String, Object> map = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            String key = in.readUTF();
+            byte type = in.readByte();
+            switch (type) {
+            case 'L':
+                map.put(key, in.readLong());
+                break;
+            case 'I':
+                map.put(key, in.readInt());
+                break;
+            case 'N':
+                map.put(key, null);
+                break;
+            default:
+                map.put(key, in.readUTF());
+            }
+        }
+        return map;
+    }
+
+    /**
+     * A page read back from the journal
+     */
+    public static class Entry {
+        private final long seq;
+        private final Map<String, String> partition;
+        private final Map<String, Object> pageOffset;
+        private final Map<String, Object> nextOffset;
+        private final Report report;
+
+        Entry(long seq, Map<String, String> partition, Map<String, Object> pageOffset,
+                Map<String, Object> nextOffset, Report report) {
+            this.seq = seq;
+            this.partition = partition;
+            this.pageOffset = pageOffset;
+            this.nextOffset = nextOffset;
+            this.report = report;
+        }
+
+        public long getSeq() {
+            return seq;
+        }
+
+        public Map<String, String> getPartition() {
+            return partition;
+        }
+
+        public Map<String, Object> getPageOffset() {
+            return pageOffset;
+        }
+
+        public Map<String, Object> getNextOffset() {
+            return nextOffset;
+        }
+
+        public Report getReport() {
+            return report;
+        }
+    }
+
+    /**
+     * A memory-mapped segment file and the positions of its entries
+     */
+    private static class Segment {
+        private final Path file;
+        private final long baseSeq;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private final List<Integer> positions = new ArrayList<>();
+
+        private Segment(Path file, long baseSeq, FileChannel channel, MappedByteBuffer buffer) {
+            this.file = file;
+            this.baseSeq = baseSeq;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+
+        static Segment create(Path file, long baseSeq, int size) throws IOException {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            return new Segment(file, baseSeq, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        }
+
+        /**
+         * Opens a segment of an earlier run and finds its entries. A torn entry at
+         * the end, left by a crash while writing, ends the segment; the next
+         * append overwrites it.
+         */
+        static Segment recover(Path file) throws IOException {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            String name = file.getFileName().toString();
+            long baseSeq = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+            Segment segment = new Segment(file, baseSeq, channel, buffer);
+
+            int position = 0;
+            while (position + ENTRY_HEADER_BYTES <= buffer.limit()) {
+                int length = buffer.getInt(position);
+                long seq = buffer.getLong(position + 8);
+                if (length <= 0 || position + ENTRY_HEADER_BYTES + length > buffer.limit()
+                        || seq != segment.nextSeq() || buffer.getInt(position + 4) != crc(buffer, position, length)) {
+                    break;
+                }
+                segment.positions.add(position);
+                position += ENTRY_HEADER_BYTES + length;
+            }
+            buffer.position(position);
+            return segment;
+        }
+
+        private static int crc(ByteBuffer buffer, int position, int length) {
+            byte[] payload = new byte[length];
+            get(buffer, position + ENTRY_HEADER_BYTES, payload);
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            return (int) crc.getValue();
+        }
+
+        long nextSeq() {
+            return this.baseSeq + this.positions.size();
+        }
+
+        boolean fits(int entryBytes) {
+            // the end marker has to fit behind the entry
+            return this.buffer.position() + entryBytes + 4 <= this.buffer.limit();
+        }
+
+        void append(long seq, int crc, byte[] payload) {
+            int position = this.buffer.position();
+            this.buffer.putInt(position + 4, crc);
+            this.buffer.putLong(position + 8, seq);
+            put(this.buffer, position + ENTRY_HEADER_BYTES, payload);
+            this.buffer.putInt(position + ENTRY_HEADER_BYTES + payload.length, 0);
+            // the length goes last, a reader never sees half an entry
+            this.buffer.putInt(position, payload.length);
+            this.buffer.position(position + ENTRY_HEADER_BYTES + payload.length);
+            this.positions.add(position);
+        }
+
+        byte[] read(long seq) {
+            int position = this.positions.get((int) (seq - this.baseSeq));
+            byte[] payload = new byte[this.buffer.getInt(position)];
+            get(this.buffer, position + ENTRY_HEADER_BYTES, payload);
+            return payload;
+        }
+
+        void delete() throws IOException {
+            this.channel.close();
+            Files.deleteIfExists(this.file);
+        }
+
+        // absolute bulk access, the position of the buffer itself is the write position
+        private static void get(ByteBuffer buffer, int position, byte[] into) {
+            ByteBuffer view = buffer.duplicate();
+            view.position(position);
+            view.get(into);
+        }
+
+        private static void put(ByteBuffer buffer, int position, byte[] from) {
+            ByteBuffer view = buffer.duplicate();
+            view.position(position);
+            view.put(from);
+        }
+    }
+}
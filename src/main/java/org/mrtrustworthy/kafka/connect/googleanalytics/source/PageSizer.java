@@ -0,0 +1,117 @@
+package org.mrtrustworthy.kafka.connect.googleanalytics.source;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+
+import com.google.api.client.http.HttpResponseException;
+
+/**
+ * Decides how many rows a page of a report asks for. In fixed mode every page
+ * has the configured size. In adaptive mode the size follows the responses: the
+ * time and decoded bytes per row of the last full pages, smoothed, give the
+ * largest page that stays within the latency and byte targets. Larger pages
+ * save round trips, the targets keep them clear of the request timeout and of
+ * the memory a page takes while it is decoded. The size at most doubles per
+ * response, so one fast page does not make the next one time out, and halves
+ * on every timeout or server error. Quota errors say nothing about the page
+ * size and leave it alone. Thread safe, one sizer is shared by all fetch and
+ * prefetch threads of a task.
+ */
+public class PageSizer {
+    // weight of the latest page in the per row averages
+    private static final double SMOOTHING = 0.3;
+    private static final int MAX_GROWTH = 2;
+
+    private final boolean adaptive;
+    private final int minPageSize;
+    private final int maxPageSize;
+    private final double targetLatencyNanos;
+    private final double targetBytes;
+
+    private int pageSize;
+    private double nanosPerRow = Double.NaN;
+    private double bytesPerRow = Double.NaN;
+
+    /**
+     * @param pageSize
+     *            the size of every page, the first size in adaptive mode
+     * @param adaptive
+     *            whether the size follows the responses
+     * @param minPageSize
+     *            the smallest size of adaptive mode
+     * @param maxPageSize
+     *            the largest size of adaptive mode
+     * @param targetLatencyMs
+     *            how long a page may take to fetch and decode in adaptive mode
+     * @param targetBytes
+     *            how large the decoded body of a page may get in adaptive mode
+     */
+    public PageSizer(int pageSize, boolean adaptive, int minPageSize, int maxPageSize, long targetLatencyMs,
+            long targetBytes) {
+        this.adaptive = adaptive;
+        this.maxPageSize = clamp(maxPageSize, 1, GAConnectorConfig.FETCH_PAGE_SIZE_LIMIT);
+        this.minPageSize = clamp(minPageSize, 1, this.maxPageSize);
+        this.pageSize = adaptive ? clamp(pageSize, this.minPageSize, this.maxPageSize)
+                : clamp(pageSize, 1, GAConnectorConfig.FETCH_PAGE_SIZE_LIMIT);
+        this.targetLatencyNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, targetLatencyMs));
+        this.targetBytes = Math.max(1, targetBytes);
+    }
+
+    /**
+     * @return the number of rows the next page asks for
+     */
+    public synchronized int getPageSize() {
+        return this.pageSize;
+    }
+
+    /**
+     * Learns from a successful response. Only full pages count, the last page of
+     * a report is mostly request overhead and would make rows look expensive.
+     *
+     * @param requestedRows
+     *            the page size the rows were requested with
+     * @param rows
+     *            the rows that came back
+     * @param latencyNanos
+     *            time from sending the request until the body was decoded
+     * @param bytes
+     *            size of the decoded body
+     */
+    public synchronized void recordResponse(int requestedRows, int rows, long latencyNanos, long bytes) {
+        if (!this.adaptive || rows <= 0 || rows < requestedRows) {
+            return;
+        }
+        this.nanosPerRow = smooth(this.nanosPerRow, (double) latencyNanos / rows);
+        this.bytesPerRow = smooth(this.bytesPerRow, (double) bytes / rows);
+
+        double fitting = Math.min(this.targetLatencyNanos / Math.max(this.nanosPerRow, 1),
+                this.targetBytes / Math.max(this.bytesPerRow, 1));
+        long next = Math.min((long) fitting, (long) requestedRows * MAX_GROWTH);
+        this.pageSize = clamp(next, this.minPageSize, this.maxPageSize);
+    }
+
+    /**
+     * Halves the page size if the failure may have been caused by its size
+     *
+     * @param e
+     *            the failure of a request
+     */
+    public synchronized void recordFailure(IOException e) {
+        if (!this.adaptive) {
+            return;
+        }
+        boolean serverError = e instanceof HttpResponseException && ((HttpResponseException) e).getStatusCode() >= 500;
+        if (serverError || e instanceof SocketTimeoutException) {
+            this.pageSize = Math.max(this.minPageSize, this.pageSize / 2);
+        }
+    }
+
+    private static double smooth(double average, double value) {
+        return Double.isNaN(average) ? value : average + SMOOTHING * (value - average);
+    }
+
+    private static int clamp(long value, int min, int max) {
+        return (int) Math.max(min, Math.min(max, value));
+    }
+}
@@ -0,0 +1,193 @@
+package org.mrtrustworthy.kafka.connect.googleanalytics.source;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the requests of a task within the quotas of the Reporting API v4: a
+ * budget per 100 seconds for the project (which a service account shares with
+ * every other task using it) and a daily budget per view. The project budget
+ * is a token bucket, the view budgets are filled up at midnight Pacific time,
+ * when the API resets its daily quotas. A request that finds a budget spent
+ * waits until its token is refilled instead of running into a 429. Thread
+ * safe, one limiter is shared by all fetch and prefetch threads of a task.
+ */
+public class QuotaLimiter {
+    private static final long SECOND_IN_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final ZoneId QUOTA_ZONE = ZoneId.of("America/Los_Angeles");
+
+    private final TokenBucket projectBucket;
+    private final double viewRequestsPerDay;
+    private final Map<String, Integer> viewShares;
+    private final Clock clock;
+    private final Map<String, DailyBucket> viewBuckets = new ConcurrentHashMap<>();
+
+    /**
+     * @param requestsPer100s
+     *            the project budget of this task, 0 or less disables the limit
+     * @param viewRequestsPerDay
+     *            the budget of every view, 0 or less disables the limit
+     * @param viewShares
+     *            how many tasks share the budget of a view, views that are
+     *            missing have it to themselves
+     */
+    public QuotaLimiter(double requestsPer100s, double viewRequestsPerDay, Map<String, Integer> viewShares) {
+        this(requestsPer100s, viewRequestsPerDay, viewShares, Clock.system(QUOTA_ZONE));
+    }
+
+    QuotaLimiter(double requestsPer100s, double viewRequestsPerDay, Map<String, Integer> viewShares, Clock clock) {
+        // bursts are limited to a tenth of the window, so the window is never overrun
+        this.projectBucket = requestsPer100s <= 0 ? null
+                : new TokenBucket(Math.max(1, requestsPer100s / 10), requestsPer100s / 100);
+        this.viewRequestsPerDay = viewRequestsPerDay;
+        this.viewShares = viewShares;
+        this.clock = clock.withZone(QUOTA_ZONE);
+    }
+
+    /**
+     * Blocks until a request for the view fits into the quotas
+     *
+     * @param viewId
+     *            the view the request is for
+     * @throws InterruptedException
+     *             if interrupted while waiting
+     */
+    public void acquire(String viewId) throws InterruptedException {
+        long waitNanos = 0;
+        if (this.projectBucket != null) {
+            waitNanos = this.projectBucket.reserve();
+        }
+        if (this.viewRequestsPerDay > 0) {
+            waitNanos = Math.max(waitNanos, this.getViewBucket(viewId).reserve());
+        }
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    /**
+     * @return the requests the project budget of this task allows right now,
+     *         negative while requests wait for their token, NaN if unlimited
+     */
+    public double getProjectTokens() {
+        return this.projectBucket == null ? Double.NaN : this.projectBucket.available();
+    }
+
+    /**
+     * @return the requests left for today of the view with the fewest left,
+     *         negative while requests wait for the next day, NaN if unlimited
+     */
+    public double getMinViewTokens() {
+        if (this.viewRequestsPerDay <= 0) {
+            return Double.NaN;
+        }
+        double min = this.viewRequestsPerDay;
+        for (DailyBucket viewBucket : this.viewBuckets.values()) {
+            min = Math.min(min, viewBucket.available());
+        }
+        return min;
+    }
+
+    /**
+     * @return the budget of the view, the share of this task if the view is
+     *         pulled by several tasks
+     */
+    private DailyBucket getViewBucket(String viewId) {
+        return this.viewBuckets.computeIfAbsent(viewId,
+                v -> new DailyBucket(this.viewRequestsPerDay / this.viewShares.getOrDefault(v, 1), this.clock));
+    }
+
+    /**
+     * A token bucket that hands out tokens on credit: a reservation always
+     * succeeds and returns how long the caller has to wait for its token
+     */
+    static class TokenBucket {
+        private final double capacity;
+        private final double tokensPerNano;
+        private double tokens;
+        private long lastRefill;
+
+        TokenBucket(double capacity, double tokensPerSecond) {
+            this.capacity = capacity;
+            this.tokensPerNano = tokensPerSecond / SECOND_IN_NANOS;
+            this.tokens = capacity;
+            this.lastRefill = System.nanoTime();
+        }
+
+        /**
+         * @return nanoseconds to wait before the reserved token may be used
+         */
+        synchronized long reserve() {
+            long now = System.nanoTime();
+            this.tokens = Math.min(this.capacity, this.tokens + (now - this.lastRefill) * this.tokensPerNano);
+            this.lastRefill = now;
+
+            this.tokens -= 1;
+            return this.tokens >= 0 ? 0 : (long) Math.ceil(-this.tokens / this.tokensPerNano);
+        }
+
+        /**
+         * @return the tokens in the bucket, without taking one
+         */
+        synchronized double available() {
+            return Math.min(this.capacity, this.tokens + (System.nanoTime() - this.lastRefill) * this.tokensPerNano);
+        }
+    }
+
+    /**
+     * A budget that is filled up once a day instead of trickling in, so no more
+     * than a day's budget is ever spent within a day. Like the token bucket it
+     * hands out tokens on credit, a request beyond the budget waits for the
+     * day its token belongs to.
+     */
+    static class DailyBucket {
+        private final double capacity;
+        private final Clock clock;
+        private double tokens;
+        private LocalDate day;
+
+        DailyBucket(double capacity, Clock clock) {
+            this.capacity = capacity;
+            this.clock = clock;
+            this.tokens = capacity;
+            this.day = LocalDate.now(clock);
+        }
+
+        /**
+         * @return nanoseconds to wait before the reserved token may be used
+         */
+        synchronized long reserve() {
+            this.refill();
+            this.tokens -= 1;
+            if (this.tokens >= 0) {
+                return 0;
+            }
+            // every day that passes brings a full budget, the token is in the first day that covers the debt
+            long days = (long) Math.ceil(-this.tokens / this.capacity);
+            return Duration.between(this.clock.instant(),
+                    this.day.plusDays(days).atStartOfDay(this.clock.getZone()).toInstant()).toNanos();
+        }
+
+        /**
+         * @return the tokens left today, without taking one
+         */
+        synchronized double available() {
+            this.refill();
+            return this.tokens;
+        }
+
+        private void refill() {
+            LocalDate today = LocalDate.now(this.clock);
+            if (today.isAfter(this.day)) {
+                long days = today.toEpochDay() - this.day.toEpochDay();
+                this.tokens = Math.min(this.capacity, this.tokens + days * this.capacity);
+                this.day = today;
+            }
+        }
+    }
+}
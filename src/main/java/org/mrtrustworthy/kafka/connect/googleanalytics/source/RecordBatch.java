@@ -0,0 +1,84 @@
+package org.mrtrustworthy.kafka.connect.googleanalytics.source;
+
+import java.util.Arrays;
+
+import org.apache.kafka.connect.data.ConnectSchema;
+import org.apache.kafka.connect.data.Struct;
+
+/**
+ * The key and value structs parsed off a report page, in row order, together
+ * with the schemas they were built with. The batch is sized from the row count
+ * of the page up front and only holds two arrays; a page that is decoded while
+ * it streams in grows them if it has more rows than expected.
+ */
+public class RecordBatch {
+
+    /**
+     * What to do with rows that have the same key (dateHourMinute, urlHash) as a
+     * row before them on the same page
+     */
+    public enum DuplicateKeyPolicy {
+        // emit every row
+        KEEP_ALL,
+        // only emit the last row, at the position of the first
+        KEEP_LAST,
+        // sum up the numeric metrics into the first row, other metrics keep the last value
+        MERGE_METRICS
+    }
+
+    private final ConnectSchema keySchema;
+    private final ConnectSchema valueSchema;
+    private Struct[] keys;
+    private Struct[] values;
+    private int size;
+
+    public RecordBatch(ConnectSchema keySchema, ConnectSchema valueSchema, int capacity) {
+        this.keySchema = keySchema;
+        this.valueSchema = valueSchema;
+        this.keys = new Struct[capacity];
+        this.values = new Struct[capacity];
+        this.size = 0;
+    }
+
+    /**
+     * @return the position the record was added at
+     */
+    public int add(Struct key, Struct value) {
+        if (this.size == this.keys.length) {
+            int capacity = Math.max(16, this.size * 2);
+            this.keys = Arrays.copyOf(this.keys, capacity);
+            this.values = Arrays.copyOf(this.values, capacity);
+        }
+        this.keys[this.size] = key;
+        this.values[this.size] = value;
+        return this.size++;
+    }
+
+    public void setValue(int index, Struct value) {
+        this.values[index] = value;
+    }
+
+    public ConnectSchema getKeySchema() {
+        return keySchema;
+    }
+
+    public ConnectSchema getValueSchema() {
+        return valueSchema;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public Struct getKey(int index) {
+        return keys[index];
+    }
+
+    public Struct getValue(int index) {
+        return values[index];
+    }
+}
@@ -0,0 +1,422 @@
+package org.mrtrustworthy.kafka.connect.googleanalytics.source;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Clock;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.mrtrustworthy.kafka.connect.googleanalytics.GASourceConnector;
+import org.mrtrustworthy.kafka.connect.googleanalytics.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.services.analyticsreporting.v4.model.DateRange;
+import com.google.api.services.analyticsreporting.v4.model.Report;
+import com.google.api.services.analyticsreporting.v4.model.ReportRequest;
+
+/**
+ * Keeps the responses of GA, keyed on the full request with relative dates
+ * resolved, so a page requested again after a restart or a rebalance is served
+ * locally. Entries are gzipped JSON, held in an LRU bounded by bytes and
+ * optionally in a directory that survives the worker.
+ * <p>
+ * Reports GA marks as golden will not change anymore, they never expire.
+ * Everything else expires after the configured TTL. Requests that cover today
+ * are never cached, their data changes by the minute.
+ * <p>
+ * Caches are shared by the tasks of a worker and reference counted like
+ * {@link SharedGoogleClient}: a view that moves to another task on the same
+ * worker still finds its pages. Thread safe.
+ */
+public class ReportCache {
+    private static final Logger log = LoggerFactory.getLogger(GASourceConnector.class);
+    private static final JsonFactory JSON_FACTORY = GsonFactory.getDefaultInstance();
+    private static final String SUFFIX = ".report";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final long NEVER = Long.MAX_VALUE;
+
+    // worker wide registry, guarded by the class lock
+    private static final Map<String, ReportCache> CACHES = new HashMap<>();
+
+    private final String key;
+    private int references;
+
+    private final long memoryBytes;
+    private final long ttlMs;
+    private final Path directory;
+    private final long diskBytes;
+    private final Clock clock;
+
+    // both in access order, guarded by this
+    private final LinkedHashMap<String, Entry> memory = new LinkedHashMap<>(16, 0.75f, true);
+    private long memoryUsed;
+    private final LinkedHashMap<String, Long> disk = new LinkedHashMap<>(16, 0.75f, true);
+    private long diskUsed;
+
+    /**
+     * @param memoryBytes
+     *            upper bound of the gzipped entries kept on the heap, 0 keeps none
+     * @param ttlMs
+     *            how long reports that are not golden are served, 0 does not
+     *            cache them at all
+     * @param directory
+     *            where entries are kept across restarts, null for no disk tier
+     * @param diskBytes
+     *            upper bound of the entries kept in the directory
+     * @param clock
+     *            tells the time and today's date
+     * @throws IOException
+     *             if the directory could not be created or read
+     */
+    ReportCache(long memoryBytes, long ttlMs, Path directory, long diskBytes, Clock clock) throws IOException {
+        this(null, memoryBytes, ttlMs, directory, diskBytes, clock);
+    }
+
+    private ReportCache(String key, long memoryBytes, long ttlMs, Path directory, long diskBytes, Clock clock)
+            throws IOException {
+        this.key = key;
+        this.memoryBytes = memoryBytes;
+        this.ttlMs = ttlMs;
+        this.directory = directory;
+        this.diskBytes = diskBytes;
+        this.clock = clock;
+        if (directory != null) {
+            this.loadDirectory();
+        }
+    }
+
+    /**
+     * Hands out the cache of the configured settings, tasks with the same
+     * settings get the same cache. Every call has to be matched by a call to
+     * {@link #release()}.
+     *
+     * @param conf
+     *            the task configuration
+     * @return the shared cache
+     * @throws IOException
+     *             if the cache directory could not be read
+     */
+    public static synchronized ReportCache acquire(GAConnectorConfig conf) throws IOException {
+        String key = conf.getCacheMemoryBytes() + "|" + conf.getCacheTtlMs() + "|" + conf.getCacheDir() + "|"
+                + conf.getCacheDiskBytes();
+        ReportCache cache = CACHES.get(key);
+        if (cache == null) {
+            Path directory = conf.getCacheDir().isEmpty() ? null : Paths.get(conf.getCacheDir());
+            cache = new ReportCache(key, conf.getCacheMemoryBytes(), conf.getCacheTtlMs(), directory,
+                    conf.getCacheDiskBytes(), Clock.systemDefaultZone());
+            CACHES.put(key, cache);
+        }
+        cache.references++;
+        return cache;
+    }
+
+    /**
+     * Gives the cache back, the heap entries are dropped once no task uses it
+     * anymore. The directory is kept for the next start.
+     */
+    public void release() {
+        synchronized (ReportCache.class) {
+            if (--this.references > 0) {
+                return;
+            }
+            CACHES.remove(this.key);
+        }
+        synchronized (this) {
+            this.memory.clear();
+            this.memoryUsed = 0;
+        }
+    }
+
+    /**
+     * Indexes the entries a previous run left behind, least recently used first
+     */
+    private void loadDirectory() throws IOException {
+        Files.createDirectories(this.directory);
+        List<Path> files;
+        try (Stream<Path> list = Files.list(this.directory)) {
+            files = list.collect(Collectors.toList());
+        }
+
+        List<Path> entries = new ArrayList<>();
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            if (name.endsWith(TEMP_SUFFIX)) {
+                // a write the worker did not finish
+                Files.deleteIfExists(file);
+            } else if (name.endsWith(SUFFIX)) {
+                entries.add(file);
+            }
+        }
+        entries.sort(Comparator.comparing(ReportCache::lastModified));
+        for (Path file : entries) {
+            String name = file.getFileName().toString();
+            this.addToDisk(name.substring(0, name.length() - SUFFIX.length()), Files.size(file));
+        }
+        log.info("Found " + this.disk.size() + " cached reports (" + this.diskUsed + " bytes) in " + this.directory);
+    }
+
+    private static FileTime lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    /**
+     * @param request
+     *            the request about to be sent to GA
+     * @return the cached response, null if there is none
+     */
+    public Report get(ReportRequest request) {
+        LocalDate today = LocalDate.now(this.clock);
+        if (!isCacheable(request, today)) {
+            return null;
+        }
+
+        try {
+            String hash = Utils.md5(key(request, today));
+            byte[] report = this.getFromMemory(hash);
+            if (report == null && this.directory != null) {
+                report = this.getFromDisk(hash);
+            }
+            return report == null ? null : decode(report);
+        } catch (IOException e) {
+            log.warn("Could not read a cached report: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private synchronized byte[] getFromMemory(String hash) {
+        Entry entry = this.memory.get(hash);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expiresAt <= this.clock.millis()) {
+            this.memory.remove(hash);
+            this.memoryUsed -= entry.report.length;
+            return null;
+        }
+        return entry.report;
+    }
+
+    private byte[] getFromDisk(String hash) throws IOException {
+        synchronized (this) {
+            if (this.disk.get(hash) == null) {
+                return null;
+            }
+        }
+
+        Path file = this.directory.resolve(hash + SUFFIX);
+        byte[] content;
+        try {
+            content = Files.readAllBytes(file);
+        } catch (NoSuchFileException e) {
+            // evicted in the meantime
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(content);
+        long expiresAt = buffer.getLong();
+        if (expiresAt <= this.clock.millis()) {
+            this.removeFromDisk(hash);
+            return null;
+        }
+
+        byte[] report = new byte[buffer.remaining()];
+        buffer.get(report);
+        // keeps the order of use across restarts
+        Files.setLastModifiedTime(file, FileTime.fromMillis(this.clock.millis()));
+        this.putInMemory(hash, new Entry(report, expiresAt));
+        return report;
+    }
+
+    /**
+     * @param request
+     *            the request that was sent to GA
+     * @param report
+     *            the response of GA
+     */
+    public void put(ReportRequest request, Report report) {
+        LocalDate today = LocalDate.now(this.clock);
+        if (!isCacheable(request, today)) {
+            return;
+        }
+        boolean golden = report.getData() != null && Boolean.TRUE.equals(report.getData().getIsDataGolden());
+        if (!golden && this.ttlMs <= 0) {
+            return;
+        }
+
+        try {
+            String hash = Utils.md5(key(request, today));
+            Entry entry = new Entry(encode(report), golden ? NEVER : this.clock.millis() + this.ttlMs);
+            this.putInMemory(hash, entry);
+            if (this.directory != null) {
+                this.putOnDisk(hash, entry);
+            }
+        } catch (IOException e) {
+            log.warn("Could not cache a report: " + e.getMessage());
+        }
+    }
+
+    private synchronized void putInMemory(String hash, Entry entry) {
+        if (entry.report.length > this.memoryBytes) {
+            return;
+        }
+        Entry previous = this.memory.put(hash, entry);
+        if (previous != null) {
+            this.memoryUsed -= previous.report.length;
+        }
+        this.memoryUsed += entry.report.length;
+
+        Iterator<Entry> eldest = this.memory.values().iterator();
+        while (this.memoryUsed > this.memoryBytes) {
+            this.memoryUsed -= eldest.next().report.length;
+            eldest.remove();
+        }
+    }
+
+    private void putOnDisk(String hash, Entry entry) throws IOException {
+        long size = Long.BYTES + entry.report.length;
+        if (size > this.diskBytes) {
+            return;
+        }
+
+        // written aside and moved in, readers never see half an entry
+        Path temp = Files.createTempFile(this.directory, hash, TEMP_SUFFIX);
+        try (OutputStream out = Files.newOutputStream(temp)) {
+            out.write(ByteBuffer.allocate(Long.BYTES).putLong(entry.expiresAt).array());
+            out.write(entry.report);
+        }
+        Files.move(temp, this.directory.resolve(hash + SUFFIX), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+
+        List<String> evicted = new ArrayList<>();
+        synchronized (this) {
+            this.addToDisk(hash, size);
+            Iterator<Map.Entry<String, Long>> eldest = this.disk.entrySet().iterator();
+            while (this.diskUsed > this.diskBytes) {
+                Map.Entry<String, Long> file = eldest.next();
+                this.diskUsed -= file.getValue();
+                evicted.add(file.getKey());
+                eldest.remove();
+            }
+        }
+        for (String file : evicted) {
+            Files.deleteIfExists(this.directory.resolve(file + SUFFIX));
+        }
+    }
+
+    private synchronized void addToDisk(String hash, long size) {
+        Long previous = this.disk.put(hash, size);
+        if (previous != null) {
+            this.diskUsed -= previous;
+        }
+        this.diskUsed += size;
+    }
+
+    private void removeFromDisk(String hash) throws IOException {
+        synchronized (this) {
+            Long size = this.disk.remove(hash);
+            if (size == null) {
+                return;
+            }
+            this.diskUsed -= size;
+        }
+        Files.deleteIfExists(this.directory.resolve(hash + SUFFIX));
+    }
+
+    /**
+     * @return whether the data of all date ranges of the request is complete
+     */
+    static boolean isCacheable(ReportRequest request, LocalDate today) {
+        for (DateRange range : request.getDateRanges()) {
+            if (!Utils.resolveDate(range.getEndDate(), today).isBefore(today)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The request as JSON with absolute dates, a request for yesterday means
+     * another day tomorrow. The page size is left out: a page starts at its token
+     * whatever its size and names the token of the page after it, so any cached
+     * page answers the request.
+     */
+    static String key(ReportRequest request, LocalDate today) throws IOException {
+        List<DateRange> ranges = new ArrayList<>();
+        for (DateRange range : request.getDateRanges()) {
+            ranges.add(new DateRange().setStartDate(Utils.resolveDate(range.getStartDate(), today).toString())
+                    .setEndDate(Utils.resolveDate(range.getEndDate(), today).toString()));
+        }
+        // a shallow copy, the deep clone of GenericJson fails on immutable lists
+        ReportRequest copy = new ReportRequest();
+        request.forEach(copy::set);
+        return JSON_FACTORY.toString(copy.setDateRanges(ranges).setPageSize(null));
+    }
+
+    private static byte[] encode(Report report) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (OutputStream out = new GZIPOutputStream(bytes)) {
+            out.write(JSON_FACTORY.toByteArray(report));
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Report decode(byte[] report) throws IOException {
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(report))) {
+            return JSON_FACTORY.fromInputStream(in, StandardCharsets.UTF_8, Report.class);
+        }
+    }
+
+    /**
+     * @return the bytes of the entries on the heap
+     */
+    synchronized long getMemoryUsed() {
+        return this.memoryUsed;
+    }
+
+    /**
+     * @return the bytes of the entries in the directory
+     */
+    synchronized long getDiskUsed() {
+        return this.diskUsed;
+    }
+
+    /**
+     * A gzipped report and when it stops being served
+     */
+    private static class Entry {
+        private final byte[] report;
+        private final long expiresAt;
+
+        Entry(byte[] report, long expiresAt) {
+            this.report = report;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package org.mrtrustworthy.kafka.connect.googleanalytics.source;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A report the connector pulls: the dimensions and metrics to request of a
+ * set of views and the topic the rows go to. A connector configured the
+ * classic way, with topic.name, fetch.dimensions and fetch.measures, has a
+ * single unnamed report. Named reports are listed in reports and configured
+ * with report.&lt;name&gt;.* settings; they add their name to the source
+ * partitions of their views, so several reports of the same view progress
+ * independently of each other.
+ */
+public class ReportDefinition {
+    private final String name;
+    private final String topicName;
+    private final List<String> dimensions;
+    private final List<String> measures;
+    private final List<String> viewIds;
+
+    /**
+     * @param name
+     *            the name of the report, null for the unnamed report
+     * @param topicName
+     *            the topic the rows of the report go to
+     * @param dimensions
+     *            the dimensions to request, without the ga: prefix
+     * @param measures
+     *            the metrics to request, without the ga: prefix
+     * @param viewIds
+     *            the views to pull the report of
+     */
+    public ReportDefinition(String name, String topicName, List<String> dimensions, List<String> measures,
+            List<String> viewIds) {
+        this.name = name;
+        this.topicName = topicName;
+        this.dimensions = Collections.unmodifiableList(dimensions);
+        this.measures = Collections.unmodifiableList(measures);
+        this.viewIds = Collections.unmodifiableList(viewIds);
+    }
+
+    /**
+     * @param viewIds
+     *            the views of the copy
+     * @return the same report for other views
+     */
+    public ReportDefinition withViewIds(List<String> viewIds) {
+        return new ReportDefinition(this.name, this.topicName, this.dimensions, this.measures, viewIds);
+    }
+
+    /**
+     * @return the name of the report, null for the unnamed report
+     */
+    public String getName() {
+        return name;
+    }
+
+    public boolean isNamed() {
+        return name != null;
+    }
+
+    public String getTopicName() {
+        return topicName;
+    }
+
+    public List<String> getDimensions() {
+        return dimensions;
+    }
+
+    public List<String> getMeasures() {
+        return measures;
+    }
+
+    public List<String> getViewIds() {
+        return viewIds;
+    }
+
+    @Override
+    public String toString() {
+        return this.isNamed() ? "report " + this.name : "the report";
+    }
+}
@@ -2,39 +2,71 @@ package org.mrtrustworthy.kafka.connect.googleanalytics.source;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
-import org.apache.kafka.common.KafkaException;
 import org.apache.kafka.connect.data.ConnectSchema;
+import org.apache.kafka.connect.data.Field;
 import org.apache.kafka.connect.data.Schema;
 import org.apache.kafka.connect.data.SchemaBuilder;
 import org.apache.kafka.connect.data.Struct;
-import org.mrtrustworthy.kafka.connect.googleanalytics.Utils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.api.services.analyticsreporting.v4.model.ColumnHeader;
+import com.google.api.services.analyticsreporting.v4.model.DateRangeValues;
 import com.google.api.services.analyticsreporting.v4.model.MetricHeaderEntry;
 import com.google.api.services.analyticsreporting.v4.model.Report;
 import com.google.api.services.analyticsreporting.v4.model.ReportRow;
 
+/**
+ * Turns report pages into key and value structs. Schemas are compiled once per
+ * column layout and shared; a page is assembled by a {@link RowAssembler} of
+ * its own, so the fetch threads of a {@link StreamingReportDecoder} can
+ * assemble pages concurrently.
+ */
 public class ReportParser {
+    // there are rarely more than a handful of distinct column layouts per task
+    private static final int SCHEMA_CACHE_SIZE = 16;
 
-    private ConnectSchema valueSchema;
-    private ConnectSchema keySchema;
+    private CompiledSchema schema;
+    private String schemaFingerprint;
+    private final Map<String, CompiledSchema> schemaCache;
     private int currentSchemaVersion;
+
+    // the key schema only depends on the topic name and is shared by all value schemas
+    private ConnectSchema keySchema;
+
+    private final UrlHasher urlHasher;
+    private final RecordBatch.DuplicateKeyPolicy duplicateKeyPolicy;
+
     private static final Logger log = LoggerFactory.getLogger(ReportParser.class);
 
     ReportParser() {
+        this(new UrlHasher(UrlHasher.Algorithm.MD5, GAConnectorConfig.URL_HASH_CACHE_SIZE_DEFAULT),
+                RecordBatch.DuplicateKeyPolicy.KEEP_ALL);
+    }
+
+    ReportParser(UrlHasher urlHasher, RecordBatch.DuplicateKeyPolicy duplicateKeyPolicy) {
+        this.urlHasher = urlHasher;
+        this.duplicateKeyPolicy = duplicateKeyPolicy;
         this.currentSchemaVersion = 1;
+        this.schemaCache = new LinkedHashMap<String, CompiledSchema>(SCHEMA_CACHE_SIZE, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CompiledSchema> eldest) {
+                return size() > SCHEMA_CACHE_SIZE;
+            }
+        };
     }
 
-    public ConnectSchema getValueSchema() {
-        return valueSchema;
+    public synchronized ConnectSchema getValueSchema() {
+        return schema == null ? null : schema.valueSchema;
     }
 
-    public ConnectSchema getKeySchema() {
+    public synchronized ConnectSchema getKeySchema() {
         return keySchema;
     }
 
@@ -47,15 +79,35 @@ public class ReportParser {
      * @param topicName
      *            the topic name - this is used at schema creation to give the
      *            schema a name
-     * @return All Structs that need to be sent to kafka
+     * @return All Structs that need to be sent to kafka, in row order
+     */
+    public RecordBatch parseReport(Report report, String topicName) {
+        List<ReportRow> rows = report.getData().getRows();
+        return this.assemble(report, this.startReport(report.getColumnHeader(), topicName,
+                rows == null ? 0 : rows.size()));
+    }
+
+    /**
+     * Picks the schema of a page and hands out the assembler its rows are added
+     * to
+     *
+     * @param header
+     *            the column header of the page
+     * @param topicName
+     *            the topic name the schema is named after
+     * @param expectedRows
+     *            how many rows the page is expected to have
+     * @return an assembler for the rows of the page
      */
-    public Map<Struct, Struct> parseReport(Report report, String topicName) {
-        this.maybeUpdateSchema(report, topicName);
-        return this.createStructsOffReport(report);
+    public synchronized RowAssembler startReport(ColumnHeader header, String topicName, int expectedRows) {
+        this.maybeUpdateSchema(header, topicName);
+        return new RowAssembler(this.schema, expectedRows);
     }
 
     /**
-     * Updates self.schema if needed based on the current report
+     * Updates self.schema if needed based on the current report. Schemas are
+     * cached by a fingerprint of the report's column header, so a page with the
+     * same columns as the one before never builds a schema.
      *
      * @param report
      *            the Google Analytics report
@@ -64,22 +116,87 @@ public class ReportParser {
      *            schema a name
      */
     protected void maybeUpdateSchema(Report report, String topicName) {
-        ConnectSchema newValueSchema = (ConnectSchema) this.createSchemaOffReport(topicName, report);
-        ConnectSchema newKeySchema = (ConnectSchema) this.createKeySchema(topicName, report);
-        if (this.valueSchema == null) {
-            // This is the case in the initial run - just use the newly created schema
-            this.valueSchema = newValueSchema;
-            this.keySchema = newKeySchema;
-        } else if (newValueSchema.equals(this.valueSchema)) {
+        this.maybeUpdateSchema(report.getColumnHeader(), topicName);
+    }
+
+    private synchronized void maybeUpdateSchema(ColumnHeader header, String topicName) {
+        if (this.keySchema == null || !topicName.equals(this.keySchema.name())) {
+            this.keySchema = (ConnectSchema) this.createKeySchema(topicName);
+        }
+
+        String fingerprint = this.createFingerprint(topicName, header);
+        if (fingerprint.equals(this.schemaFingerprint)) {
             // effectively do nothing if the schema has not changed
-            log.info("Schema has not changed, continuing to use version " + this.currentSchemaVersion);
+            log.debug("Schema has not changed, continuing to use version " + this.schema.valueSchema.version());
+            return;
+        }
+
+        CompiledSchema cached = this.schemaCache.get(fingerprint);
+        if (cached != null) {
+            log.info("Schema has changed back to version " + cached.valueSchema.version());
         } else {
-            this.currentSchemaVersion++;
-            log.info("Schema has changed, need to use new schema with version " + this.currentSchemaVersion);
-            // Need to re-create schema to include the version bump
-            this.valueSchema = (ConnectSchema) this.createSchemaOffReport(topicName, report);
-            this.keySchema = (ConnectSchema) this.createKeySchema(topicName, report);
+            if (this.schema != null) {
+                this.currentSchemaVersion++;
+                log.info("Schema has changed, need to use new schema with version " + this.currentSchemaVersion);
+            }
+            // This is also the case in the initial run
+            cached = this.compileSchema(topicName, header);
+            this.schemaCache.put(fingerprint, cached);
         }
+        this.schema = cached;
+        this.schemaFingerprint = fingerprint;
+    }
+
+    /**
+     * A cheap identity of the schema a report needs: the schema name, dimension
+     * names and metric names and types, in column order
+     *
+     * @param topicName
+     *            the topic name the schema is named after
+     * @param header
+     *            the column header of the report
+     * @return a string that is equal for reports that share a schema
+     */
+    private String createFingerprint(String topicName, ColumnHeader header) {
+        StringBuilder fingerprint = new StringBuilder(topicName);
+        for (String dimension : header.getDimensions()) {
+            fingerprint.append('|').append(dimension);
+        }
+        for (MetricHeaderEntry mhe : header.getMetricHeader().getMetricHeaderEntries()) {
+            fingerprint.append('|').append(mhe.getName()).append(':').append(mhe.getType());
+        }
+        return fingerprint.toString();
+    }
+
+    /**
+     * Creates the value schema of a report and resolves the schema field and the
+     * parse function of every report column, so that converting a row only has to
+     * walk an array
+     *
+     * @param topicName
+     *            the topic name the schema is named after
+     * @param header
+     *            the column header of the report to create the schema from
+     * @return the schema together with its column plan
+     */
+    private CompiledSchema compileSchema(String topicName, ColumnHeader header) {
+        ConnectSchema valueSchema = (ConnectSchema) this.createSchemaOffReport(topicName, header);
+        List<String> recordNames = this.getRecordNamesInOrder(header);
+        CompiledSchema compiled = new CompiledSchema(valueSchema, this.keySchema, recordNames.size());
+
+        int dimensionCount = header.getDimensions().size();
+        for (int i = 0; i < recordNames.size(); i++) {
+            String recordName = recordNames.get(i);
+            Field field = valueSchema.field(recordName);
+            compiled.isMetricColumn[i] = i >= dimensionCount;
+            compiled.columnPlan[i] = new ColumnConverter(field, ReportParser.getConverter(field));
+            if ("pagePath".equals(recordName)) {
+                compiled.pagePathColumn = i;
+            } else if ("dateHourMinute".equals(recordName)) {
+                compiled.dateHourMinuteColumn = i;
+            }
+        }
+        return compiled;
     }
 
     /**
@@ -88,98 +205,113 @@ public class ReportParser {
      *
      * @param report
      *            the Google Analytics report
-     * @return all structs that need to be submitted to kafka
-     */
-    protected Map<Struct, Struct> createStructsOffReport(Report report) {
-
-        assert this.valueSchema != null : "Schema must not be null!";
-
-        Map<Struct, Struct> structs = new HashMap<>();
-        List<String> recordNames = this.getRecordNamesInOrder(report);
-        List<List<String>> recordValueList = this.getRecordValuesInOrder(report);
-
-        for (List<String> recordValues : recordValueList) {
-            assert recordNames.size() == recordValues.size() : "Those sizes should be the same";
-            Struct value = new Struct(this.valueSchema);
-            Struct key = new Struct(this.keySchema);
-            for (int i = 0; i < recordNames.size(); i++) {
-                String recordName = recordNames.get(i);
-                this.putValueInStruct(value, recordNames.get(i), recordValues.get(i));
-                if ("pagePath".equals(recordName)) {
-                    String url = recordValues.get(i);
-                    this.putValueInStruct(value, "urlHash", Utils.md5(url));
-                    this.putValueInStruct(key, "urlHash", Utils.md5(url));
-                } else if ("dateHourMinute".equals(recordName)) {
-                    this.putValueInStruct(key, "dateHourMinute", recordValues.get(i));
+     * @return all structs that need to be submitted to kafka, in row order
+     */
+    protected RecordBatch createStructsOffReport(Report report) {
+
+        assert this.schema != null : "Schema must not be null!";
+
+        List<ReportRow> rows = report.getData().getRows();
+        return this.assemble(report, new RowAssembler(this.schema, rows == null ? 0 : rows.size()));
+    }
+
+    /**
+     * Adds the rows of a report to the assembler, the values of a row are
+     * referenced from the report instead of being copied into lists
+     */
+    private RecordBatch assemble(Report report, RowAssembler assembler) {
+        if (report.getData().getRows() == null) {
+            // happens for days without any data, e.g. in a backfill shard
+            log.info("No data available for this timeframe");
+            return assembler.finish();
+        }
+
+        String[] values = new String[assembler.getColumnCount()];
+        for (ReportRow row : report.getData().getRows()) {
+            int column = 0;
+            for (String dimension : row.getDimensions()) {
+                values[column++] = dimension;
+            }
+            for (DateRangeValues drv : row.getMetrics()) {
+                for (String metric : drv.getValues()) {
+                    values[column++] = metric;
                 }
             }
-            structs.put(key, value);
+            assert column == values.length : "Those sizes should be the same";
+            assembler.add(values);
         }
+        return assembler.finish();
+    }
 
-        return structs;
+    /**
+     * Sums up the numeric metrics of a duplicate row into the row before it,
+     * other metrics take the value of the duplicate
+     */
+    private void mergeMetrics(CompiledSchema schema, Struct into, Struct duplicate) {
+        for (int i = 0; i < schema.columnPlan.length; i++) {
+            if (!schema.isMetricColumn[i]) {
+                continue;
+            }
+            Field field = schema.columnPlan[i].field;
+            Object current = into.get(field);
+            Object added = duplicate.get(field);
+            switch (field.schema().type()) {
+            case INT64:
+                into.put(field, (Long) current + (Long) added);
+                break;
+            case INT32:
+                into.put(field, (Integer) current + (Integer) added);
+                break;
+            case FLOAT32:
+                into.put(field, (Float) current + (Float) added);
+                break;
+            case FLOAT64:
+                into.put(field, (Double) current + (Double) added);
+                break;
+            default:
+                into.put(field, added);
+            }
+        }
     }
 
     /**
-     * This function puts a value into the struct, parsing it to the correct value
-     * underway
+     * Picks the function that parses a value of the field's type
      *
-     * @param struct
-     *            the individual data set to submit to kafka
-     * @param name
-     *            key for the struct value, ex. "pageName"
-     * @param value
-     *            struct value, ex. "/home""
-     */
-    private void putValueInStruct(Struct struct, String name, String value) {
-
-        String schemaName = this.valueSchema.field(name).schema().type().getName().toUpperCase();
-
-        if (schemaName.startsWith("INT64")) {
-            struct.put(name, Long.parseLong(value));
-        } else if (schemaName.startsWith("INT")) {
-            struct.put(name, Integer.parseInt(value));
-        } else if (schemaName.startsWith("FLOAT")) {
-            struct.put(name, Float.parseFloat(value));
-        } else if (schemaName.startsWith("DOUBLE")) {
-            struct.put(name, Double.parseDouble(value));
-        } else if (schemaName.startsWith("BOOL")) {
-            struct.put(name, Boolean.parseBoolean(value));
-        } else if (schemaName.startsWith("STRING")) {
-            struct.put(name, value);
-        } else {
-            log.warn("Can't find matching type for {}, putting {} into {} as string", schemaName, value, name);
-            struct.put(name, value);
+     * @param field
+     *            the schema field a column is written to
+     * @return a function turning the column's string into the field's type
+     */
+    private static Function<String, Object> getConverter(Field field) {
+        switch (field.schema().type()) {
+        case INT64:
+            return Long::parseLong;
+        case INT32:
+            return Integer::parseInt;
+        case FLOAT32:
+            return Float::parseFloat;
+        case FLOAT64:
+            return Double::parseDouble;
+        case BOOLEAN:
+            return Boolean::parseBoolean;
+        case STRING:
+            return value -> value;
+        default:
+            log.warn("Can't find matching type for {}, putting its values in as string", field.name());
+            return value -> value;
         }
     }
 
     /**
-     * @param report
-     *            the Google Analytics report
+     * @param header
+     *            the column header of the report
      * @return all record names in order, dimensions first then metrics
      */
-    private List<String> getRecordNamesInOrder(Report report) {
+    private List<String> getRecordNamesInOrder(ColumnHeader header) {
         List<String> names = new ArrayList<>();
-        names.addAll(report.getColumnHeader().getDimensions());
-        names.addAll(report.getColumnHeader().getMetricHeader().getMetricHeaderEntries().stream()
+        names.addAll(header.getDimensions());
+        names.addAll(header.getMetricHeader().getMetricHeaderEntries().stream()
                 .map(MetricHeaderEntry::getName).collect(Collectors.toList()));
-        return names.stream().map(this::sanitize).collect(Collectors.toList());
-    }
-
-    /**
-     * @param report
-     *            the Google Analytics report
-     * @return all record values in order, dimensions first then metrics
-     */
-    private List<List<String>> getRecordValuesInOrder(Report report) {
-        List<List<String>> listOfRecordValues = new ArrayList<>();
-        if (report.getData().getRows() == null)
-            throw new KafkaException("No data available for this timeframe");
-        for (ReportRow row : report.getData().getRows()) {
-            List<String> rowValues = new ArrayList<>(row.getDimensions());
-            row.getMetrics().forEach(drv -> rowValues.addAll(drv.getValues()));
-            listOfRecordValues.add(rowValues);
-        }
-        return listOfRecordValues;
+        return names.stream().map(ReportParser::sanitize).collect(Collectors.toList());
     }
 
     /**
@@ -187,25 +319,26 @@ public class ReportParser {
      *
      * @param name
      *            name of the schema, typically the topic name
-     * @param report
-     *            the Google Analytics report
+     * @param header
+     *            the column header of the report
      * @return a valid schema that can encode the report
      */
-    private Schema createSchemaOffReport(String name, Report report) {
+    private Schema createSchemaOffReport(String name, ColumnHeader header) {
 
         SchemaBuilder schema = SchemaBuilder.struct().name(name).version(this.currentSchemaVersion);
-        report.getColumnHeader().getDimensions().forEach((s) -> schema.field(this.sanitize(s), Schema.STRING_SCHEMA));
-        report.getColumnHeader().getMetricHeader().getMetricHeaderEntries()
-                .forEach(mhe -> schema.field(this.sanitize(mhe.getName()), ReportParser.getSchemaOfMetric(mhe)));
+        header.getDimensions().forEach((s) -> schema.field(sanitize(s), Schema.STRING_SCHEMA));
+        header.getMetricHeader().getMetricHeaderEntries()
+                .forEach(mhe -> schema.field(sanitize(mhe.getName()), ReportParser.getSchemaOfMetric(mhe)));
         schema.field("urlHash", Schema.STRING_SCHEMA);
         return schema.build();
     }
 
     /**
-     * Creates The key schema
+     * Creates The key schema, it only depends on the name and is shared by all
+     * versions of the value schema
      *
      */
-    private Schema createKeySchema(String name, Report report) {
+    private Schema createKeySchema(String name) {
 
         SchemaBuilder schema = SchemaBuilder.struct().name(name).version(this.currentSchemaVersion);
         schema.field("dateHourMinute", Schema.STRING_SCHEMA);
@@ -241,7 +374,120 @@ public class ReportParser {
      *            input string
      * @return avro-conforming string
      */
-    private String sanitize(String s) {
+    static String sanitize(String s) {
         return s.replace("ga:", "").replace(".", "_");
     }
+
+    /**
+     * Turns the rows of one page into structs, one row at a time. Every page gets
+     * an assembler of its own, so pages can be assembled concurrently.
+     */
+    public class RowAssembler {
+        private final CompiledSchema schema;
+        private final RecordBatch structs;
+        // only needed to find duplicates, rows are identified by their raw key values
+        private final Map<String, Integer> positions;
+
+        private RowAssembler(CompiledSchema schema, int expectedRows) {
+            this.schema = schema;
+            this.structs = new RecordBatch(schema.keySchema, schema.valueSchema, expectedRows);
+            // without both key columns every row would share its key with all others, those rows are all kept
+            boolean keyed = schema.pagePathColumn >= 0 && schema.dateHourMinuteColumn >= 0;
+            this.positions = duplicateKeyPolicy == RecordBatch.DuplicateKeyPolicy.KEEP_ALL || !keyed ? null
+                    : new HashMap<>(expectedRows * 4 / 3 + 1);
+        }
+
+        /**
+         * @return the number of values every row has, dimensions first then
+         *         metrics
+         */
+        public int getColumnCount() {
+            return this.schema.columnPlan.length;
+        }
+
+        /**
+         * @param recordValues
+         *            the values of a row in column order, only read during the
+         *            call
+         */
+        public void add(String[] recordValues) {
+            CompiledSchema schema = this.schema;
+            Struct value = new Struct(schema.valueSchema);
+            Struct key = new Struct(schema.keySchema);
+            for (int i = 0; i < schema.columnPlan.length; i++) {
+                ColumnConverter column = schema.columnPlan[i];
+                value.put(column.field, column.converter.apply(recordValues[i]));
+            }
+            String urlHash = null;
+            String dateHourMinute = null;
+            if (schema.pagePathColumn >= 0) {
+                urlHash = urlHasher.hash(recordValues[schema.pagePathColumn]);
+                value.put(schema.urlHashField, urlHash);
+                key.put(schema.keyUrlHashField, urlHash);
+            }
+            if (schema.dateHourMinuteColumn >= 0) {
+                dateHourMinute = recordValues[schema.dateHourMinuteColumn];
+                key.put(schema.keyDateHourMinuteField, dateHourMinute);
+            }
+
+            if (this.positions == null) {
+                this.structs.add(key, value);
+                return;
+            }
+            Integer position = this.positions.get(dateHourMinute + "|" + urlHash);
+            if (position == null) {
+                this.positions.put(dateHourMinute + "|" + urlHash, this.structs.add(key, value));
+            } else if (duplicateKeyPolicy == RecordBatch.DuplicateKeyPolicy.KEEP_LAST) {
+                this.structs.setValue(position, value);
+            } else {
+                mergeMetrics(schema, this.structs.getValue(position), value);
+            }
+        }
+
+        /**
+         * @return the structs of all rows added, in row order
+         */
+        public RecordBatch finish() {
+            return this.structs;
+        }
+    }
+
+    /**
+     * A value schema together with the converters for the report columns, in
+     * report column order
+     */
+    private static class CompiledSchema {
+        private final ConnectSchema valueSchema;
+        private final ConnectSchema keySchema;
+        private final ColumnConverter[] columnPlan;
+        private final boolean[] isMetricColumn;
+        private final Field urlHashField;
+        private final Field keyUrlHashField;
+        private final Field keyDateHourMinuteField;
+        private int pagePathColumn = -1;
+        private int dateHourMinuteColumn = -1;
+
+        CompiledSchema(ConnectSchema valueSchema, ConnectSchema keySchema, int columns) {
+            this.valueSchema = valueSchema;
+            this.keySchema = keySchema;
+            this.columnPlan = new ColumnConverter[columns];
+            this.isMetricColumn = new boolean[columns];
+            this.urlHashField = valueSchema.field("urlHash");
+            this.keyUrlHashField = keySchema.field("urlHash");
+            this.keyDateHourMinuteField = keySchema.field("dateHourMinute");
+        }
+    }
+
+    /**
+     * The schema field of a report column together with its parse function
+     */
+    private static class ColumnConverter {
+        private final Field field;
+        private final Function<String, Object> converter;
+
+        ColumnConverter(Field field, Function<String, Object> converter) {
+            this.field = field;
+            this.converter = converter;
+        }
+    }
 }
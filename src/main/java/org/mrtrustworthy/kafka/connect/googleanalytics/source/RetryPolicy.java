@@ -0,0 +1,69 @@
+package org.mrtrustworthy.kafka.connect.googleanalytics.source;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.google.api.client.http.HttpResponseException;
+
+/**
+ * Decides which failed requests are worth retrying and how long to back off
+ * before the next attempt. Backoff grows exponentially and is fully jittered,
+ * so tasks that ran into the same quota do not retry in lockstep.
+ */
+public class RetryPolicy {
+    private static final int TOO_MANY_REQUESTS = 429;
+
+    private final int maxAttempts;
+    private final long backoffMs;
+    private final long maxBackoffMs;
+
+    /**
+     * @param maxAttempts
+     *            how often a request is sent at most, 1 disables retries
+     * @param backoffMs
+     *            the backoff after the first failure
+     * @param maxBackoffMs
+     *            upper bound of the backoff
+     */
+    public RetryPolicy(int maxAttempts, long backoffMs, long maxBackoffMs) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.backoffMs = Math.max(0, backoffMs);
+        this.maxBackoffMs = Math.max(this.backoffMs, maxBackoffMs);
+    }
+
+    /**
+     * Quota errors, server errors and network errors are retried, other client
+     * errors (bad request, missing permissions) would just fail again
+     *
+     * @param e
+     *            the failure
+     * @return whether to send the request again
+     */
+    public boolean isRetryable(IOException e) {
+        if (e instanceof InterruptedIOException) {
+            return false;
+        }
+        if (e instanceof HttpResponseException) {
+            int status = ((HttpResponseException) e).getStatusCode();
+            return status == TOO_MANY_REQUESTS || status >= 500;
+        }
+        return true;
+    }
+
+    /**
+     * @param failures
+     *            how many attempts failed so far, at least 1
+     * @return a random backoff between 0 and backoff * 2^(failures - 1), capped
+     *         at the maximum backoff
+     */
+    public long getBackoffMs(int failures) {
+        int exponent = Math.min(Math.max(0, failures - 1), 30);
+        long cap = Math.min(this.maxBackoffMs, this.backoffMs << exponent);
+        return ThreadLocalRandom.current().nextLong(cap + 1);
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+}
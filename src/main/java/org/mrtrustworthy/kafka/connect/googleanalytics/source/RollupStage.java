@@ -0,0 +1,374 @@
+package org.mrtrustworthy.kafka.connect.googleanalytics.source;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.kafka.connect.data.ConnectSchema;
+import org.apache.kafka.connect.data.Field;
+import org.apache.kafka.connect.data.Schema;
+import org.apache.kafka.connect.data.Struct;
+import org.mrtrustworthy.kafka.connect.googleanalytics.GASourceConnector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sums up the rows of a run into hour or day windows before they are emitted.
+ * Rows of the same window whose other dimensions are the same end up in a
+ * single record: its dateHourMinute is the start of the window, e.g.
+ * 201803151200 for an hour, and its metrics are the sums of the rows. Only the
+ * dimensions of the report identify a group, metrics never do. TIME, CURRENCY
+ * and PERCENT metrics are strings in the records and summed up as decimals.
+ * Fields that are neither, like the urlHash, are taken from the first row of
+ * the group. The configuration only lets reports whose metrics all add up
+ * through, a rollup of e.g. users or avgTimeOnPage would be wrong.
+ * <p>
+ * The rows of a window may be spread over all pages of a run, so the records
+ * of a run are only emitted once its last page arrived. All but the last of
+ * them carry the offset of the first page of the run and the last one the
+ * offset after the run: a restart in the middle of a run, or of its records,
+ * fetches the whole run again and emits the same sums once more. Journaled
+ * pages of a run stay in the journal until the last record of the run is
+ * written, a restart emits the run from the journal then. The sums are
+ * kept in arrays, primitive ones for numeric metrics, only the first row of
+ * every group is kept as structs.
+ * <p>
+ * Only poll() adds pages, the stage is not thread safe.
+ */
+public class RollupStage {
+    private static final Logger log = LoggerFactory.getLogger(GASourceConnector.class);
+    private static final String DATE_HOUR_MINUTE = "dateHourMinute";
+    private static final DateTimeFormatter DATE_HOUR_MINUTE_FORMAT = DateTimeFormatter.ofPattern("yyyyMMddHHmm");
+
+    /**
+     * The windows rows are summed up into
+     */
+    public enum Window {
+        // every row is emitted on its own
+        NONE(12),
+        HOUR(10),
+        DAY(8);
+
+        // the leading digits of yyyyMMddHHmm all minutes of a window share
+        private final int prefix;
+
+        Window(int prefix) {
+            this.prefix = prefix;
+        }
+
+        /**
+         * @param dateHourMinute
+         *            a minute as yyyyMMddHHmm
+         * @return the first minute of the window the minute lies in
+         */
+        public String start(String dateHourMinute) {
+            return dateHourMinute.substring(0, this.prefix) + "0000".substring(0, 12 - this.prefix);
+        }
+    }
+
+    private final Window window;
+    private final Map<ViewState, Run> runs = new HashMap<>();
+
+    public RollupStage(Window window) {
+        this.window = window;
+    }
+
+    public Window getWindow() {
+        return window;
+    }
+
+    /**
+     * An intraday run only requests the rows after the watermark. Moving the
+     * watermark back to the start of its window lets the run sum up that window
+     * completely, the records of the window emitted by the previous run are
+     * replaced by ones with the same key. With day windows every run fetches
+     * all rows of today so far, an interval of a few minutes then costs a
+     * request per page of the whole day instead of one for the latest rows.
+     *
+     * @param watermark
+     *            the minute after which rows are requested, may be null
+     * @return the minute after which rows have to be requested
+     */
+    public String rewind(String watermark) {
+        if (watermark == null || this.window == Window.NONE) {
+            return watermark;
+        }
+        String next = LocalDateTime.parse(watermark, DATE_HOUR_MINUTE_FORMAT).plusMinutes(1)
+                .format(DATE_HOUR_MINUTE_FORMAT);
+        return LocalDateTime.parse(this.window.start(next), DATE_HOUR_MINUTE_FORMAT).minusMinutes(1)
+                .format(DATE_HOUR_MINUTE_FORMAT);
+    }
+
+    /**
+     * Adds the rows of a page to the run of its state
+     *
+     * @param page
+     *            the page, pages of a state have to be added in the order they
+     *            were fetched in
+     * @param structs
+     *            the rows of the page
+     * @param from
+     *            the first row to add, the ones before were emitted before a
+     *            restart
+     * @return the summed up rows of the run once its last page was added, null
+     *         while the run goes on
+     */
+    public Rollup add(FetchedPage page, RecordBatch structs, int from) {
+        Run run = this.runs.get(page.getState());
+        List<Long> journalSeqs = new ArrayList<>();
+        if (run != null && !run.valueSchema.equals(structs.getValueSchema())) {
+            log.warn("The schema of " + page.getSourcePartition() + " changed within a run, its rollup starts over");
+            // the pages of the run are left behind all the same
+            journalSeqs = run.journalSeqs;
+            run = null;
+        }
+        if (run == null) {
+            run = new Run(page.getPageOffset(), page.getState().getReport(), structs.getKeySchema(),
+                    structs.getValueSchema(), journalSeqs);
+            this.runs.put(page.getState(), run);
+        }
+        if (page.isJournaled()) {
+            run.journalSeqs.add(page.getJournalSeq());
+        }
+        for (int r = from; r < structs.size(); r++) {
+            run.add(structs.getKey(r), structs.getValue(r));
+        }
+
+        if (!page.isLastOfRun()) {
+            return null;
+        }
+        this.runs.remove(page.getState());
+        return new Rollup(run.finish(), run.offset, page.getNextOffset(), run.journalSeqs);
+    }
+
+    /**
+     * The records of a finished run
+     */
+    public static class Rollup {
+        private final RecordBatch structs;
+        private final Map<String, Object> runOffset;
+        private final Map<String, Object> nextOffset;
+        private final List<Long> journalSeqs;
+
+        private Rollup(RecordBatch structs, Map<String, Object> runOffset, Map<String, Object> nextOffset,
+                List<Long> journalSeqs) {
+            this.structs = structs;
+            this.runOffset = runOffset;
+            this.nextOffset = nextOffset;
+            this.journalSeqs = journalSeqs;
+        }
+
+        public RecordBatch getStructs() {
+            return structs;
+        }
+
+        /**
+         * @param row
+         *            the position of the record
+         * @return the offset to attach to the record
+         */
+        public Map<String, Object> getSourceOffset(int row) {
+            return row == this.structs.size() - 1 ? this.nextOffset : this.runOffset;
+        }
+
+        /**
+         * @return the journal sequence numbers of the pages of the run, they
+         *         are done once its last record is written
+         */
+        public List<Long> getJournalSeqs() {
+            return journalSeqs;
+        }
+    }
+
+    /**
+     * The groups of a run so far
+     */
+    private class Run {
+        private final Map<String, Object> offset;
+        private final ConnectSchema valueSchema;
+        private final List<Long> journalSeqs;
+        private final Field keyDateHourMinute;
+        private final Field valueDateHourMinute;
+        // the dimensions that identify a group, besides the window
+        private final Field[] groupFields;
+        // the metrics, by the type they are summed up as
+        private final Field[] longFields;
+        private final Field[] doubleFields;
+        private final Field[] decimalFields;
+
+        private final Map<String, Integer> groups = new HashMap<>();
+        private final RecordBatch firstRows;
+        private long[] longSums = new long[0];
+        private double[] doubleSums = new double[0];
+        private BigDecimal[] decimalSums = new BigDecimal[0];
+        private final StringBuilder groupKey = new StringBuilder();
+
+        Run(Map<String, Object> offset, ReportDefinition report, ConnectSchema keySchema,
+                ConnectSchema valueSchema, List<Long> journalSeqs) {
+            this.offset = offset;
+            this.valueSchema = valueSchema;
+            this.journalSeqs = journalSeqs;
+            this.keyDateHourMinute = keySchema.field(DATE_HOUR_MINUTE);
+            this.valueDateHourMinute = valueSchema.field(DATE_HOUR_MINUTE);
+            this.firstRows = new RecordBatch(keySchema, valueSchema, 16);
+
+            Set<String> dimensions = new HashSet<>();
+            report.getDimensions().forEach(dimension -> dimensions.add(ReportParser.sanitize(dimension)));
+            Set<String> metrics = new HashSet<>();
+            report.getMeasures().forEach(metric -> metrics.add(ReportParser.sanitize(metric)));
+
+            List<Field> groupFields = new ArrayList<>();
+            List<Field> longFields = new ArrayList<>();
+            List<Field> doubleFields = new ArrayList<>();
+            List<Field> decimalFields = new ArrayList<>();
+            for (Field field : valueSchema.fields()) {
+                if (dimensions.contains(field.name())) {
+                    if (!field.equals(this.valueDateHourMinute)) {
+                        groupFields.add(field);
+                    }
+                    continue;
+                }
+                if (!metrics.contains(field.name())) {
+                    continue;
+                }
+                switch (field.schema().type()) {
+                case INT8:
+                case INT16:
+                case INT32:
+                case INT64:
+                    longFields.add(field);
+                    break;
+                case FLOAT32:
+                case FLOAT64:
+                    doubleFields.add(field);
+                    break;
+                case STRING:
+                    decimalFields.add(field);
+                    break;
+                default:
+                    // e.g. a BOOLEAN metric, the first row of the group stands for it
+                }
+            }
+            this.groupFields = groupFields.toArray(new Field[0]);
+            this.longFields = longFields.toArray(new Field[0]);
+            this.doubleFields = doubleFields.toArray(new Field[0]);
+            this.decimalFields = decimalFields.toArray(new Field[0]);
+        }
+
+        void add(Struct key, Struct value) {
+            String dateHourMinute = key.getString(DATE_HOUR_MINUTE);
+            String start = dateHourMinute == null ? null : window.start(dateHourMinute);
+
+            this.groupKey.setLength(0);
+            this.groupKey.append(start);
+            for (Field field : this.groupFields) {
+                this.groupKey.append('\u0000').append(value.get(field));
+            }
+            String groupKey = this.groupKey.toString();
+            Integer group = this.groups.get(groupKey);
+            if (group == null) {
+                // the first row of the group stands for all of them, it is not used anywhere else
+                key.put(this.keyDateHourMinute, start);
+                if (this.valueDateHourMinute != null) {
+                    value.put(this.valueDateHourMinute, start);
+                }
+                group = this.firstRows.add(key, value);
+                this.groups.put(groupKey, group);
+                this.grow(group + 1);
+            }
+
+            int longBase = group * this.longFields.length;
+            for (int i = 0; i < this.longFields.length; i++) {
+                Object metric = value.get(this.longFields[i]);
+                if (metric != null) {
+                    this.longSums[longBase + i] += ((Number) metric).longValue();
+                }
+            }
+            int doubleBase = group * this.doubleFields.length;
+            for (int i = 0; i < this.doubleFields.length; i++) {
+                Object metric = value.get(this.doubleFields[i]);
+                if (metric != null) {
+                    this.doubleSums[doubleBase + i] += ((Number) metric).doubleValue();
+                }
+            }
+            int decimalBase = group * this.decimalFields.length;
+            for (int i = 0; i < this.decimalFields.length; i++) {
+                Object metric = value.get(this.decimalFields[i]);
+                if (metric != null && !((String) metric).isEmpty()) {
+                    BigDecimal sum = this.decimalSums[decimalBase + i];
+                    BigDecimal decimal = new BigDecimal((String) metric);
+                    this.decimalSums[decimalBase + i] = sum == null ? decimal : sum.add(decimal);
+                }
+            }
+        }
+
+        private void grow(int groups) {
+            if (groups * this.longFields.length > this.longSums.length) {
+                this.longSums = Arrays.copyOf(this.longSums, Math.max(16, groups * 2) * this.longFields.length);
+            }
+            if (groups * this.doubleFields.length > this.doubleSums.length) {
+                this.doubleSums = Arrays.copyOf(this.doubleSums,
+                        Math.max(16, groups * 2) * this.doubleFields.length);
+            }
+            if (groups * this.decimalFields.length > this.decimalSums.length) {
+                this.decimalSums = Arrays.copyOf(this.decimalSums,
+                        Math.max(16, groups * 2) * this.decimalFields.length);
+            }
+        }
+
+        /**
+         * @return one record per group, in the order the groups first appeared
+         */
+        RecordBatch finish() {
+            for (int group = 0; group < this.firstRows.size(); group++) {
+                Struct value = this.firstRows.getValue(group);
+                for (int i = 0; i < this.longFields.length; i++) {
+                    value.put(this.longFields[i],
+                            narrow(this.longFields[i], this.longSums[group * this.longFields.length + i]));
+                }
+                for (int i = 0; i < this.doubleFields.length; i++) {
+                    value.put(this.doubleFields[i],
+                            narrow(this.doubleFields[i], this.doubleSums[group * this.doubleFields.length + i]));
+                }
+                for (int i = 0; i < this.decimalFields.length; i++) {
+                    BigDecimal sum = this.decimalSums[group * this.decimalFields.length + i];
+                    // a group without any value keeps the one of its first row
+                    if (sum != null) {
+                        value.put(this.decimalFields[i], sum.toPlainString());
+                    }
+                }
+            }
+            return this.firstRows;
+        }
+    }
+
+    /**
+     * @return the sum as the type of the field
+     */
+    private static Object narrow(Field field, long sum) {
+        switch (field.schema().type()) {
+        case INT8:
+            return (byte) sum;
+        case INT16:
+            return (short) sum;
+        case INT32:
+            return (int) sum;
+        default:
+            return sum;
+        }
+    }
+
+    /**
+     * @return the sum as the type of the field
+     */
+    private static Object narrow(Field field, double sum) {
+        return field.schema().type() == Schema.Type.FLOAT32 ? (Object) (float) sum : (Object) sum;
+    }
+}
@@ -0,0 +1,131 @@
+package org.mrtrustworthy.kafka.connect.googleanalytics.source;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.params.HttpParams;
+import org.mrtrustworthy.kafka.connect.googleanalytics.GASourceConnector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.api.client.googleapis.GoogleUtils;
+import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.apache.ApacheHttpTransport;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.services.analyticsreporting.v4.AnalyticsReportingScopes;
+
+/**
+ * The HTTP transport and credential of a service account, shared by all tasks
+ * of the worker that use that account. Tasks on the same worker reuse one
+ * connection pool and one OAuth token instead of each setting up their own.
+ * Clients are reference counted: {@link #acquire(GAConnectorConfig)} hands out
+ * the existing client or creates it, {@link #release()} shuts the transport
+ * down once the last task released it.
+ */
+public class SharedGoogleClient {
+    private static final Logger log = LoggerFactory.getLogger(GASourceConnector.class);
+    private static final JsonFactory JSON_FACTORY = GsonFactory.getDefaultInstance();
+    private static final String ANONYMOUS_ACCOUNT = "anonymous";
+
+    // worker wide registry, guarded by the class lock
+    private static final Map<String, SharedGoogleClient> CLIENTS = new HashMap<>();
+
+    private final String key;
+    private final HttpTransport transport;
+    private final GoogleCredential credential;
+    private int references;
+
+    private SharedGoogleClient(String key, HttpTransport transport, GoogleCredential credential) {
+        this.key = key;
+        this.transport = transport;
+        this.credential = credential;
+        this.references = 0;
+    }
+
+    /**
+     * Hands out the client of the configured service account, tasks with the
+     * same account and connection pool size get the same client. Every call has
+     * to be matched by a call to {@link #release()}.
+     *
+     * @param conf
+     *            the task configuration
+     * @return the shared client
+     * @throws GeneralSecurityException
+     *             if the transport could not be set up
+     * @throws IOException
+     *             if the credential could not be read
+     */
+    public static synchronized SharedGoogleClient acquire(GAConnectorConfig conf)
+            throws GeneralSecurityException, IOException {
+        String account = conf.isAnonymous() ? ANONYMOUS_ACCOUNT
+                : conf.getClient_email() + "/" + conf.getPrivate_key_id();
+        String key = account + "|" + conf.getHttpMaxConnections();
+
+        SharedGoogleClient client = CLIENTS.get(key);
+        if (client == null) {
+            log.info("Creating a shared HTTP transport for " + account + " with up to "
+                    + conf.getHttpMaxConnections() + " connections");
+            HttpTransport transport = createTransport(conf.getHttpMaxConnections());
+            GoogleCredential credential = null;
+            if (!conf.isAnonymous()) {
+                credential = GoogleCredential
+                        .fromStream(conf.getGoogleConfigurationAsInputStream(), transport, JSON_FACTORY)
+                        .createScoped(AnalyticsReportingScopes.all());
+            }
+            client = new SharedGoogleClient(key, transport, credential);
+            CLIENTS.put(key, client);
+        }
+        client.references++;
+        return client;
+    }
+
+    /**
+     * A transport trusting the certificates Google ships with its client, backed
+     * by a pool of keep-alive connections
+     */
+    private static HttpTransport createTransport(int maxConnections) throws GeneralSecurityException, IOException {
+        ApacheHttpTransport.Builder builder = new ApacheHttpTransport.Builder()
+                .trustCertificates(GoogleUtils.getCertificateTrustStore());
+        HttpParams params = builder.getHttpParams();
+        ConnManagerParams.setMaxTotalConnections(params, maxConnections);
+        // almost every connection goes to the reporting API, it may use the whole pool
+        ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(maxConnections));
+        return builder.build();
+    }
+
+    /**
+     * Gives the client back, the transport is shut down once no task uses it
+     * anymore
+     */
+    public void release() {
+        synchronized (SharedGoogleClient.class) {
+            if (--this.references > 0) {
+                return;
+            }
+            CLIENTS.remove(this.key);
+        }
+
+        try {
+            this.transport.shutdown();
+        } catch (IOException e) {
+            log.warn("Could not shut down the HTTP transport: " + e.getMessage());
+        }
+    }
+
+    public HttpTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * @return the credential, null for anonymous clients
+     */
+    public GoogleCredential getCredential() {
+        return credential;
+    }
+}
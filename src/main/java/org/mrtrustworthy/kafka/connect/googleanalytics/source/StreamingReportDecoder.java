@@ -0,0 +1,250 @@
+package org.mrtrustworthy.kafka.connect.googleanalytics.source;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.JsonParser;
+import com.google.api.client.json.JsonToken;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.services.analyticsreporting.v4.model.ColumnHeader;
+
+/**
+ * Decodes the body of a batchGet response straight into structs while it
+ * streams in. The default path decodes the whole response into the Report
+ * object model first and then walks that; here only the column header is
+ * decoded into objects, every row is read token by token into a reused buffer
+ * and handed to the {@link ReportParser.RowAssembler} of its page right away.
+ * Fields the task does not read are skipped without being decoded.
+ * <p>
+ * GA sends the column header before the rows. Rows that come first anyway are
+ * held back until the header arrives. Thread safe.
+ */
+public class StreamingReportDecoder {
+    private static final JsonFactory JSON_FACTORY = GsonFactory.getDefaultInstance();
+
+    private final ReportParser parser;
+    private final String topicName;
+
+    /**
+     * @param parser
+     *            the parser whose schemas the structs are built with
+     * @param topicName
+     *            the topic name the schemas are named after
+     */
+    public StreamingReportDecoder(ReportParser parser, String topicName) {
+        this.parser = parser;
+        this.topicName = topicName;
+    }
+
+    /**
+     * Decodes a response to requests of the default page size
+     *
+     * @see #decode(InputStream, Charset, int)
+     */
+    public List<DecodedReport> decode(InputStream content, Charset charset) throws IOException {
+        return this.decode(content, charset, GAConnectorConfig.FETCH_PAGE_SIZE_DEFAULT);
+    }
+
+    /**
+     * @param content
+     *            the body of a batchGet response, closed once it is decoded
+     * @param charset
+     *            the charset of the body
+     * @param pageSize
+     *            the page size the reports were requested with, the batches are
+     *            sized for it
+     * @return the decoded reports, in request order
+     * @throws IOException
+     *             if the body could not be read or is not a batchGet response
+     */
+    public List<DecodedReport> decode(InputStream content, Charset charset, int pageSize) throws IOException {
+        List<DecodedReport> reports = new ArrayList<>();
+        JsonParser json = JSON_FACTORY.createJsonParser(content, charset);
+        try {
+            expect(json.nextToken(), JsonToken.START_OBJECT);
+            while (json.nextToken() == JsonToken.FIELD_NAME) {
+                String field = json.getCurrentName();
+                JsonToken value = json.nextToken();
+                if ("reports".equals(field) && value == JsonToken.START_ARRAY) {
+                    while (json.nextToken() == JsonToken.START_OBJECT) {
+                        reports.add(this.decodeReport(json, pageSize));
+                    }
+                } else {
+                    json.skipChildren();
+                }
+            }
+        } finally {
+            json.close();
+        }
+        return reports;
+    }
+
+    /**
+     * Decodes a report, the parser stands on its opening brace
+     */
+    private DecodedReport decodeReport(JsonParser json, int pageSize) throws IOException {
+        ReportParser.RowAssembler assembler = null;
+        List<String[]> heldBack = new ArrayList<>();
+        String nextPageToken = null;
+        Integer rowCount = null;
+        boolean golden = false;
+        int pageRows = 0;
+
+        while (json.nextToken() == JsonToken.FIELD_NAME) {
+            String field = json.getCurrentName();
+            json.nextToken();
+            switch (field) {
+            case "columnHeader":
+                ColumnHeader header = json.parse(ColumnHeader.class);
+                assembler = this.parser.startReport(header, this.topicName, pageSize);
+                for (String[] row : heldBack) {
+                    assembler.add(row);
+                }
+                heldBack = null;
+                break;
+            case "data":
+                expect(json.getCurrentToken(), JsonToken.START_OBJECT);
+                while (json.nextToken() == JsonToken.FIELD_NAME) {
+                    String dataField = json.getCurrentName();
+                    JsonToken value = json.nextToken();
+                    if ("rows".equals(dataField) && value == JsonToken.START_ARRAY) {
+                        pageRows += this.decodeRows(json, assembler, heldBack);
+                    } else if ("rowCount".equals(dataField) && value == JsonToken.VALUE_NUMBER_INT) {
+                        rowCount = json.getIntValue();
+                    } else if ("isDataGolden".equals(dataField)) {
+                        golden = value == JsonToken.VALUE_TRUE;
+                    } else {
+                        json.skipChildren();
+                    }
+                }
+                break;
+            case "nextPageToken":
+                nextPageToken = json.getText();
+                break;
+            default:
+                json.skipChildren();
+            }
+        }
+
+        if (assembler == null) {
+            throw new IOException("Report without a column header");
+        }
+        return new DecodedReport(assembler.finish(), nextPageToken, rowCount, golden, pageRows);
+    }
+
+    /**
+     * Decodes the rows of a report one at a time, the parser stands on the
+     * opening bracket of the rows
+     *
+     * @return the number of rows decoded
+     */
+    private int decodeRows(JsonParser json, ReportParser.RowAssembler assembler, List<String[]> heldBack)
+            throws IOException {
+        List<String> row = new ArrayList<>();
+        String[] values = assembler == null ? null : new String[assembler.getColumnCount()];
+        int rows = 0;
+        while (json.nextToken() == JsonToken.START_OBJECT) {
+            rows++;
+            row.clear();
+            while (json.nextToken() == JsonToken.FIELD_NAME) {
+                String field = json.getCurrentName();
+                JsonToken value = json.nextToken();
+                if ("dimensions".equals(field) && value == JsonToken.START_ARRAY) {
+                    this.decodeStrings(json, row);
+                } else if ("metrics".equals(field) && value == JsonToken.START_ARRAY) {
+                    // one DateRangeValues per date range
+                    while (json.nextToken() == JsonToken.START_OBJECT) {
+                        while (json.nextToken() == JsonToken.FIELD_NAME) {
+                            String metricsField = json.getCurrentName();
+                            if (json.nextToken() == JsonToken.START_ARRAY && "values".equals(metricsField)) {
+                                this.decodeStrings(json, row);
+                            } else {
+                                json.skipChildren();
+                            }
+                        }
+                    }
+                } else {
+                    json.skipChildren();
+                }
+            }
+
+            if (assembler == null) {
+                heldBack.add(row.toArray(new String[row.size()]));
+            } else if (row.size() != values.length) {
+                throw new IOException("Row with " + row.size() + " values, the header has " + values.length);
+            } else {
+                assembler.add(row.toArray(values));
+            }
+        }
+        return rows;
+    }
+
+    private void decodeStrings(JsonParser json, List<String> into) throws IOException {
+        while (json.nextToken() != JsonToken.END_ARRAY) {
+            into.add(json.getText());
+        }
+    }
+
+    private static void expect(JsonToken actual, JsonToken expected) throws IOException {
+        if (actual != expected) {
+            throw new IOException("Expected " + expected + " in the batchGet response, got " + actual);
+        }
+    }
+
+    /**
+     * The structs of a report page and what the task needs to know to request
+     * the page after it
+     */
+    public static class DecodedReport {
+        private final RecordBatch structs;
+        private final String nextPageToken;
+        private final Integer rowCount;
+        private final boolean golden;
+        private final int pageRows;
+
+        DecodedReport(RecordBatch structs, String nextPageToken, Integer rowCount, boolean golden, int pageRows) {
+            this.structs = structs;
+            this.nextPageToken = nextPageToken;
+            this.rowCount = rowCount;
+            this.golden = golden;
+            this.pageRows = pageRows;
+        }
+
+        public RecordBatch getStructs() {
+            return structs;
+        }
+
+        /**
+         * @return the token of the next page, null if this is the last one
+         */
+        public String getNextPageToken() {
+            return nextPageToken;
+        }
+
+        /**
+         * @return the rows of the whole report, null if the field mask left it out
+         */
+        public Integer getRowCount() {
+            return rowCount;
+        }
+
+        /**
+         * @return whether GA will not revise the data of the report any more,
+         *         false if the field mask left it out
+         */
+        public boolean isDataGolden() {
+            return golden;
+        }
+
+        /**
+         * @return the rows of this page, duplicate keys may have left fewer structs
+         */
+        public int getPageRows() {
+            return pageRows;
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package org.mrtrustworthy.kafka.connect.googleanalytics.source;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.kafka.common.MetricName;
+import org.apache.kafka.common.metrics.JmxReporter;
+import org.apache.kafka.common.metrics.KafkaMetric;
+import org.apache.kafka.common.metrics.Measurable;
+import org.apache.kafka.common.metrics.MetricConfig;
+import org.apache.kafka.common.metrics.Metrics;
+import org.apache.kafka.common.metrics.MetricsReporter;
+import org.apache.kafka.common.metrics.Sensor;
+import org.apache.kafka.common.metrics.stats.Avg;
+import org.apache.kafka.common.metrics.stats.Count;
+import org.apache.kafka.common.metrics.stats.Max;
+import org.apache.kafka.common.metrics.stats.Meter;
+import org.apache.kafka.common.metrics.stats.Percentile;
+import org.apache.kafka.common.metrics.stats.Percentiles;
+import org.apache.kafka.common.metrics.stats.Total;
+import org.apache.kafka.common.utils.Time;
+
+/**
+ * The metrics of a task, registered with Kafka's metrics library and exposed
+ * over JMX as {@value #JMX_PREFIX}:type={@value #GROUP},connector=...,task=...
+ * <p>
+ * They follow a page through the task: the request (latency, quota wait,
+ * retries), reading and decoding the response, turning the report into structs
+ * and wrapping those into records. The time spent in each stage shows which one
+ * limits the throughput of a task. Thread safe, the fetch threads and the poll
+ * thread record into the same sensors.
+ */
+public class TaskMetrics {
+    public static final String JMX_PREFIX = "kafka.connect.googleanalytics";
+    public static final String GROUP = "ga-source-task-metrics";
+
+    // latencies above this end up in the last bucket of the histogram
+    private static final double MAX_LATENCY_MS = 30000;
+    private static final int HISTOGRAM_BYTES = 4000;
+    private static final double NANOS_PER_MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final Metrics metrics;
+    private final Map<String, String> tags;
+
+    // meters that count events are recorded without a value, their total would add up the values
+    private final Sensor requests;
+    private final Sensor requestLatency;
+    private final Sensor quotaWaitTime;
+    private final Sensor retries;
+    private final Sensor backoffTime;
+    private final Sensor cacheHits;
+    private final Sensor cacheMisses;
+    private final Sensor responseBytes;
+    private final Sensor responseParseTime;
+    private final Sensor pages;
+    private final Sensor rows;
+    private final Sensor pageFailures;
+    private final Sensor structBuildTime;
+    private final Sensor recordBuildTime;
+    private final Sensor records;
+    private final Sensor unchangedRows;
+
+    /**
+     * Registers the metrics of the task over JMX
+     *
+     * @param conf
+     *            the task configuration, names the task
+     */
+    public TaskMetrics(GAConnectorConfig conf) {
+        this(new Metrics(new MetricConfig(),
+                Collections.<MetricsReporter>singletonList(new JmxReporter(JMX_PREFIX)), Time.SYSTEM), conf);
+    }
+
+    /**
+     * @param metrics
+     *            the registry to add the metrics to, closed by {@link #close()}
+     * @param conf
+     *            the task configuration, names the task
+     */
+    TaskMetrics(Metrics metrics, GAConnectorConfig conf) {
+        this.metrics = metrics;
+        this.tags = new LinkedHashMap<>();
+        this.tags.put("connector", conf.getConnectorName());
+        this.tags.put("task", Integer.toString(conf.getTaskId()));
+
+        this.requests = this.metrics.sensor("requests");
+        this.requests.add(new Meter(new Count(), this.name("request-rate", "Requests sent to GA per second"),
+                this.name("request-total", "Requests sent to GA")));
+        this.requestLatency = this.metrics.sensor("request-latency");
+        this.requestLatency.add(this.name("request-latency-avg", "Average time until GA answered a request, in ms"),
+                new Avg());
+        this.requestLatency.add(this.name("request-latency-max", "Longest time until GA answered a request, in ms"),
+                new Max());
+        this.requestLatency.add(new Percentiles(HISTOGRAM_BYTES, MAX_LATENCY_MS, Percentiles.BucketSizing.LINEAR,
+                new Percentile(this.name("request-latency-p50", "Median time until GA answered a request, in ms"), 50),
+                new Percentile(this.name("request-latency-p95", "95th percentile of the request latency, in ms"), 95),
+                new Percentile(this.name("request-latency-p99", "99th percentile of the request latency, in ms"), 99)));
+
+        this.quotaWaitTime = this.metrics.sensor("quota-wait-time");
+        this.quotaWaitTime.add(this.name("quota-wait-time-avg", "Average time a request waited for the quota, in ms"),
+                new Avg());
+        this.quotaWaitTime.add(this.name("quota-wait-time-max", "Longest time a request waited for the quota, in ms"),
+                new Max());
+
+        this.retries = this.metrics.sensor("retries");
+        this.retries.add(new Meter(new Count(), this.name("retry-rate", "Failed requests retried per second"),
+                this.name("retry-total", "Failed requests that were retried")));
+        this.backoffTime = this.metrics.sensor("backoff-time");
+        this.backoffTime.add(this.name("backoff-time-total", "Time spent backing off from failed requests, in ms"),
+                new Total());
+
+        this.cacheHits = this.metrics.sensor("cache-hits");
+        this.cacheHits.add(new Meter(new Count(), this.name("cache-hit-rate", "Pages served from the cache per second"),
+                this.name("cache-hit-total", "Pages served from the cache instead of GA")));
+        this.cacheMisses = this.metrics.sensor("cache-misses");
+        this.cacheMisses.add(new Meter(new Count(), this.name("cache-miss-rate", "Pages not in the cache per second"),
+                this.name("cache-miss-total", "Pages that were not in the cache and were requested from GA")));
+
+        this.responseBytes = this.metrics.sensor("response-bytes");
+        this.responseBytes.add(new Meter(this.name("response-bytes-rate", "Uncompressed response bytes per second"),
+                this.name("response-bytes-total", "Uncompressed response bytes")));
+        this.responseBytes.add(this.name("response-bytes-avg", "Average uncompressed size of a response"), new Avg());
+
+        this.responseParseTime = this.metrics.sensor("response-parse-time");
+        this.responseParseTime.add(this.name("response-parse-time-avg",
+                "Average time to read and decode a response, it is decoded while it streams in, in ms"), new Avg());
+        this.responseParseTime.add(this.name("response-parse-time-max",
+                "Longest time to read and decode a response, in ms"), new Max());
+
+        this.pages = this.metrics.sensor("pages");
+        this.pages.add(new Meter(new Count(), this.name("page-rate", "Pages fetched per second"),
+                this.name("page-total", "Pages fetched")));
+        this.rows = this.metrics.sensor("rows");
+        this.rows.add(
+                new Meter(this.name("row-rate", "Rows fetched per second"), this.name("row-total", "Rows fetched")));
+        this.pageFailures = this.metrics.sensor("page-failures");
+        this.pageFailures.add(this.name("page-failure-total", "Pages that failed after all retries and are "
+                + "requested again after a backoff"), new Total());
+
+        this.structBuildTime = this.metrics.sensor("struct-build-time");
+        this.structBuildTime.add(this.name("struct-build-time-avg", "Average time to turn a page into structs, in ms"),
+                new Avg());
+        this.structBuildTime.add(this.name("struct-build-time-max", "Longest time to turn a page into structs, in ms"),
+                new Max());
+
+        this.recordBuildTime = this.metrics.sensor("record-build-time");
+        this.recordBuildTime.add(this.name("record-build-time-avg",
+                "Average time to wrap the structs of a page into records, in ms"), new Avg());
+        this.recordBuildTime.add(this.name("record-build-time-max",
+                "Longest time to wrap the structs of a page into records, in ms"), new Max());
+
+        this.records = this.metrics.sensor("records");
+        this.records.add(new Meter(this.name("record-rate", "Records handed to the worker per second"),
+                this.name("record-total", "Records handed to the worker")));
+        this.unchangedRows = this.metrics.sensor("unchanged-rows");
+        this.unchangedRows.add(new Meter(
+                this.name("unchanged-row-rate", "Rows per second left out because they were emitted unchanged before"),
+                this.name("unchanged-row-total", "Rows left out because they were emitted unchanged before")));
+    }
+
+    private MetricName name(String name, String description) {
+        return this.metrics.metricName(name, GROUP, description, this.tags);
+    }
+
+    /**
+     * Estimates the remaining quota of the limiter. The values are computed when
+     * they are read, so they cost nothing while nobody is looking.
+     *
+     * @param quotaLimiter
+     *            the limiter the requests of the task go through
+     */
+    public void addQuotaGauges(QuotaLimiter quotaLimiter) {
+        this.metrics.addMetric(this.name("quota-project-available",
+                "Requests the project quota of the task allows right now, negative while requests wait"),
+                (Measurable) (config, now) -> quotaLimiter.getProjectTokens());
+        this.metrics.addMetric(this.name("quota-view-available-min",
+                "Requests left for today of the view with the fewest left"),
+                (Measurable) (config, now) -> quotaLimiter.getMinViewTokens());
+    }
+
+    /**
+     * @param pageSizer
+     *            decides the size of the pages the task requests
+     */
+    public void addPageSizeGauge(PageSizer pageSizer) {
+        this.metrics.addMetric(this.name("page-size", "Rows the next page of a report asks for"),
+                (Measurable) (config, now) -> pageSizer.getPageSize());
+    }
+
+    /**
+     * @param changeDetector
+     *            remembers the rows the task emitted
+     */
+    public void addChangeDetectorGauge(ChangeDetector changeDetector) {
+        this.metrics.addMetric(this.name("change-detection-rows",
+                "Rows the current generation of change detection remembers"),
+                (Measurable) (config, now) -> changeDetector.size());
+    }
+
+    /**
+     * @param latencyNanos
+     *            time until the response headers came in
+     */
+    public void recordRequest(long latencyNanos) {
+        this.requests.record();
+        this.requestLatency.record(latencyNanos / NANOS_PER_MS);
+    }
+
+    public void recordQuotaWait(long waitNanos) {
+        this.quotaWaitTime.record(waitNanos / NANOS_PER_MS);
+    }
+
+    public void recordRetry(long backoffMs) {
+        this.retries.record();
+        this.backoffTime.record(backoffMs);
+    }
+
+    public void recordCacheHit() {
+        this.cacheHits.record();
+    }
+
+    public void recordCacheMiss() {
+        this.cacheMisses.record();
+    }
+
+    /**
+     * @param bytes
+     *            the size of the response body after decompression
+     * @param parseNanos
+     *            time to read and decode the body
+     */
+    public void recordResponse(long bytes, long parseNanos) {
+        this.responseBytes.record(bytes);
+        this.responseParseTime.record(parseNanos / NANOS_PER_MS);
+    }
+
+    public void recordPage(int rowCount) {
+        this.pages.record();
+        this.rows.record(rowCount);
+    }
+
+    public void recordPageFailure() {
+        this.pageFailures.record();
+    }
+
+    public void recordStructBuild(long nanos) {
+        this.structBuildTime.record(nanos / NANOS_PER_MS);
+    }
+
+    /**
+     * @param nanos
+     *            time to wrap the structs of a page
+     * @param recordCount
+     *            the records of the page
+     */
+    public void recordRecordBuild(long nanos, int recordCount) {
+        this.recordBuildTime.record(nanos / NANOS_PER_MS);
+        this.records.record(recordCount);
+    }
+
+    public void recordUnchangedRows(int rowCount) {
+        this.unchangedRows.record(rowCount);
+    }
+
+    /**
+     * @param name
+     *            the name of a metric of this task
+     * @return its current value, NaN if there is no such metric
+     */
+    public double value(String name) {
+        KafkaMetric metric = this.metrics.metric(this.metrics.metricName(name, GROUP, this.tags));
+        return metric == null ? Double.NaN : (double) metric.metricValue();
+    }
+
+    /**
+     * Removes the metrics from JMX
+     */
+    public void close() {
+        this.metrics.close();
+    }
+}
@@ -0,0 +1,63 @@
+package org.mrtrustworthy.kafka.connect.googleanalytics.source;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+import org.mrtrustworthy.kafka.connect.googleanalytics.Utils;
+
+/**
+ * Computes the urlHash of a pagePath. The same paths show up on every page and
+ * every day, so the hashes of recently seen paths are kept in a bounded LRU
+ * cache. Thread safe, the fetch threads share the hasher of their parser when
+ * pages are decoded while they stream in.
+ */
+public class UrlHasher {
+
+    public enum Algorithm {
+        MD5(Utils::md5), FNV1A64(Utils::fnv1a64);
+
+        private final Function<String, String> hashFunction;
+
+        Algorithm(Function<String, String> hashFunction) {
+            this.hashFunction = hashFunction;
+        }
+    }
+
+    private final Function<String, String> hashFunction;
+    private final Map<String, String> cache;
+
+    /**
+     * @param algorithm
+     *            the hash function to use
+     * @param cacheSize
+     *            how many paths to keep the hash of, 0 disables caching
+     */
+    public UrlHasher(Algorithm algorithm, int cacheSize) {
+        this.hashFunction = algorithm.hashFunction;
+        this.cache = cacheSize <= 0 ? null : new LinkedHashMap<String, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    public String hash(String url) {
+        if (this.cache == null || url == null) {
+            return this.hashFunction.apply(url);
+        }
+        synchronized (this.cache) {
+            String hash = this.cache.get(url);
+            if (hash != null) {
+                return hash;
+            }
+        }
+        // hashed outside the lock, two threads may both hash a new path
+        String hash = this.hashFunction.apply(url);
+        synchronized (this.cache) {
+            this.cache.put(url, hash);
+        }
+        return hash;
+    }
+}
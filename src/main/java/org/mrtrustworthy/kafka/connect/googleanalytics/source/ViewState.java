@@ -0,0 +1,377 @@
+package org.mrtrustworthy.kafka.connect.googleanalytics.source;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import com.google.api.services.analyticsreporting.v4.model.DateRange;
+
+/**
+ * Keeps track of the progress of a single Google Analytics view. Every view is
+ * its own source partition, so views progress and resume independently of each
+ * other. Backfill shards of a view are tracked the same way, with the position
+ * of the shard added to the partition; unlike the view itself a shard is done
+ * for good once it completed. Shards keep the {@link BackfillHorizon} in their
+ * offsets, the view the last day it pulled. In intraday mode every view has
+ * another state that pulls today over and over, it only asks for rows newer
+ * than its dateHourMinute watermark. Views of a named report add the name of
+ * the report to their partitions.
+ */
+public class ViewState {
+    public static final String PARTITION_KEY = "viewId";
+    public static final String SHARD_PARTITION_KEY = "shard";
+    public static final String REPORT_PARTITION_KEY = "report";
+    public static final String OFFSET_KEY = "value";
+    public static final String PAGE_TOKEN_OFFSET_KEY = "pageToken";
+    public static final String ROW_OFFSET_KEY = "row";
+    public static final String PAGE_SIZE_OFFSET_KEY = "pageSize";
+    public static final String START_DATE_OFFSET_KEY = "startDate";
+    public static final String END_DATE_OFFSET_KEY = "endDate";
+    public static final String GOLDEN_DATE_OFFSET_KEY = "goldenDate";
+    public static final String WATERMARK_OFFSET_KEY = "watermark";
+    public static final String INTRADAY_SHARD = "intraday";
+
+    private final ReportDefinition report;
+    private final String viewId;
+    private final String shard;
+    // backfill shards only: the horizon the shard belongs to
+    private BackfillHorizon horizon;
+
+    // https://kafka.apache.org/documentation/#connect_resuming
+    private String pageToken;
+    private DateRange dateRange;
+    private Date lastProcessedDate;
+    private boolean completed;
+    // rows of the page at pageToken that were emitted before a restart
+    private int skipRows;
+    // the rows of that page, it is requested with exactly that size again; 0 if the page sizer decides
+    private int pageSize;
+    // pages of the journal that continue where the committed offset left off
+    private final Deque<FetchedPage> journaledPages = new ArrayDeque<>();
+
+    // the view only: the last day GA reported golden, it is not pulled again
+    private String goldenDate;
+
+    // intraday only: rows up to the watermark were emitted, the current run saw rows up to runMaxDateHourMinute
+    private String watermark;
+    private String runMaxDateHourMinute;
+
+    // pages that failed even after retrying are tried again once the backoff passed
+    private int failures;
+    private long retryAt;
+
+    // set by the scheduler while a fetch thread works on the state
+    private volatile boolean fetching;
+
+    public ViewState(String viewId, DateRange dateRange) {
+        this(null, viewId, null, dateRange);
+    }
+
+    public ViewState(String viewId, String shard, DateRange dateRange) {
+        this(null, viewId, shard, dateRange);
+    }
+
+    /**
+     * @param report
+     *            the report to pull of the view
+     * @param viewId
+     *            the view
+     * @param shard
+     *            the backfill shard or {@link #INTRADAY_SHARD}, null for the view
+     *            itself
+     * @param dateRange
+     *            the dates to pull
+     */
+    public ViewState(ReportDefinition report, String viewId, String shard, DateRange dateRange) {
+        this.report = report;
+        this.viewId = viewId;
+        this.shard = shard;
+        this.pageToken = "0";
+        this.dateRange = dateRange;
+        this.lastProcessedDate = new Date();
+        this.completed = false;
+        this.skipRows = 0;
+    }
+
+    /**
+     * @param viewId
+     *            the view to pull today's data of
+     * @param dateRange
+     *            today
+     * @return the intraday state of the view
+     */
+    public static ViewState intraday(String viewId, DateRange dateRange) {
+        return intraday(null, viewId, dateRange);
+    }
+
+    /**
+     * @param report
+     *            the report to pull of the view
+     * @param viewId
+     *            the view to pull today's data of
+     * @param dateRange
+     *            today
+     * @return the intraday state of the report of the view
+     */
+    public static ViewState intraday(ReportDefinition report, String viewId, DateRange dateRange) {
+        return new ViewState(report, viewId, INTRADAY_SHARD, dateRange);
+    }
+
+    public Map<String, String> getSourcePartition() {
+        boolean named = this.report != null && this.report.isNamed();
+        if (this.shard == null && !named) {
+            return Collections.singletonMap(PARTITION_KEY, this.viewId);
+        }
+        Map<String, String> partition = new HashMap<>();
+        partition.put(PARTITION_KEY, this.viewId);
+        if (this.shard != null) {
+            partition.put(SHARD_PARTITION_KEY, this.shard);
+        }
+        if (named) {
+            partition.put(REPORT_PARTITION_KEY, this.report.getName());
+        }
+        return partition;
+    }
+
+    /**
+     * The offset describes where to continue after a restart: while a report is
+     * being paged through it carries the next page token, once the report is
+     * done it only carries the time of completion. Every offset carries the end
+     * date, shards also their horizon, the view the last day it knows is
+     * golden and intraday states their watermark.
+     * Records that are not the last of their page add their
+     * {@link #ROW_OFFSET_KEY row} to the offset of their own page, see
+     * {@link FetchedPage#getSourceOffset(int, int)}.
+     *
+     * @return the offset of the current state
+     */
+    public Map<String, Object> getSourceOffset() {
+        Map<String, Object> offset = new HashMap<>();
+        offset.put(OFFSET_KEY, this.lastProcessedDate.getTime());
+        if (!this.completed) {
+            offset.put(PAGE_TOKEN_OFFSET_KEY, this.pageToken);
+            offset.put(START_DATE_OFFSET_KEY, this.dateRange.getStartDate());
+        }
+        offset.put(END_DATE_OFFSET_KEY, this.dateRange.getEndDate());
+        if (this.horizon != null) {
+            this.horizon.addTo(offset);
+        }
+        if (this.goldenDate != null) {
+            offset.put(GOLDEN_DATE_OFFSET_KEY, this.goldenDate);
+        }
+        if (this.watermark != null) {
+            offset.put(WATERMARK_OFFSET_KEY, this.watermark);
+        }
+        return offset;
+    }
+
+    /**
+     * Restores the state from a previously committed offset. If it points into
+     * the middle of a page, that page is fetched again and the rows up to the
+     * committed one are skipped. The page is requested with the size it had
+     * back then, a smaller one could end before the committed row.
+     *
+     * @param offset
+     *            the offset as returned by the offset storage, may be null
+     */
+    public void applyOffset(Map<String, Object> offset) {
+        if (offset == null) {
+            return;
+        }
+
+        this.skipRows = 0;
+        this.pageSize = 0;
+        this.lastProcessedDate = new Date(((Number) offset.get(OFFSET_KEY)).longValue());
+        this.watermark = (String) offset.get(WATERMARK_OFFSET_KEY);
+        this.goldenDate = (String) offset.get(GOLDEN_DATE_OFFSET_KEY);
+        // offsets written before the end date was stored keep the one the state was created with
+        if (offset.get(END_DATE_OFFSET_KEY) != null) {
+            this.dateRange.setEndDate((String) offset.get(END_DATE_OFFSET_KEY));
+        }
+        if (offset.get(PAGE_TOKEN_OFFSET_KEY) != null) {
+            this.pageToken = (String) offset.get(PAGE_TOKEN_OFFSET_KEY);
+            this.dateRange.setStartDate((String) offset.get(START_DATE_OFFSET_KEY));
+            this.completed = false;
+            Number row = (Number) offset.get(ROW_OFFSET_KEY);
+            this.skipRows = row == null ? 0 : row.intValue() + 1;
+            // offsets written before the page size was stored leave it to the page sizer
+            Number pageSize = (Number) offset.get(PAGE_SIZE_OFFSET_KEY);
+            this.pageSize = row == null || pageSize == null ? 0 : pageSize.intValue();
+        } else {
+            this.completed = true;
+        }
+    }
+
+    /**
+     * @param offset
+     *            the offset of the state before a page was fetched
+     * @return whether the state is about to fetch that page
+     */
+    public boolean isAt(Map<String, Object> offset) {
+        return !this.completed && this.pageToken.equals(offset.get(PAGE_TOKEN_OFFSET_KEY))
+                && Objects.equals(this.dateRange.getStartDate(), offset.get(START_DATE_OFFSET_KEY))
+                && Objects.equals(this.dateRange.getEndDate(), offset.get(END_DATE_OFFSET_KEY))
+                && Objects.equals(this.watermark, offset.get(WATERMARK_OFFSET_KEY));
+    }
+
+    /**
+     * Queues a page of the journal, the state has to be advanced past it
+     *
+     * @param page
+     *            the next page of the state
+     */
+    public void addJournaledPage(FetchedPage page) {
+        this.journaledPages.add(page);
+    }
+
+    /**
+     * @return the next page of the journal, null once they are all emitted
+     */
+    public FetchedPage pollJournaledPage() {
+        return this.journaledPages.poll();
+    }
+
+    public boolean hasJournaledPages() {
+        return !this.journaledPages.isEmpty();
+    }
+
+    /**
+     * @return the report to pull of the view, null if the state was created
+     *         without one
+     */
+    public ReportDefinition getReport() {
+        return report;
+    }
+
+    public String getViewId() {
+        return viewId;
+    }
+
+    public String getShard() {
+        return shard;
+    }
+
+    public BackfillHorizon getHorizon() {
+        return horizon;
+    }
+
+    public void setHorizon(BackfillHorizon horizon) {
+        this.horizon = horizon;
+    }
+
+    public boolean isBackfillShard() {
+        return shard != null && !isIntraday();
+    }
+
+    public boolean isIntraday() {
+        return INTRADAY_SHARD.equals(shard);
+    }
+
+    public String getPageToken() {
+        return pageToken;
+    }
+
+    public void setPageToken(String pageToken) {
+        this.pageToken = pageToken;
+    }
+
+    public DateRange getDateRange() {
+        return dateRange;
+    }
+
+    public void setDateRange(DateRange dateRange) {
+        this.dateRange = dateRange;
+    }
+
+    public Date getLastProcessedDate() {
+        return lastProcessedDate;
+    }
+
+    public void setLastProcessedDate(Date lastProcessedDate) {
+        this.lastProcessedDate = lastProcessedDate;
+    }
+
+    public boolean isCompleted() {
+        return completed;
+    }
+
+    public void setCompleted(boolean completed) {
+        this.completed = completed;
+    }
+
+    public int getSkipRows() {
+        return skipRows;
+    }
+
+    public void setSkipRows(int skipRows) {
+        this.skipRows = skipRows;
+    }
+
+    /**
+     * @return the size to request the page at pageToken with, 0 if the page
+     *         sizer decides
+     */
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * @return the last day GA reported golden for the view, null if it did
+     *         not report one yet
+     */
+    public String getGoldenDate() {
+        return goldenDate;
+    }
+
+    public void setGoldenDate(String goldenDate) {
+        this.goldenDate = goldenDate;
+    }
+
+    public String getWatermark() {
+        return watermark;
+    }
+
+    public void setWatermark(String watermark) {
+        this.watermark = watermark;
+    }
+
+    public String getRunMaxDateHourMinute() {
+        return runMaxDateHourMinute;
+    }
+
+    public void setRunMaxDateHourMinute(String runMaxDateHourMinute) {
+        this.runMaxDateHourMinute = runMaxDateHourMinute;
+    }
+
+    public int getFailures() {
+        return failures;
+    }
+
+    public void setFailures(int failures) {
+        this.failures = failures;
+    }
+
+    public long getRetryAt() {
+        return retryAt;
+    }
+
+    public void setRetryAt(long retryAt) {
+        this.retryAt = retryAt;
+    }
+
+    public boolean isFetching() {
+        return fetching;
+    }
+
+    public void setFetching(boolean fetching) {
+        this.fetching = fetching;
+    }
+}
@@ -0,0 +1,32 @@
+package org.mrtrustworthy.kafka.connect.googleanalytics;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+
+import org.junit.jupiter.api.Test;
+
+class UtilsTest {
+
+    @Test
+    void testResolveDate() {
+        LocalDate today = LocalDate.of(2018, 3, 15);
+        assertEquals(LocalDate.of(2018, 2, 13), Utils.resolveDate("30DaysAgo", today));
+        assertEquals(LocalDate.of(2018, 3, 14), Utils.resolveDate("1daysAgo", today));
+        assertEquals(today, Utils.resolveDate("today", today));
+        assertEquals(LocalDate.of(2018, 3, 14), Utils.resolveDate("yesterday", today));
+        assertEquals(LocalDate.of(2018, 1, 2), Utils.resolveDate("2018-01-02", today));
+        // not a relative date of GA
+        assertThrows(DateTimeParseException.class, () -> Utils.resolveDate("lastWeek", today));
+    }
+
+    @Test
+    void testHashes() {
+        assertEquals("5d41402abc4b2a76b9719d911017c592", Utils.md5("hello"));
+        assertEquals("d41d8cd98f00b204e9800998ecf8427e", Utils.md5(""));
+        assertEquals("af63dc4c8601ec8c", Utils.fnv1a64("a"));
+        assertEquals("cbf29ce484222325", Utils.fnv1a64(""));
+    }
+}
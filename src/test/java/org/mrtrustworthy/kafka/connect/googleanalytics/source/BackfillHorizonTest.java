@@ -0,0 +1,45 @@
+package org.mrtrustworthy.kafka.connect.googleanalytics.source;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.time.LocalDate;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+class BackfillHorizonTest {
+
+    @Test
+    void testShards() {
+        BackfillHorizon horizon = BackfillHorizon.resolve("30DaysAgo", 7, LocalDate.of(2018, 3, 15));
+        assertEquals(LocalDate.of(2018, 2, 13), horizon.getFrom());
+        assertEquals(LocalDate.of(2018, 3, 14), horizon.getTo());
+        // 30 days, the last shard only has 2 of them
+        assertEquals(5, horizon.getShardCount());
+        assertEquals("2018-02-13", horizon.getShard(0).getStartDate());
+        assertEquals("2018-02-19", horizon.getShard(0).getEndDate());
+        assertEquals("2018-03-13", horizon.getShard(4).getStartDate());
+        assertEquals("2018-03-14", horizon.getShard(4).getEndDate());
+
+        assertEquals(0, BackfillHorizon.resolve("today", 1, LocalDate.of(2018, 3, 15)).getShardCount());
+        assertEquals(1, BackfillHorizon.resolve("yesterday", 1, LocalDate.of(2018, 3, 15)).getShardCount());
+    }
+
+    @Test
+    void testHorizonIsKeptInTheOffset() {
+        BackfillHorizon horizon = BackfillHorizon.resolve("2018-01-01", 3, LocalDate.of(2018, 3, 15));
+        Map<String, Object> offset = new HashMap<>();
+        horizon.addTo(offset);
+        // the offset storage hands numbers back as longs
+        offset.put(BackfillHorizon.SHARD_DAYS_OFFSET_KEY, 3L);
+
+        BackfillHorizon restored = BackfillHorizon.fromOffset(offset);
+        assertEquals(horizon.getFrom(), restored.getFrom());
+        assertEquals(horizon.getTo(), restored.getTo());
+        assertEquals(3, restored.getShardDays());
+        assertNull(BackfillHorizon.fromOffset(null));
+        assertNull(BackfillHorizon.fromOffset(new HashMap<>()));
+    }
+}
@@ -0,0 +1,61 @@
+package org.mrtrustworthy.kafka.connect.googleanalytics.source;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import com.google.api.services.analyticsreporting.v4.model.DateRange;
+
+class ChangeDetectorTest {
+
+    private static RecordBatch parse(String... rows) {
+        return new ReportParser().parseReport(ReportParserTest.getSampleReport(rows), "pageviews");
+    }
+
+    @Test
+    void testOnlyNewAndChangedRowsAreLeft() {
+        ChangeDetector detector = new ChangeDetector(1000);
+        ViewState view = new ViewState("1", new DateRange());
+        ViewState otherView = new ViewState("2", new DateRange());
+
+        assertArrayEquals(new int[] { 0, 1 },
+                detector.filter(view, parse("/home,201803151200,3,1.5", "/about,201803151200,1,2.0"), 0));
+        // the same rows again, one of them with other metrics and one that is new
+        RecordBatch again = parse("/home,201803151200,3,1.5", "/about,201803151200,2,2.0",
+                "/home,201803151201,3,1.5");
+        assertArrayEquals(new int[] { 1, 2 }, detector.filter(view, again, 0));
+        assertArrayEquals(new int[0], detector.filter(view, again, 0));
+        // only the rows from the given one on are looked at
+        assertArrayEquals(new int[] { 2 }, detector.filter(view, parse("/a,201803151200,1,1.0",
+                "/b,201803151200,1,1.0", "/c,201803151200,1,1.0"), 2));
+        // rows of another view are rows of their own
+        assertArrayEquals(new int[] { 0 }, detector.filter(otherView, parse("/home,201803151200,3,1.5"), 0));
+        assertEquals(5, detector.size());
+    }
+
+    @Test
+    void testRowsAreForgottenAfterTwoGenerations() {
+        ChangeDetector detector = new ChangeDetector(2);
+        assertTrue(detector.changed(1, 10));
+        assertTrue(detector.changed(2, 20));
+        // the table is full, 1 and 2 move to the previous generation
+        assertTrue(detector.changed(3, 30));
+        assertFalse(detector.changed(1, 10));
+        assertEquals(2, detector.size());
+        // full again, 3 and 1 move to the previous generation and 1 and 2 of the one before are dropped
+        assertTrue(detector.changed(2, 21));
+        assertFalse(detector.changed(3, 30));
+        assertFalse(detector.changed(2, 21));
+        assertTrue(detector.changed(4, 40));
+        // 1 was not seen for two generations
+        assertTrue(detector.changed(1, 10));
+
+        // a hash of 0 is still a row
+        ChangeDetector zero = new ChangeDetector(2);
+        assertTrue(zero.changed(0, 1));
+        assertFalse(zero.changed(0, 1));
+    }
+}
@@ -0,0 +1,383 @@
+package org.mrtrustworthy.kafka.connect.googleanalytics.source;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.mrtrustworthy.kafka.connect.googleanalytics.Utils;
+
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.services.analyticsreporting.v4.model.ColumnHeader;
+import com.google.api.services.analyticsreporting.v4.model.DateRangeValues;
+import com.google.api.services.analyticsreporting.v4.model.Dimension;
+import com.google.api.services.analyticsreporting.v4.model.DimensionFilter;
+import com.google.api.services.analyticsreporting.v4.model.DimensionFilterClause;
+import com.google.api.services.analyticsreporting.v4.model.GetReportsRequest;
+import com.google.api.services.analyticsreporting.v4.model.GetReportsResponse;
+import com.google.api.services.analyticsreporting.v4.model.Metric;
+import com.google.api.services.analyticsreporting.v4.model.MetricHeader;
+import com.google.api.services.analyticsreporting.v4.model.MetricHeaderEntry;
+import com.google.api.services.analyticsreporting.v4.model.Report;
+import com.google.api.services.analyticsreporting.v4.model.ReportData;
+import com.google.api.services.analyticsreporting.v4.model.ReportRequest;
+import com.google.api.services.analyticsreporting.v4.model.ReportRow;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local stand-in for the reports:batchGet endpoint of the Analytics Reporting
+ * API v4. It answers every report request with synthetic, paginated data, so
+ * the whole fetch path can be load tested without Google credentials. Of the
+ * dimension filters only NUMERIC_GREATER_THAN is supported. Like GA, it
+ * gzips responses for clients that mention gzip in their user agent. Field
+ * masks are recorded but not applied. Point a
+ * task at it with google.root_url set to {@link #getRootUrl()} and
+ * google.anonymous set to true.
+ */
+public class FakeAnalyticsReportingServer {
+    private static final JsonFactory JSON_FACTORY = GsonFactory.getDefaultInstance();
+    private static final String BATCH_GET_PATH = "/v4/reports:batchGet";
+
+    private final int rowsPerReport;
+    private int pageSize = 1000;
+    private long latencyMs = 0;
+    private double errorRate = 0.0;
+    private int quotaPerSecond = Integer.MAX_VALUE;
+
+    private final Random random = new Random(42);
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger rejectedRequests = new AtomicInteger();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private volatile String fields;
+    private volatile String heldViewId;
+    private volatile String heldPageToken;
+    private final CountDownLatch heldPageRelease = new CountDownLatch(1);
+    private final AtomicInteger heldRequests = new AtomicInteger();
+    private long quotaWindow;
+    private int quotaUsed;
+
+    private HttpServer server;
+    private ExecutorService executor;
+
+    /**
+     * @param rowsPerReport
+     *            how many rows every report has, spread over pages
+     */
+    public FakeAnalyticsReportingServer(int rowsPerReport) {
+        this.rowsPerReport = rowsPerReport;
+    }
+
+    /**
+     * @param pageSize
+     *            rows per page if the request does not ask for a page size
+     */
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * @param latencyMs
+     *            how long every response is delayed
+     */
+    public void setLatencyMs(long latencyMs) {
+        this.latencyMs = latencyMs;
+    }
+
+    /**
+     * @param errorRate
+     *            fraction of requests that fail with a 503
+     */
+    public void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * @param quotaPerSecond
+     *            requests per second before requests fail with a 429
+     */
+    public void setQuotaPerSecond(int quotaPerSecond) {
+        this.quotaPerSecond = quotaPerSecond;
+    }
+
+    /**
+     * Holds every request for a page until {@link #releasePage()} is called, so
+     * tests can order requests without relying on latency
+     *
+     * @param viewId
+     *            the view of the page
+     * @param pageToken
+     *            the token of the page
+     */
+    public void holdPage(String viewId, String pageToken) {
+        this.heldViewId = viewId;
+        this.heldPageToken = pageToken;
+    }
+
+    /**
+     * Answers the requests for the held page, now and from now on
+     */
+    public void releasePage() {
+        this.heldPageRelease.countDown();
+    }
+
+    /**
+     * @return number of requests that asked for the held page
+     */
+    public int getHeldRequests() {
+        return heldRequests.get();
+    }
+
+    public void start() throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        this.server.createContext(BATCH_GET_PATH, this::handle);
+        this.executor = Executors.newCachedThreadPool();
+        this.server.setExecutor(this.executor);
+        this.server.start();
+    }
+
+    public void stop() {
+        this.server.stop(0);
+        this.executor.shutdownNow();
+    }
+
+    public String getRootUrl() {
+        return "http://localhost:" + this.server.getAddress().getPort() + "/";
+    }
+
+    /**
+     * @return number of batchGet calls, including rejected ones
+     */
+    public int getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * @return number of batchGet calls that were answered with an error
+     */
+    public int getRejectedRequests() {
+        return rejectedRequests.get();
+    }
+
+    /**
+     * @return bytes of the response bodies as they went over the wire
+     */
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    /**
+     * @return the field mask of the last batchGet call, null if it had none
+     */
+    public String getFields() {
+        return fields;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        this.requests.incrementAndGet();
+        this.fields = this.queryParameter(exchange.getRequestURI().getQuery(), "fields");
+        // the client gzips larger request bodies
+        boolean gzipped = "gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"));
+        try (InputStream body = gzipped ? new GZIPInputStream(exchange.getRequestBody()) : exchange.getRequestBody()) {
+            GetReportsRequest request = JSON_FACTORY.fromInputStream(body, StandardCharsets.UTF_8,
+                    GetReportsRequest.class);
+
+            if (this.latencyMs > 0) {
+                Thread.sleep(this.latencyMs);
+            }
+            if (this.isHeld(request)) {
+                this.heldRequests.incrementAndGet();
+                this.heldPageRelease.await();
+            }
+            if (!this.acquireQuota()) {
+                this.sendError(exchange, 429, "RESOURCE_EXHAUSTED", "Quota exceeded");
+                return;
+            }
+            if (this.shouldFail()) {
+                this.sendError(exchange, 503, "UNAVAILABLE", "The service is currently unavailable");
+                return;
+            }
+
+            List<Report> reports = new ArrayList<>();
+            for (ReportRequest reportRequest : request.getReportRequests()) {
+                reports.add(this.createReport(reportRequest));
+            }
+            this.send(exchange, 200, JSON_FACTORY.toByteArray(new GetReportsResponse().setReports(reports)));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private boolean isHeld(GetReportsRequest request) {
+        return request.getReportRequests().stream().anyMatch(r -> this.heldViewId != null
+                && this.heldViewId.equals(r.getViewId()) && Objects.equals(this.heldPageToken, r.getPageToken()));
+    }
+
+    private String queryParameter(String query, String name) {
+        if (query == null) {
+            return null;
+        }
+        for (String parameter : query.split("&")) {
+            if (parameter.startsWith(name + "=")) {
+                return parameter.substring(name.length() + 1);
+            }
+        }
+        return null;
+    }
+
+    private synchronized boolean acquireQuota() {
+        long window = System.currentTimeMillis() / 1000;
+        if (window != this.quotaWindow) {
+            this.quotaWindow = window;
+            this.quotaUsed = 0;
+        }
+        return ++this.quotaUsed <= this.quotaPerSecond;
+    }
+
+    private synchronized boolean shouldFail() {
+        return this.random.nextDouble() < this.errorRate;
+    }
+
+    private Report createReport(ReportRequest request) {
+        LocalDate day = this.parseDay(request.getDateRanges().get(0).getStartDate());
+
+        List<String> dimensions = new ArrayList<>();
+        request.getDimensions().stream().map(Dimension::getName).forEach(dimensions::add);
+        List<MetricHeaderEntry> metrics = new ArrayList<>();
+        for (Metric metric : request.getMetrics()) {
+            String name = metric.getAlias() != null ? metric.getAlias() : metric.getExpression();
+            metrics.add(new MetricHeaderEntry().setName(name).setType("INTEGER"));
+        }
+
+        List<Integer> matching = new ArrayList<>();
+        for (int r = 0; r < this.rowsPerReport; r++) {
+            if (this.matches(request, day, r)) {
+                matching.add(r);
+            }
+        }
+        int offset = request.getPageToken() == null ? 0 : Integer.parseInt(request.getPageToken());
+        int size = request.getPageSize() == null ? this.pageSize : request.getPageSize();
+        int end = Math.min(offset + size, matching.size());
+
+        List<ReportRow> rows = new ArrayList<>();
+        for (int r : matching.subList(Math.min(offset, end), end)) {
+            List<String> dimensionValues = new ArrayList<>();
+            for (String dimension : dimensions) {
+                dimensionValues.add(this.dimensionValue(dimension, day, r));
+            }
+            List<String> metricValues = new ArrayList<>();
+            for (int m = 0; m < metrics.size(); m++) {
+                metricValues.add(Integer.toString((r * 31 + m) % 100));
+            }
+            rows.add(new ReportRow().setDimensions(dimensionValues)
+                    .setMetrics(Collections.singletonList(new DateRangeValues().setValues(metricValues))));
+        }
+
+        ReportData data = new ReportData().setRows(rows.isEmpty() ? null : rows).setRowCount(matching.size())
+                // like GA, days are final once they are processed
+                .setIsDataGolden(day.isBefore(LocalDate.now().minusDays(1)));
+        if (!Boolean.TRUE.equals(request.getHideTotals())) {
+            List<String> totals = new ArrayList<>();
+            for (int m = 0; m < metrics.size(); m++) {
+                totals.add(Integer.toString(matching.size() * m));
+            }
+            data.setTotals(Collections.singletonList(new DateRangeValues().setValues(totals)));
+        }
+        Report report = new Report()
+                .setColumnHeader(new ColumnHeader().setDimensions(dimensions)
+                        .setMetricHeader(new MetricHeader().setMetricHeaderEntries(metrics)))
+                .setData(data);
+        if (end < matching.size()) {
+            report.setNextPageToken(Integer.toString(end));
+        }
+        return report;
+    }
+
+    private boolean matches(ReportRequest request, LocalDate day, int row) {
+        if (request.getDimensionFilterClauses() == null) {
+            return true;
+        }
+        for (DimensionFilterClause clause : request.getDimensionFilterClauses()) {
+            for (DimensionFilter filter : clause.getFilters()) {
+                if (!"NUMERIC_GREATER_THAN".equals(filter.getOperator())) {
+                    throw new IllegalArgumentException("Unsupported filter operator " + filter.getOperator());
+                }
+                long value = Long.parseLong(this.dimensionValue(filter.getDimensionName(), day, row));
+                if (value <= Long.parseLong(filter.getExpressions().get(0))) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private String dimensionValue(String dimension, LocalDate day, int row) {
+        switch (dimension) {
+        case "ga:pagePath":
+            return "/page/" + (row % 500) + "/" + row;
+        case "ga:dateHourMinute":
+            // cheaper than String.format, this runs for every row of every page
+            int hour = (row / 60) % 24;
+            int minute = row % 60;
+            return day.format(DateTimeFormatter.BASIC_ISO_DATE) + (hour < 10 ? "0" : "") + hour
+                    + (minute < 10 ? "0" : "") + minute;
+        default:
+            return dimension.replace("ga:", "") + "-" + (row % 10);
+        }
+    }
+
+    private LocalDate parseDay(String date) {
+        try {
+            return Utils.resolveDate(date, LocalDate.now());
+        } catch (DateTimeParseException e) {
+            return LocalDate.now();
+        }
+    }
+
+    private void sendError(HttpExchange exchange, int code, String status, String message) throws IOException {
+        this.rejectedRequests.incrementAndGet();
+        String error = String.format("{\"error\":{\"code\":%d,\"message\":\"%s\",\"status\":\"%s\"}}", code, message,
+                status);
+        this.send(exchange, code, error.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void send(HttpExchange exchange, int code, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        String userAgent = exchange.getRequestHeaders().getFirst("User-Agent");
+        if (acceptEncoding != null && acceptEncoding.contains("gzip") && userAgent != null
+                && userAgent.contains("gzip")) {
+            ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+            try (OutputStream out = new GZIPOutputStream(gzipped)) {
+                out.write(body);
+            }
+            body = gzipped.toByteArray();
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        this.bytesSent.addAndGet(body.length);
+        exchange.sendResponseHeaders(code, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package org.mrtrustworthy.kafka.connect.googleanalytics.source;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+class GAConnectorConfigTest {
+
+    Map<String, String> getSampleConfigMap(String viewIds) {
+        Map<String, String> map = new HashMap<>();
+        map.put(GAConnectorConfig.VIEW_CONFIG, viewIds);
+        map.put(GAConnectorConfig.TOPIC_CONFIG, "core_ga_pageviews");
+        map.put(GAConnectorConfig.DIMENSIONS, "pagePath,dateHourMinute");
+        map.put(GAConnectorConfig.MEASURES, "sessions,hits");
+        map.put(GAConnectorConfig.POLLING_FREQUENCY, "3000");
+        map.put(GAConnectorConfig.PROCESS_FROM, "30DaysAgo");
+        return map;
+    }
+
+    @Test
+    void testViewsAreSpreadOverTasks() {
+        GAConnectorConfig conf = GAConnectorConfig.fromConfigMap(getSampleConfigMap("1, 2,3,4,5"),
+                GAConnectorConfig.ConfigType.CONNECTOR_CONFIG);
+
+        List<Map<String, String>> taskConfigs = conf.createTaskConfigurations(2);
+        assertEquals(2, taskConfigs.size());
+        assertEquals("1,2,3", taskConfigs.get(0).get(GAConnectorConfig.VIEW_CONFIG));
+        assertEquals("4,5", taskConfigs.get(1).get(GAConnectorConfig.VIEW_CONFIG));
+
+        GAConnectorConfig taskConf = GAConnectorConfig.fromConfigMap(taskConfigs.get(1),
+                GAConnectorConfig.ConfigType.TASK_CONFIG);
+        assertEquals(2, taskConf.getViewIds().size());
+        assertEquals(1, taskConf.getTaskId());
+        assertEquals(GAConnectorConfig.CONNECTOR_NAME_DEFAULT, taskConf.getConnectorName());
+    }
+
+    @Test
+    void testNoMoreTasksThanViews() {
+        GAConnectorConfig conf = GAConnectorConfig.fromConfigMap(getSampleConfigMap("1,2"),
+                GAConnectorConfig.ConfigType.CONNECTOR_CONFIG);
+
+        List<Map<String, String>> taskConfigs = conf.createTaskConfigurations(10);
+        assertEquals(2, taskConfigs.size());
+        taskConfigs.forEach(c -> assertTrue(c.get(GAConnectorConfig.VIEW_CONFIG).matches("\\d")));
+    }
+
+    @Test
+    void testProjectQuotaIsSplitOverTasks() {
+        Map<String, String> map = getSampleConfigMap("1,2,3,4");
+        map.put(GAConnectorConfig.QUOTA_REQUESTS_PER_100S, "100");
+        GAConnectorConfig conf = GAConnectorConfig.fromConfigMap(map, GAConnectorConfig.ConfigType.CONNECTOR_CONFIG);
+
+        for (Map<String, String> taskConfig : conf.createTaskConfigurations(4)) {
+            GAConnectorConfig taskConf = GAConnectorConfig.fromConfigMap(taskConfig,
+                    GAConnectorConfig.ConfigType.TASK_CONFIG);
+            assertEquals(25, taskConf.getQuotaRequestsPer100s(), 0.001);
+            assertEquals(GAConnectorConfig.QUOTA_VIEW_REQUESTS_PER_DAY_DEFAULT,
+                    taskConf.getQuotaViewRequestsPerDay(), 0.001);
+        }
+    }
+
+    @Test
+    void testReportsAreSpreadOverTasks() {
+        Map<String, String> map = getSampleConfigMap("1,2");
+        map.put(GAConnectorConfig.REPORTS, "pages, events");
+        map.put("report.events.topic.name", "core_ga_events");
+        map.put("report.events.fetch.dimensions", "eventCategory,dateHourMinute");
+        map.put("report.events.view.id", "1,2,3");
+        GAConnectorConfig conf = GAConnectorConfig.fromConfigMap(map, GAConnectorConfig.ConfigType.CONNECTOR_CONFIG);
+
+        ReportDefinition pages = conf.getReports().get(0);
+        assertEquals("pages", pages.getName());
+        assertEquals("core_ga_pageviews", pages.getTopicName());
+        assertEquals(Arrays.asList("1", "2"), pages.getViewIds());
+        ReportDefinition events = conf.getReports().get(1);
+        assertEquals(Arrays.asList("eventCategory", "dateHourMinute"), events.getDimensions());
+        assertEquals(Arrays.asList("sessions", "hits"), events.getMeasures());
+
+        // 2 + 3 units of a report and a view
+        List<Map<String, String>> taskConfigs = conf.createTaskConfigurations(2);
+        assertEquals(2, taskConfigs.size());
+        assertEquals("pages,events", taskConfigs.get(0).get(GAConnectorConfig.REPORTS));
+        assertEquals("1", taskConfigs.get(0).get("report.events.view.id"));
+        assertEquals("events", taskConfigs.get(1).get(GAConnectorConfig.REPORTS));
+        assertNull(taskConfigs.get(1).get(GAConnectorConfig.VIEW_CONFIG));
+
+        GAConnectorConfig taskConf = GAConnectorConfig.fromConfigMap(taskConfigs.get(1),
+                GAConnectorConfig.ConfigType.TASK_CONFIG);
+        assertEquals(1, taskConf.getReports().size());
+        assertEquals("core_ga_events", taskConf.getReports().get(0).getTopicName());
+        assertEquals(Arrays.asList("2", "3"), taskConf.getReports().get(0).getViewIds());
+        assertEquals(events.getDimensions(), taskConf.getReports().get(0).getDimensions());
+
+        // both tasks pull view 2 and share its daily quota
+        assertEquals("2:2", taskConfigs.get(0).get(GAConnectorConfig.QUOTA_VIEW_SHARES));
+        assertEquals(Collections.singletonMap("2", 2), taskConf.getQuotaViewShares());
+    }
+
+    @Test
+    void testIncompleteReportsAreRejected() {
+        Map<String, String> map = getSampleConfigMap("1");
+        map.remove(GAConnectorConfig.TOPIC_CONFIG);
+        map.put(GAConnectorConfig.REPORTS, "pages");
+        assertThrows(IllegalArgumentException.class,
+                () -> GAConnectorConfig.fromConfigMap(map, GAConnectorConfig.ConfigType.CONNECTOR_CONFIG));
+
+        map.put("report.pages.topic.name", "core_ga_pages");
+        map.put("report.pages.fetch.dimensions", "pagePath");
+        map.put(GAConnectorConfig.INTRADAY_ENABLED, "true");
+        assertThrows(IllegalArgumentException.class,
+                () -> GAConnectorConfig.fromConfigMap(map, GAConnectorConfig.ConfigType.CONNECTOR_CONFIG));
+
+        // merging duplicates needs both key columns
+        map.remove(GAConnectorConfig.INTRADAY_ENABLED);
+        map.put(GAConnectorConfig.DUPLICATE_KEY_POLICY, "merge_metrics");
+        assertThrows(IllegalArgumentException.class,
+                () -> GAConnectorConfig.fromConfigMap(map, GAConnectorConfig.ConfigType.CONNECTOR_CONFIG));
+        map.remove(GAConnectorConfig.DUPLICATE_KEY_POLICY);
+
+        // a rollup needs the minute of a row just the same
+        map.remove(GAConnectorConfig.INTRADAY_ENABLED);
+        map.put(GAConnectorConfig.ROLLUP_WINDOW, "hour");
+        assertThrows(IllegalArgumentException.class,
+                () -> GAConnectorConfig.fromConfigMap(map, GAConnectorConfig.ConfigType.CONNECTOR_CONFIG));
+        map.put("report.pages.fetch.dimensions", "pagePath,dateHourMinute");
+        assertEquals(RollupStage.Window.HOUR,
+                GAConnectorConfig.fromConfigMap(map, GAConnectorConfig.ConfigType.CONNECTOR_CONFIG).getRollupWindow());
+
+        // users do not add up over the rows of a window, unless the configuration says so
+        map.put("report.pages.fetch.measures", "sessions,users");
+        assertThrows(IllegalArgumentException.class,
+                () -> GAConnectorConfig.fromConfigMap(map, GAConnectorConfig.ConfigType.CONNECTOR_CONFIG));
+        map.put(GAConnectorConfig.ROLLUP_SUM_METRICS, "sessions,users");
+        GAConnectorConfig summed = GAConnectorConfig.fromConfigMap(map, GAConnectorConfig.ConfigType.CONNECTOR_CONFIG);
+        assertEquals(Arrays.asList("sessions", "users"), GAConnectorConfig.fromConfigMap(
+                summed.createTaskConfigurations(1).get(0), GAConnectorConfig.ConfigType.TASK_CONFIG)
+                .getRollupSumMetrics());
+        map.remove("report.pages.fetch.measures");
+        map.remove(GAConnectorConfig.ROLLUP_SUM_METRICS);
+
+        // change detection commits the offsets of pages it left out completely through heartbeats
+        map.put(GAConnectorConfig.CHANGE_DETECTION_ENABLED, "true");
+        assertThrows(IllegalArgumentException.class,
+                () -> GAConnectorConfig.fromConfigMap(map, GAConnectorConfig.ConfigType.CONNECTOR_CONFIG));
+        map.put(GAConnectorConfig.HEARTBEAT_TOPIC, "ga_heartbeats");
+        // it only leaves out rows that are pulled again
+        assertThrows(IllegalArgumentException.class,
+                () -> GAConnectorConfig.fromConfigMap(map, GAConnectorConfig.ConfigType.CONNECTOR_CONFIG));
+        map.put(GAConnectorConfig.REFETCH_DAYS, "3");
+        GAConnectorConfig conf = GAConnectorConfig.fromConfigMap(map, GAConnectorConfig.ConfigType.CONNECTOR_CONFIG);
+        assertEquals("ga_heartbeats", conf.createTaskConfigurations(1).get(0).get(GAConnectorConfig.HEARTBEAT_TOPIC));
+        assertEquals("3", conf.createTaskConfigurations(1).get(0).get(GAConnectorConfig.REFETCH_DAYS));
+    }
+}
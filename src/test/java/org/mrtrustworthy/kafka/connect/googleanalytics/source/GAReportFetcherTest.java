@@ -1,17 +1,21 @@
 package org.mrtrustworthy.kafka.connect.googleanalytics.source;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.security.GeneralSecurityException;
+import java.time.Duration;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Properties;
+import java.util.concurrent.FutureTask;
 import java.util.stream.Collectors;
 
-import org.apache.kafka.connect.data.Struct;
 import org.junit.jupiter.api.Test;
 
 import com.google.api.services.analyticsreporting.v4.AnalyticsReporting;
@@ -19,6 +23,8 @@ import com.google.api.services.analyticsreporting.v4.model.DateRange;
 import com.google.api.services.analyticsreporting.v4.model.Report;
 
 class GAReportFetcherTest {
+    // only there to fail instead of hang, the tests assert the order of requests and not their timing
+    private static final Duration HANG_TIMEOUT = Duration.ofSeconds(30);
 
     GAConnectorConfig getSampleConfig() {
         Properties prop = new Properties();
@@ -42,6 +48,7 @@ class GAReportFetcherTest {
         GAReportFetcher gafetcher = new GAReportFetcher(conf);
         AnalyticsReporting rep = gafetcher.getAnalyticsService();
         assertNotNull(rep);
+        gafetcher.close();
     }
 
     @Test
@@ -59,18 +66,105 @@ class GAReportFetcherTest {
             DateRange dateRange = new DateRange();
             dateRange.setStartDate("2DaysAgo");
             dateRange.setEndDate("yesterday");
-            Report report = gafetcher.getReport(dateRange, "0");
+            Report report = gafetcher.getReport(conf.getReports().get(0), conf.getViewIds().get(0), dateRange, "0",
+                    null, 0);
             assertNotNull(report);
             System.out.println("Report: " + report);
 
             repParser.maybeUpdateSchema(report, conf.getTopicName());
             System.out.println("Schema: " + Objects.toString(repParser.getValueSchema()));
 
-            Map<Struct, Struct> structs = repParser.createStructsOffReport(report);
-            System.out.println("Structs: " + Objects.toString(structs));
+            RecordBatch structs = repParser.createStructsOffReport(report);
+            for (int i = 0; i < structs.size(); i++) {
+                System.out.println("Struct: " + structs.getKey(i) + " -> " + structs.getValue(i));
+            }
 
         } catch (IOException e) {
             assertTrue(false);
         }
     }
+
+    @Test
+    void testWaitingForAPrefetchedPageDoesNotBlockOtherReports() throws Exception {
+        FakeAnalyticsReportingServer server = new FakeAnalyticsReportingServer(2500);
+        server.holdPage("1", "1000");
+        server.start();
+        Map<String, String> map = GASourceTaskTest.getTaskConfigMap(server, "1,2");
+        map.put(GAConnectorConfig.PREFETCH_DEPTH, "2");
+        GAConnectorConfig conf = GAConnectorConfig.fromConfigMap(map, GAConnectorConfig.ConfigType.TASK_CONFIG);
+        GAReportFetcher fetcher = new GAReportFetcher(conf);
+        try {
+            fetcher.maybeInitializeAnalyticsReporting();
+            ReportDefinition report = conf.getReports().get(0);
+            DateRange day = new DateRange().setStartDate("2018-03-15").setEndDate("2018-03-15");
+            // the second page of view 1 is on its way now, the server holds it
+            assertEquals("1000", fetcher.getReport(report, "1", day, "0", null, 0).getNextPageToken());
+            FutureTask<Report> waiting = new FutureTask<>(() -> fetcher.getReport(report, "1", day, "1000", null, 0));
+            Thread waiter = new Thread(waiting);
+            waiter.start();
+            assertTimeoutPreemptively(HANG_TIMEOUT, () -> {
+                while (server.getHeldRequests() == 0 || waiter.getState() == Thread.State.NEW
+                        || waiter.getState() == Thread.State.RUNNABLE) {
+                    Thread.sleep(10);
+                }
+            });
+
+            // view 2 only waits for its own page, not for the one of view 1 as well
+            Report other = assertTimeoutPreemptively(HANG_TIMEOUT,
+                    () -> fetcher.getReport(report, "2", day, "0", null, 0));
+            assertEquals("1000", other.getNextPageToken());
+            assertFalse(waiting.isDone());
+
+            server.releasePage();
+            assertEquals("2000", waiting.get().getNextPageToken());
+        } finally {
+            server.releasePage();
+            fetcher.close();
+            server.stop();
+        }
+    }
+
+    @Test
+    void testCancelledPrefetchesAreInterrupted() throws Exception {
+        FakeAnalyticsReportingServer server = new FakeAnalyticsReportingServer(2500);
+        server.holdPage("1", "1000");
+        server.start();
+        Map<String, String> map = GASourceTaskTest.getTaskConfigMap(server, "1");
+        map.put(GAConnectorConfig.PREFETCH_DEPTH, "1");
+        map.put(GAConnectorConfig.RETRY_BACKOFF_MS, "600000");
+        map.put(GAConnectorConfig.RETRY_BACKOFF_MAX_MS, "600000");
+        GAConnectorConfig conf = GAConnectorConfig.fromConfigMap(map, GAConnectorConfig.ConfigType.TASK_CONFIG);
+        GAReportFetcher fetcher = new GAReportFetcher(conf);
+        try {
+            fetcher.maybeInitializeAnalyticsReporting();
+            ReportDefinition report = conf.getReports().get(0);
+            DateRange day = new DateRange().setStartDate("2018-03-15").setEndDate("2018-03-15");
+            // the page fetched ahead fails, its only prefetch thread backs off for minutes
+            fetcher.getReport(report, "1", day, "0", null, 0);
+            assertTimeoutPreemptively(HANG_TIMEOUT, () -> {
+                while (server.getHeldRequests() == 0) {
+                    Thread.sleep(10);
+                }
+                server.setErrorRate(1.0);
+                server.releasePage();
+                while (server.getRejectedRequests() == 0) {
+                    Thread.sleep(10);
+                }
+            });
+            server.setErrorRate(0);
+            int requests = server.getRequests();
+
+            // starting over cancels the lookahead, which frees the thread for the new one
+            Report next = assertTimeoutPreemptively(HANG_TIMEOUT, () -> {
+                fetcher.getReport(report, "1", day, "0", null, 0);
+                return fetcher.getReport(report, "1", day, "1000", null, 0);
+            });
+            assertEquals("2000", next.getNextPageToken());
+            assertEquals(1, server.getRejectedRequests());
+            assertTrue(server.getRequests() > requests);
+        } finally {
+            fetcher.close();
+            server.stop();
+        }
+    }
 }
@@ -0,0 +1,826 @@
+package org.mrtrustworthy.kafka.connect.googleanalytics.source;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.apache.kafka.connect.data.Struct;
+import org.apache.kafka.connect.source.SourceRecord;
+import org.apache.kafka.connect.source.SourceTaskContext;
+import org.apache.kafka.connect.storage.OffsetStorageReader;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.api.services.analyticsreporting.v4.model.DateRange;
+
+/**
+ * Runs the whole task loop against {@link FakeAnalyticsReportingServer}, no
+ * Google credentials needed
+ */
+class GASourceTaskTest {
+    private static final Logger log = LoggerFactory.getLogger(GASourceTaskTest.class);
+
+    /**
+     * Keeps the offset of the last record of every partition, like the offset
+     * storage would once those records are committed
+     */
+    static class InMemoryOffsets implements SourceTaskContext, OffsetStorageReader {
+        final Map<Map<String, ?>, Map<String, Object>> offsets = new HashMap<>();
+
+        void commit(List<SourceRecord> records) {
+            for (SourceRecord record : records) {
+                this.offsets.put(record.sourcePartition(), new HashMap<>(record.sourceOffset()));
+            }
+        }
+
+        @Override
+        public OffsetStorageReader offsetStorageReader() {
+            return this;
+        }
+
+        @Override
+        public <T> Map<String, Object> offset(Map<String, T> partition) {
+            return this.offsets.get(partition);
+        }
+
+        @Override
+        public <T> Map<Map<String, T>, Map<String, Object>> offsets(Collection<Map<String, T>> partitions) {
+            Map<Map<String, T>, Map<String, Object>> result = new HashMap<>();
+            partitions.forEach(p -> result.put(p, this.offsets.get(p)));
+            return result;
+        }
+    }
+
+    static Map<String, String> getTaskConfigMap(FakeAnalyticsReportingServer server, String viewIds) {
+        Map<String, String> map = new HashMap<>();
+        map.put(GAConnectorConfig.VIEW_CONFIG, viewIds);
+        map.put(GAConnectorConfig.TOPIC_CONFIG, "core_ga_pageviews");
+        map.put(GAConnectorConfig.DIMENSIONS, "pagePath,dateHourMinute");
+        map.put(GAConnectorConfig.MEASURES, "sessions,hits");
+        map.put(GAConnectorConfig.POLLING_FREQUENCY, "10");
+        map.put(GAConnectorConfig.PROCESS_FROM, "3DaysAgo");
+        map.put(GAConnectorConfig.ROOT_URL, server.getRootUrl());
+        map.put(GAConnectorConfig.ANONYMOUS, "true");
+        map.put(GAConnectorConfig.QUOTA_REQUESTS_PER_100S, "100000");
+        return map;
+    }
+
+    /**
+     * Polls until no more records came in for two seconds, long enough for
+     * failed pages to come out of their backoff. Every empty poll waits for a
+     * page for a moment, so this does not spin.
+     */
+    static List<SourceRecord> pollUntilIdle(GASourceTask task, InMemoryOffsets offsets, int maxPolls)
+            throws InterruptedException {
+        List<SourceRecord> all = new ArrayList<>();
+        long lastRecord = System.currentTimeMillis();
+        for (int i = 0; i < maxPolls && System.currentTimeMillis() - lastRecord < 2000; i++) {
+            List<SourceRecord> records = task.poll();
+            if (records == null || records.isEmpty()) {
+                continue;
+            }
+            lastRecord = System.currentTimeMillis();
+            offsets.commit(records);
+            all.addAll(records);
+        }
+        return all;
+    }
+
+    @Test
+    void testBackfillAgainstLocalServer() throws IOException, InterruptedException, JMException {
+        FakeAnalyticsReportingServer server = new FakeAnalyticsReportingServer(2500);
+        server.start();
+        try {
+            InMemoryOffsets offsets = new InMemoryOffsets();
+            GASourceTask task = new GASourceTask();
+            task.initialize(offsets);
+            task.start(getTaskConfigMap(server, "1,2"));
+
+            long start = System.nanoTime();
+            List<SourceRecord> records = pollUntilIdle(task, offsets, 1000);
+            long elapsedMs = (System.nanoTime() - start) / 1000000;
+
+            TaskMetrics metrics = task.getMetrics();
+            assertEquals(2 * 3 * 3, metrics.value("request-total"), 0.001);
+            assertEquals(2 * 3 * 2500, metrics.value("row-total"), 0.001);
+            assertEquals(2 * 3 * 2500, metrics.value("record-total"), 0.001);
+            assertTrue(metrics.value("response-bytes-total") > 0);
+            // responses come gzipped and only with the fields the task reads
+            assertTrue(server.getBytesSent() < metrics.value("response-bytes-total") / 2);
+            assertEquals(GAConnectorConfig.FETCH_FIELDS_DEFAULT, server.getFields());
+            assertTrue(metrics.value("request-latency-p99") > 0);
+            ObjectName mbean = new ObjectName(
+                    TaskMetrics.JMX_PREFIX + ":type=" + TaskMetrics.GROUP + ",connector=ga,task=0");
+            assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(mbean));
+            task.stop();
+            assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(mbean));
+
+            // 2 views, 3 daily shards each, 2500 rows in 3 pages per shard
+            assertEquals(2 * 3 * 2500, records.size());
+            assertEquals(2 * 3 * 3, server.getRequests());
+            log.info("Fetched " + records.size() + " records in " + elapsedMs + "ms");
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    void testRestartResumesAtTheCommittedRow() throws IOException, InterruptedException {
+        FakeAnalyticsReportingServer server = new FakeAnalyticsReportingServer(2500);
+        server.start();
+        try {
+            // a single shard, so the records come in page order
+            Map<String, String> config = getTaskConfigMap(server, "1");
+            config.put(GAConnectorConfig.BACKFILL_SHARD_DAYS, "3");
+
+            GASourceTask task = new GASourceTask();
+            task.initialize(new InMemoryOffsets());
+            task.start(config);
+            List<SourceRecord> all = pollUntilIdle(task, new InMemoryOffsets(), 1000);
+            task.stop();
+            assertEquals(2500, all.size());
+            assertEquals(3, server.getRequests());
+
+            // the worker died after committing the records up to the middle of the second page
+            InMemoryOffsets offsets = new InMemoryOffsets();
+            offsets.commit(all.subList(0, 1234));
+            GASourceTask restarted = new GASourceTask();
+            restarted.initialize(offsets);
+            restarted.start(config);
+            List<SourceRecord> rest = pollUntilIdle(restarted, offsets, 1000);
+            restarted.stop();
+
+            // the second page is fetched again, the first one is not
+            assertEquals(3 + 2, server.getRequests());
+            assertEquals(2500 - 1234, rest.size());
+            for (int i = 0; i < rest.size(); i++) {
+                assertEquals(all.get(1234 + i).key(), rest.get(i).key());
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    void testRestartWithSmallerPagesResumesAtTheCommittedRow() throws IOException, InterruptedException {
+        FakeAnalyticsReportingServer server = new FakeAnalyticsReportingServer(2500);
+        server.start();
+        try {
+            Map<String, String> config = getTaskConfigMap(server, "1");
+            config.put(GAConnectorConfig.BACKFILL_SHARD_DAYS, "3");
+            config.put(GAConnectorConfig.CACHE_MEMORY_BYTES, "0");
+
+            GASourceTask task = new GASourceTask();
+            task.initialize(new InMemoryOffsets());
+            task.start(config);
+            List<SourceRecord> all = pollUntilIdle(task, new InMemoryOffsets(), 1000);
+            task.stop();
+            assertEquals(2500, all.size());
+
+            // the page sizer starts out smaller after the restart, row 1233 lies beyond a page of 100
+            InMemoryOffsets offsets = new InMemoryOffsets();
+            offsets.commit(all.subList(0, 1234));
+            assertEquals(1000, offsets.offsets.values().iterator().next().get(ViewState.PAGE_SIZE_OFFSET_KEY));
+            config.put(GAConnectorConfig.FETCH_PAGE_SIZE, "100");
+            GASourceTask restarted = new GASourceTask();
+            restarted.initialize(offsets);
+            restarted.start(config);
+            List<SourceRecord> rest = pollUntilIdle(restarted, offsets, 1000);
+            restarted.stop();
+
+            // the second page is fetched with its old size, the third one in pages of 100
+            assertEquals(3 + 1 + 5, server.getRequests());
+            assertEquals(2500 - 1234, rest.size());
+            for (int i = 0; i < rest.size(); i++) {
+                assertEquals(all.get(1234 + i).key(), rest.get(i).key());
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    void testRestartOnALaterDayKeepsTheBackfillAndPullsTheMissedDays() throws InterruptedException, IOException {
+        FakeAnalyticsReportingServer server = new FakeAnalyticsReportingServer(2500);
+        server.start();
+        try {
+            // the backfill of 6 to 4 days ago completed, then the task was down until today
+            LocalDate today = LocalDate.now();
+            BackfillHorizon horizon = new BackfillHorizon(today.minusDays(6), today.minusDays(4), 2);
+            InMemoryOffsets offsets = new InMemoryOffsets();
+            for (int i = 0; i < horizon.getShardCount(); i++) {
+                ViewState shard = new ViewState("1", Integer.toString(i), horizon.getShard(i));
+                shard.setHorizon(horizon);
+                shard.setCompleted(true);
+                offsets.offsets.put(shard.getSourcePartition(), shard.getSourceOffset());
+            }
+
+            Map<String, String> config = getTaskConfigMap(server, "1");
+            config.put(GAConnectorConfig.BACKFILL_SHARD_DAYS, "2");
+            GASourceTask task = new GASourceTask();
+            task.initialize(offsets);
+            task.start(config);
+            List<SourceRecord> records = pollUntilIdle(task, offsets, 1000);
+            task.stop();
+
+            // no shard runs again, the view pulls 3 days ago up to yesterday in one go
+            assertEquals(3, server.getRequests());
+            assertEquals(2500, records.size());
+            String firstDay = today.minusDays(3).format(DateTimeFormatter.BASIC_ISO_DATE);
+            for (SourceRecord record : records) {
+                assertEquals(Collections.singletonMap(ViewState.PARTITION_KEY, "1"), record.sourcePartition());
+                assertTrue(((Struct) record.key()).getString("dateHourMinute").startsWith(firstDay));
+            }
+            Map<String, ?> last = records.get(records.size() - 1).sourceOffset();
+            assertEquals(today.minusDays(1).toString(), last.get(ViewState.END_DATE_OFFSET_KEY));
+            assertFalse(last.containsKey(ViewState.PAGE_TOKEN_OFFSET_KEY));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    void testDailyPullRefetchesDaysUntilTheyAreGolden() throws InterruptedException, IOException {
+        FakeAnalyticsReportingServer server = new FakeAnalyticsReportingServer(500);
+        server.start();
+        try {
+            // nothing to backfill, the view pulled up to 3 days ago before it was stopped
+            LocalDate today = LocalDate.now();
+            Map<String, String> config = getTaskConfigMap(server, "1");
+            config.put(GAConnectorConfig.PROCESS_FROM, "today");
+            config.put(GAConnectorConfig.REFETCH_DAYS, "2");
+            ViewState view = new ViewState("1", new DateRange().setStartDate(today.minusDays(3).toString())
+                    .setEndDate(today.minusDays(3).toString()));
+            view.setCompleted(true);
+
+            // the fake server serves the rows of the first day, GA reported none of the days golden yet
+            InMemoryOffsets offsets = new InMemoryOffsets();
+            offsets.offsets.put(view.getSourcePartition(), view.getSourceOffset());
+            List<SourceRecord> records = pullDaily(config, offsets);
+            assertEquals(500, records.size());
+            assertTrue(((Struct) records.get(0).key()).getString("dateHourMinute")
+                    .startsWith(today.minusDays(4).format(DateTimeFormatter.BASIC_ISO_DATE)));
+            // the fake server reports everything before yesterday golden
+            Map<String, ?> last = records.get(records.size() - 1).sourceOffset();
+            assertEquals(today.minusDays(1).toString(), last.get(ViewState.END_DATE_OFFSET_KEY));
+            assertEquals(today.minusDays(1).toString(), last.get(ViewState.GOLDEN_DATE_OFFSET_KEY));
+
+            // days GA reported golden are not pulled again
+            view.setGoldenDate(today.minusDays(4).toString());
+            offsets = new InMemoryOffsets();
+            offsets.offsets.put(view.getSourcePartition(), view.getSourceOffset());
+            records = pullDaily(config, offsets);
+            assertTrue(((Struct) records.get(0).key()).getString("dateHourMinute")
+                    .startsWith(today.minusDays(3).format(DateTimeFormatter.BASIC_ISO_DATE)));
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static List<SourceRecord> pullDaily(Map<String, String> config, InMemoryOffsets offsets)
+            throws InterruptedException {
+        GASourceTask task = new GASourceTask();
+        task.initialize(offsets);
+        task.start(config);
+        List<SourceRecord> records = pollUntilIdle(task, offsets, 1000);
+        task.stop();
+        return records;
+    }
+
+    @Test
+    void testRestartEmitsTheJournalInsteadOfCallingGA() throws IOException, InterruptedException {
+        FakeAnalyticsReportingServer server = new FakeAnalyticsReportingServer(2500);
+        server.start();
+        Path journal = Files.createTempDirectory("journal");
+        try {
+            Map<String, String> config = getTaskConfigMap(server, "1");
+            config.put(GAConnectorConfig.JOURNAL_DIR, journal.toString());
+
+            GASourceTask task = new GASourceTask();
+            task.initialize(new InMemoryOffsets());
+            task.start(config);
+            List<SourceRecord> all = pollUntilIdle(task, new InMemoryOffsets(), 1000);
+            task.stop();
+            assertEquals(3 * 2500, all.size());
+            assertEquals(3 * 3, server.getRequests());
+
+            // the worker died before any offset was committed
+            GASourceTask restarted = new GASourceTask();
+            restarted.initialize(new InMemoryOffsets());
+            restarted.start(config);
+            List<SourceRecord> again = pollUntilIdle(restarted, new InMemoryOffsets(), 1000);
+
+            assertEquals(3 * 3, server.getRequests());
+            assertEquals(all.size(), again.size());
+            assertEquals(all.stream().map(SourceRecord::key).collect(Collectors.toSet()),
+                    again.stream().map(SourceRecord::key).collect(Collectors.toSet()));
+
+            // once everything is written and committed, only the segment still written to is left
+            again.forEach(restarted::commitRecord);
+            restarted.commit();
+            restarted.commit();
+            restarted.stop();
+            try (Stream<Path> segments = Files.list(journal.resolve("ga-0"))) {
+                assertEquals(1, segments.count());
+            }
+        } finally {
+            server.stop();
+            PageJournalTest.delete(journal.resolve("ga-0"));
+            Files.delete(journal);
+        }
+    }
+
+    @Test
+    void testStopWhileFetchingLeavesTheJournalAlone() throws IOException, InterruptedException {
+        FakeAnalyticsReportingServer server = new FakeAnalyticsReportingServer(2500);
+        server.setLatencyMs(200);
+        server.start();
+        Path journal = Files.createTempDirectory("journal");
+        try {
+            Map<String, String> config = getTaskConfigMap(server, "1");
+            config.put(GAConnectorConfig.JOURNAL_DIR, journal.toString());
+
+            InMemoryOffsets offsets = new InMemoryOffsets();
+            GASourceTask task = new GASourceTask();
+            task.initialize(offsets);
+            task.start(config);
+            List<SourceRecord> first = null;
+            while (first == null || first.isEmpty()) {
+                first = task.poll();
+            }
+            offsets.commit(first);
+            task.stop();
+
+            // the worker may still poll and report written records after stop
+            assertNull(task.poll());
+            first.forEach(task::commitRecord);
+            task.commit();
+
+            GASourceTask restarted = new GASourceTask();
+            restarted.initialize(offsets);
+            restarted.start(config);
+            List<SourceRecord> rest = pollUntilIdle(restarted, offsets, 1000);
+            restarted.stop();
+            Set<Object> keys = new HashSet<>();
+            first.forEach(r -> keys.add(r.key()));
+            rest.forEach(r -> keys.add(r.key()));
+            assertEquals(first.size() + rest.size(), keys.size());
+            assertEquals(3 * 2500, keys.size());
+        } finally {
+            server.stop();
+            PageJournalTest.delete(journal.resolve("ga-0"));
+            Files.delete(journal);
+        }
+    }
+
+    @Test
+    void testPagesAreServedFromTheCacheAfterARestart() throws IOException, InterruptedException {
+        FakeAnalyticsReportingServer server = new FakeAnalyticsReportingServer(2500);
+        server.start();
+        Path cache = Files.createTempDirectory("cache");
+        try {
+            Map<String, String> config = getTaskConfigMap(server, "1");
+            config.put(GAConnectorConfig.CACHE_DIR, cache.toString());
+
+            GASourceTask task = new GASourceTask();
+            task.initialize(new InMemoryOffsets());
+            task.start(config);
+            List<SourceRecord> all = pollUntilIdle(task, new InMemoryOffsets(), 1000);
+            task.stop();
+            assertEquals(3 * 2500, all.size());
+            assertEquals(3 * 3, server.getRequests());
+
+            // the offsets are lost, the whole backfill runs again without asking GA
+            GASourceTask restarted = new GASourceTask();
+            restarted.initialize(new InMemoryOffsets());
+            restarted.start(config);
+            List<SourceRecord> again = pollUntilIdle(restarted, new InMemoryOffsets(), 1000);
+            assertEquals(3 * 2500.0, restarted.getMetrics().value("row-total"));
+            assertEquals(3 * 3.0, restarted.getMetrics().value("cache-hit-total"));
+            restarted.stop();
+
+            assertEquals(3 * 3, server.getRequests());
+            assertEquals(all.stream().map(SourceRecord::key).collect(Collectors.toSet()),
+                    again.stream().map(SourceRecord::key).collect(Collectors.toSet()));
+        } finally {
+            server.stop();
+            PageJournalTest.delete(cache);
+        }
+    }
+
+    @Test
+    void testFailedPagesAreRetried() throws IOException, InterruptedException {
+        FakeAnalyticsReportingServer server = new FakeAnalyticsReportingServer(2500);
+        server.setErrorRate(0.3);
+        server.setQuotaPerSecond(10);
+        server.start();
+        try {
+            Map<String, String> config = getTaskConfigMap(server, "1,2");
+            config.put(GAConnectorConfig.QUOTA_REQUESTS_PER_100S, "0");
+            config.put(GAConnectorConfig.RETRY_MAX_ATTEMPTS, "3");
+            config.put(GAConnectorConfig.RETRY_BACKOFF_MS, "20");
+            config.put(GAConnectorConfig.RETRY_BACKOFF_MAX_MS, "200");
+
+            InMemoryOffsets offsets = new InMemoryOffsets();
+            GASourceTask task = new GASourceTask();
+            task.initialize(offsets);
+            task.start(config);
+            List<SourceRecord> records = pollUntilIdle(task, offsets, 1000);
+            // a rejected request was either retried right away or its page was requested again later
+            double retried = task.getMetrics().value("retry-total") + task.getMetrics().value("page-failure-total");
+            task.stop();
+
+            // every page arrives exactly once, no matter how often it had to be requested
+            assertEquals(2 * 3 * 2500, records.size());
+            assertTrue(server.getRejectedRequests() > 0);
+            assertEquals(server.getRejectedRequests(), retried, 0.001);
+            assertEquals(2 * 3 * 3, server.getRequests() - server.getRejectedRequests());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    void testSlowRequestsDoNotBlockPollOrStop() throws IOException, InterruptedException {
+        FakeAnalyticsReportingServer server = new FakeAnalyticsReportingServer(2500);
+        server.setLatencyMs(5000);
+        server.start();
+        try {
+            InMemoryOffsets offsets = new InMemoryOffsets();
+            GASourceTask task = new GASourceTask();
+            task.initialize(offsets);
+            task.start(getTaskConfigMap(server, "1"));
+
+            long start = System.nanoTime();
+            assertNull(task.poll());
+            long pollMs = (System.nanoTime() - start) / 1000000;
+            assertTrue(pollMs < 1000, "poll took " + pollMs + "ms");
+
+            start = System.nanoTime();
+            task.stop();
+            long stopMs = (System.nanoTime() - start) / 1000000;
+            assertTrue(stopMs < 1000, "stop took " + stopMs + "ms");
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    void testPageSize() throws IOException, InterruptedException {
+        FakeAnalyticsReportingServer server = new FakeAnalyticsReportingServer(2500);
+        server.start();
+        try {
+            Map<String, String> config = getTaskConfigMap(server, "1");
+            config.put(GAConnectorConfig.FETCH_PAGE_SIZE, "100000");
+            assertEquals(3 * 2500, backfill(config).size());
+            // one page per daily shard
+            assertEquals(3, server.getRequests());
+
+            // small pages at first, they grow as the responses come in fast
+            config.put(GAConnectorConfig.FETCH_PAGE_SIZE, "100");
+            config.put(GAConnectorConfig.FETCH_PAGE_SIZE_ADAPTIVE, "true");
+            config.put(GAConnectorConfig.CACHE_MEMORY_BYTES, "0");
+            List<SourceRecord> records = backfill(config);
+            assertEquals(3 * 2500, records.size());
+            assertEquals(3 * 2500, byKey(records).size());
+            assertTrue(server.getRequests() - 3 < 3 * 25 / 2, "sent " + (server.getRequests() - 3) + " requests");
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    void testReportsShareTheTask() throws IOException, InterruptedException {
+        FakeAnalyticsReportingServer server = new FakeAnalyticsReportingServer(2500);
+        server.start();
+        try {
+            Map<String, String> config = getTaskConfigMap(server, "1");
+            config.put(GAConnectorConfig.REPORTS, "pages,devices");
+            config.put("report.devices.topic.name", "core_ga_devices");
+            config.put("report.devices.fetch.dimensions", "deviceCategory,dateHourMinute");
+            config.put("report.devices.fetch.measures", "users");
+            InMemoryOffsets offsets = new InMemoryOffsets();
+            GASourceTask task = new GASourceTask();
+            task.initialize(offsets);
+            task.start(config);
+            List<SourceRecord> records = pollUntilIdle(task, offsets, 1000);
+            task.stop();
+
+            // 3 daily shards of 2500 rows per report, in pages of 1000; both reports of a shard share the calls
+            assertEquals(2 * 3 * 3, task.getMetrics().value("page-total"), 0.001);
+            assertEquals(3 * 3, server.getRequests());
+            Map<String, List<SourceRecord>> byTopic = new HashMap<>();
+            records.forEach(r -> byTopic.computeIfAbsent(r.topic(), t -> new ArrayList<>()).add(r));
+            assertEquals(3 * 2500, byTopic.get("core_ga_pageviews").size());
+            assertEquals(3 * 2500, byTopic.get("core_ga_devices").size());
+
+            SourceRecord device = byTopic.get("core_ga_devices").get(0);
+            assertEquals("devices", device.sourcePartition().get(ViewState.REPORT_PARTITION_KEY));
+            assertNotNull(((Struct) device.value()).get("deviceCategory"));
+            assertNotNull(((Struct) device.value()).get("users"));
+            assertEquals("pages",
+                    byTopic.get("core_ga_pageviews").get(0).sourcePartition().get(ViewState.REPORT_PARTITION_KEY));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    void testStreamingDecodeEmitsTheSameRecords() throws IOException, InterruptedException {
+        FakeAnalyticsReportingServer server = new FakeAnalyticsReportingServer(2500);
+        server.start();
+        try {
+            List<SourceRecord> parsed = backfill(getTaskConfigMap(server, "1"));
+            Map<String, String> config = getTaskConfigMap(server, "1");
+            config.put(GAConnectorConfig.FETCH_DECODE_STREAMING, "true");
+            List<SourceRecord> streamed = backfill(config);
+
+            // the shards are fetched concurrently, so only the records of a shard come in order
+            assertEquals(3 * 2500, streamed.size());
+            assertEquals(byKey(parsed), byKey(streamed));
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static Map<Object, List<Object>> byKey(List<SourceRecord> records) {
+        Map<Object, List<Object>> byKey = new HashMap<>();
+        for (SourceRecord record : records) {
+            // the processing time in the offset differs from run to run
+            byKey.put(record.key(), Arrays.asList(record.value(), record.sourcePartition(),
+                    record.sourceOffset().get(ViewState.PAGE_TOKEN_OFFSET_KEY),
+                    record.sourceOffset().get(ViewState.ROW_OFFSET_KEY)));
+        }
+        return byKey;
+    }
+
+    private static List<SourceRecord> backfill(Map<String, String> config) throws InterruptedException {
+        InMemoryOffsets offsets = new InMemoryOffsets();
+        GASourceTask task = new GASourceTask();
+        task.initialize(offsets);
+        task.start(config);
+        List<SourceRecord> records = pollUntilIdle(task, offsets, 1000);
+        task.stop();
+        return records;
+    }
+
+    @Test
+    void testRollup() throws IOException, InterruptedException {
+        FakeAnalyticsReportingServer server = new FakeAnalyticsReportingServer(2500);
+        server.start();
+        try {
+            // a single run of 2500 rows in 3 pages, every hour of the day has rows of all 10 device categories
+            Map<String, String> config = getTaskConfigMap(server, "1");
+            config.put(GAConnectorConfig.BACKFILL_SHARD_DAYS, "3");
+            config.put(GAConnectorConfig.DIMENSIONS, "deviceCategory,dateHourMinute");
+            long sessions = sumOfSessions(backfill(config));
+
+            config.put(GAConnectorConfig.ROLLUP_WINDOW, "hour");
+            List<SourceRecord> hours = backfill(config);
+            assertEquals(24 * 10, hours.size());
+            assertEquals(sessions, sumOfSessions(hours));
+            for (SourceRecord record : hours) {
+                assertTrue(((Struct) record.key()).getString("dateHourMinute").endsWith("00"));
+            }
+
+            config.put(GAConnectorConfig.ROLLUP_WINDOW, "day");
+            List<SourceRecord> days = backfill(config);
+            assertEquals(10, days.size());
+            assertEquals(sessions, sumOfSessions(days));
+            assertTrue(((Struct) days.get(0).key()).getString("dateHourMinute").endsWith("0000"));
+
+            // the worker died in the middle of the records, the whole run is emitted again
+            config.put(GAConnectorConfig.ROLLUP_WINDOW, "hour");
+            InMemoryOffsets offsets = new InMemoryOffsets();
+            offsets.commit(hours.subList(0, 100));
+            GASourceTask restarted = new GASourceTask();
+            restarted.initialize(offsets);
+            restarted.start(config);
+            List<SourceRecord> again = pollUntilIdle(restarted, offsets, 1000);
+            restarted.stop();
+            assertEquals(hours.size(), again.size());
+            for (int i = 0; i < hours.size(); i++) {
+                assertEquals(hours.get(i).value(), again.get(i).value());
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    void testJournaledRollupRunsAreKeptUntilTheirLastRecordIsWritten() throws IOException, InterruptedException {
+        FakeAnalyticsReportingServer server = new FakeAnalyticsReportingServer(2500);
+        server.start();
+        Path journal = Files.createTempDirectory("journal");
+        try {
+            // a single run of 3 pages, every page gets a segment of its own
+            Map<String, String> config = getTaskConfigMap(server, "1");
+            config.put(GAConnectorConfig.BACKFILL_SHARD_DAYS, "3");
+            config.put(GAConnectorConfig.DIMENSIONS, "deviceCategory,dateHourMinute");
+            config.put(GAConnectorConfig.ROLLUP_WINDOW, "hour");
+            config.put(GAConnectorConfig.JOURNAL_DIR, journal.toString());
+            config.put(GAConnectorConfig.JOURNAL_SEGMENT_BYTES, "1024");
+
+            GASourceTask task = new GASourceTask();
+            task.initialize(new InMemoryOffsets());
+            task.start(config);
+            List<SourceRecord> hours = pollUntilIdle(task, new InMemoryOffsets(), 1000);
+            assertEquals(24 * 10, hours.size());
+            assertEquals(3, server.getRequests());
+
+            // all but the last record of the run are written and their offsets committed
+            InMemoryOffsets offsets = new InMemoryOffsets();
+            List<SourceRecord> written = hours.subList(0, hours.size() - 1);
+            offsets.commit(written);
+            written.forEach(task::commitRecord);
+            task.commit();
+            task.commit();
+            task.stop();
+
+            // the run starts over from the journal
+            GASourceTask restarted = new GASourceTask();
+            restarted.initialize(offsets);
+            restarted.start(config);
+            List<SourceRecord> again = pollUntilIdle(restarted, offsets, 1000);
+            restarted.stop();
+            assertEquals(3, server.getRequests());
+            assertEquals(hours.size(), again.size());
+        } finally {
+            server.stop();
+            PageJournalTest.delete(journal.resolve("ga-0"));
+            Files.delete(journal);
+        }
+    }
+
+    private static long sumOfSessions(List<SourceRecord> records) {
+        long sum = 0;
+        for (SourceRecord record : records) {
+            sum += ((Struct) record.value()).getInt64("sessions");
+        }
+        return sum;
+    }
+
+    @Test
+    void testIntradayRollupRecountsTheLastWindow() throws IOException, InterruptedException {
+        FakeAnalyticsReportingServer server = new FakeAnalyticsReportingServer(1440);
+        server.start();
+        try {
+            Map<String, String> config = getTaskConfigMap(server, "1");
+            config.put(GAConnectorConfig.DIMENSIONS, "deviceCategory,dateHourMinute");
+            config.put(GAConnectorConfig.PROCESS_FROM, "today");
+            config.put(GAConnectorConfig.INTRADAY_ENABLED, "true");
+            config.put(GAConnectorConfig.INTRADAY_INTERVAL_MS, "50");
+            config.put(GAConnectorConfig.ROLLUP_WINDOW, "hour");
+
+            GASourceTask task = new GASourceTask();
+            task.initialize(new InMemoryOffsets());
+            task.start(config);
+            List<SourceRecord> records = new ArrayList<>();
+            for (int i = 0; i < 500 && records.size() < 240 + 2 * 10; i++) {
+                List<SourceRecord> polled = task.poll();
+                if (polled != null) {
+                    records.addAll(polled);
+                }
+            }
+            task.stop();
+
+            // the watermark is at 23:49, later runs sum up the whole hour of 23 again
+            String lastHour = LocalDate.now().format(DateTimeFormatter.BASIC_ISO_DATE) + "2300";
+            assertTrue(records.size() >= 240 + 2 * 10, "only got " + records.size() + " records");
+            // without a pagePath the device categories of an hour share their key
+            Map<Object, Object> firstRun = new HashMap<>();
+            records.subList(0, 240).forEach(r -> firstRun.put(((Struct) r.value()).get("deviceCategory")
+                    + "@" + ((Struct) r.key()).get("dateHourMinute"), r.value()));
+            for (SourceRecord record : records.subList(240, records.size())) {
+                String dateHourMinute = ((Struct) record.key()).getString("dateHourMinute");
+                assertEquals(lastHour, dateHourMinute);
+                assertEquals(firstRun.get(((Struct) record.value()).get("deviceCategory") + "@" + dateHourMinute),
+                        record.value());
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    void testChangeDetectionLeavesOutRowsFetchedAgain() throws IOException, InterruptedException {
+        // the rows of the fake server never change
+        FakeAnalyticsReportingServer server = new FakeAnalyticsReportingServer(1440);
+        server.start();
+        try {
+            Map<String, String> config = getTaskConfigMap(server, "1");
+            config.put(GAConnectorConfig.PROCESS_FROM, "today");
+            config.put(GAConnectorConfig.INTRADAY_ENABLED, "true");
+            config.put(GAConnectorConfig.INTRADAY_INTERVAL_MS, "50");
+            config.put(GAConnectorConfig.CHANGE_DETECTION_ENABLED, "true");
+            config.put(GAConnectorConfig.HEARTBEAT_TOPIC, "ga_heartbeats");
+
+            InMemoryOffsets offsets = new InMemoryOffsets();
+            GASourceTask task = new GASourceTask();
+            task.initialize(offsets);
+            task.start(config);
+            List<SourceRecord> records = new ArrayList<>();
+            TaskMetrics metrics = task.getMetrics();
+            for (int i = 0; i < 500 && metrics.value("unchanged-row-total") < 2 * 10; i++) {
+                List<SourceRecord> polled = task.poll();
+                if (polled != null) {
+                    offsets.commit(polled);
+                    records.addAll(polled);
+                }
+            }
+            assertEquals(1440, metrics.value("change-detection-rows"), 0.001);
+            task.stop();
+
+            // later intraday runs pull the last 10 minutes again, none of them is emitted twice
+            assertTrue(metrics.value("unchanged-row-total") >= 2 * 10);
+            Map<Boolean, List<SourceRecord>> heartbeats = records.stream()
+                    .collect(Collectors.partitioningBy(r -> r.topic().equals("ga_heartbeats")));
+            assertEquals(1440, heartbeats.get(false).size());
+            assertEquals(1440, byKey(heartbeats.get(false)).size());
+
+            // those runs emit nothing but a heartbeat, which commits the offset after the run
+            assertTrue(heartbeats.get(true).size() >= 2);
+            SourceRecord last = records.get(records.size() - 1);
+            assertEquals("ga_heartbeats", last.topic());
+            assertEquals(ViewState.INTRADAY_SHARD, last.sourcePartition().get(ViewState.SHARD_PARTITION_KEY));
+            assertEquals(last.sourceOffset(), offsets.offsets.get(last.sourcePartition()));
+            assertFalse(last.sourceOffset().containsKey(ViewState.PAGE_TOKEN_OFFSET_KEY));
+            assertTrue(((Number) last.sourceOffset().get(ViewState.OFFSET_KEY)).longValue() > ((Number) heartbeats
+                    .get(false).get(1439).sourceOffset().get(ViewState.OFFSET_KEY)).longValue());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    void testIntradayOnlyEmitsRowsAfterTheWatermark() throws IOException, InterruptedException {
+        this.assertIntradayRuns(false);
+    }
+
+    @Test
+    void testIntradayWithStreamingDecode() throws IOException, InterruptedException {
+        this.assertIntradayRuns(true);
+    }
+
+    private void assertIntradayRuns(boolean streaming) throws IOException, InterruptedException {
+        // the rows of a report cover every minute of the day once
+        FakeAnalyticsReportingServer server = new FakeAnalyticsReportingServer(1440);
+        server.start();
+        try {
+            Map<String, String> config = getTaskConfigMap(server, "1");
+            config.put(GAConnectorConfig.FETCH_DECODE_STREAMING, String.valueOf(streaming));
+            config.put(GAConnectorConfig.PROCESS_FROM, "today");
+            config.put(GAConnectorConfig.INTRADAY_ENABLED, "true");
+            config.put(GAConnectorConfig.INTRADAY_INTERVAL_MS, "50");
+            config.put(GAConnectorConfig.INTRADAY_SETTLE_MINUTES, "10");
+
+            InMemoryOffsets offsets = new InMemoryOffsets();
+            GASourceTask task = new GASourceTask();
+            task.initialize(offsets);
+            task.start(config);
+            List<SourceRecord> records = new ArrayList<>();
+            for (int i = 0; i < 500 && records.size() < 1440 + 2 * 10; i++) {
+                List<SourceRecord> polled = task.poll();
+                if (polled != null) {
+                    records.addAll(polled);
+                }
+            }
+            task.stop();
+
+            // the first run pulls the whole day, every later run only the minutes after 23:49
+            String watermark = LocalDate.now().format(DateTimeFormatter.BASIC_ISO_DATE) + "2349";
+            assertTrue(records.size() >= 1440 + 2 * 10, "only got " + records.size() + " records");
+            for (SourceRecord record : records.subList(1440, records.size())) {
+                assertTrue(((Struct) record.key()).getString("dateHourMinute").compareTo(watermark) > 0);
+            }
+            assertEquals(watermark,
+                    records.get(records.size() - 1).sourceOffset().get(ViewState.WATERMARK_OFFSET_KEY));
+        } finally {
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package org.mrtrustworthy.kafka.connect.googleanalytics.source;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+
+import com.google.api.services.analyticsreporting.v4.model.Report;
+
+class PageJournalTest {
+
+    static Map<String, Object> offset(String pageToken, int row) {
+        Map<String, Object> offset = new HashMap<>();
+        offset.put(ViewState.OFFSET_KEY, 1521115200000L);
+        offset.put(ViewState.PAGE_TOKEN_OFFSET_KEY, pageToken);
+        offset.put(ViewState.ROW_OFFSET_KEY, row);
+        return offset;
+    }
+
+    static List<Path> segments(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.sorted().collect(Collectors.toList());
+        }
+    }
+
+    static void delete(Path directory) throws IOException {
+        for (Path file : segments(directory)) {
+            Files.delete(file);
+        }
+        Files.delete(directory);
+    }
+
+    @Test
+    void testPagesAreReadBack() throws IOException {
+        Path directory = Files.createTempDirectory("journal");
+        try {
+            // small segments, every page gets a segment of its own
+            PageJournal journal = new PageJournal(directory, 64);
+            Report report = ReportParserTest.getSampleReport("/home,201803151200,3,1.5", "/about,201803151201,1,2");
+            for (int i = 0; i < 3; i++) {
+                assertEquals(i, journal.append(Collections.singletonMap(ViewState.PARTITION_KEY, "1"),
+                        offset(Integer.toString(i), i), offset(Integer.toString(i + 1), -1), report));
+            }
+            assertEquals(3, segments(directory).size());
+
+            PageJournal.Entry entry = journal.read(1);
+            assertEquals("1", entry.getPartition().get(ViewState.PARTITION_KEY));
+            // types survive, so replayed offsets equal the original ones
+            assertEquals(offset("1", 1), entry.getPageOffset());
+            assertEquals(offset("2", -1), entry.getNextOffset());
+            assertEquals(report.getData().getRows(), entry.getReport().getData().getRows());
+            journal.close();
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    void testJournalIsRecoveredUpToATornEntry() throws IOException {
+        Path directory = Files.createTempDirectory("journal");
+        try {
+            PageJournal journal = new PageJournal(directory, 1024 * 1024);
+            Report report = ReportParserTest.getSampleReport("/home,201803151200,3,1.5");
+            for (int i = 0; i < 3; i++) {
+                journal.append(Collections.singletonMap(ViewState.PARTITION_KEY, "1"), offset("0", i),
+                        offset("0", i + 1), report);
+            }
+            journal.close();
+
+            // the worker died while writing the third page: its crc does not match
+            Path segment = segments(directory).get(0);
+            int third = 0;
+            try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                for (int i = 0; i < 2; i++) {
+                    ByteBuffer length = ByteBuffer.allocate(4);
+                    channel.read(length, third);
+                    length.flip();
+                    third += 16 + length.getInt();
+                }
+                channel.write(ByteBuffer.wrap(new byte[] { 1, 2, 3, 4 }), third + 4);
+            }
+
+            PageJournal recovered = new PageJournal(directory, 1024 * 1024);
+            assertEquals(0, recovered.getFirstSeq());
+            assertEquals(2, recovered.getNextSeq());
+            assertEquals(offset("0", 1), recovered.read(1).getPageOffset());
+            // the torn page is overwritten
+            assertEquals(2, recovered.append(Collections.singletonMap(ViewState.PARTITION_KEY, "1"), offset("0", 2),
+                    offset("0", 3), report));
+            recovered.close();
+            assertEquals(offset("0", 2), new PageJournal(directory, 1024 * 1024).read(2).getPageOffset());
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    void testSegmentsAreDeletedOnceTheirOffsetsAreCommitted() throws IOException {
+        Path directory = Files.createTempDirectory("journal");
+        try {
+            PageJournal journal = new PageJournal(directory, 64);
+            Report report = ReportParserTest.getSampleReport("/home,201803151200,3,1.5");
+            for (int i = 0; i < 3; i++) {
+                journal.append(Collections.singletonMap(ViewState.PARTITION_KEY, "1"), offset("0", i),
+                        offset("0", i + 1), report);
+            }
+            journal.ack(0);
+            journal.ack(2);
+
+            // the offsets of pages acknowledged now are only part of the next commit
+            journal.offsetsCommitted();
+            assertEquals(3, segments(directory).size());
+            journal.offsetsCommitted();
+            assertEquals(2, segments(directory).size());
+
+            // the last segment is still written to
+            journal.ack(1);
+            journal.offsetsCommitted();
+            journal.offsetsCommitted();
+            assertEquals(1, segments(directory).size());
+            assertEquals(2, journal.getFirstSeq());
+            journal.close();
+        } finally {
+            delete(directory);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package org.mrtrustworthy.kafka.connect.googleanalytics.source;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
+
+class PageSizerTest {
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static IOException status(int statusCode) {
+        return new HttpResponseException.Builder(statusCode, "", new HttpHeaders()).build();
+    }
+
+    @Test
+    void testFixedPageSize() {
+        PageSizer sizer = new PageSizer(5000, false, 100, 100000, 5000, 1024 * 1024);
+        sizer.recordResponse(5000, 5000, 10 * MS, 1000);
+        sizer.recordFailure(new SocketTimeoutException());
+        assertEquals(5000, sizer.getPageSize());
+        assertEquals(GAConnectorConfig.FETCH_PAGE_SIZE_LIMIT,
+                new PageSizer(1000000, false, 100, 100000, 5000, 1024 * 1024).getPageSize());
+    }
+
+    @Test
+    void testPagesGrowUpToTheTargets() {
+        // 1ms and 100 bytes per row, the byte target allows 10000 rows, the latency target 5000
+        PageSizer sizer = new PageSizer(1000, true, 100, 100000, 5000, 1000000);
+        sizer.recordResponse(1000, 1000, 1000 * MS, 100000);
+        assertEquals(2000, sizer.getPageSize());
+        sizer.recordResponse(2000, 2000, 2000 * MS, 200000);
+        assertEquals(4000, sizer.getPageSize());
+        sizer.recordResponse(4000, 4000, 4000 * MS, 400000);
+        assertEquals(5000, sizer.getPageSize());
+
+        // the last page of a report says little about the rows
+        sizer.recordResponse(5000, 10, 500 * MS, 1000);
+        assertEquals(5000, sizer.getPageSize());
+
+        // rows got twice as large, the byte target is hit first now
+        for (int i = 0; i < 20; i++) {
+            sizer.recordResponse(5000, 5000, 1000 * MS, 5000 * 400);
+        }
+        assertEquals(2500, sizer.getPageSize(), 10);
+
+        PageSizer capped = new PageSizer(60000, true, 100, 80000, 60000, Integer.MAX_VALUE);
+        capped.recordResponse(60000, 60000, 60 * MS, 1000);
+        assertEquals(80000, capped.getPageSize());
+    }
+
+    @Test
+    void testTimeoutsAndServerErrorsShrinkPages() {
+        PageSizer sizer = new PageSizer(1000, true, 300, 100000, 5000, 1024 * 1024);
+        sizer.recordFailure(status(429));
+        assertEquals(1000, sizer.getPageSize());
+        sizer.recordFailure(new SocketTimeoutException());
+        assertEquals(500, sizer.getPageSize());
+        sizer.recordFailure(status(503));
+        assertEquals(300, sizer.getPageSize());
+    }
+}
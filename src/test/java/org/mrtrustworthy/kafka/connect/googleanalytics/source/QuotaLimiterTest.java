@@ -0,0 +1,81 @@
+package org.mrtrustworthy.kafka.connect.googleanalytics.source;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class QuotaLimiterTest {
+    private static final ZoneId PACIFIC = ZoneId.of("America/Los_Angeles");
+
+    /**
+     * A clock that only moves when told to
+     */
+    private static class ManualClock extends Clock {
+        private Instant now;
+
+        ManualClock(Instant now) {
+            this.now = now;
+        }
+
+        void advance(long seconds) {
+            this.now = this.now.plusSeconds(seconds);
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return PACIFIC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return this.now;
+        }
+    }
+
+    private static ManualClock at(int hour) {
+        return new ManualClock(ZonedDateTime.of(2018, 3, 1, hour, 0, 0, 0, PACIFIC).toInstant());
+    }
+
+    @Test
+    void testViewBudgetIsNotRefilledBeforeMidnight() {
+        ManualClock clock = at(12);
+        QuotaLimiter.DailyBucket bucket = new QuotaLimiter.DailyBucket(2, clock);
+        assertEquals(0, bucket.reserve());
+        assertEquals(0, bucket.reserve());
+
+        // 11 hours later the budget is still spent, the next tokens are the ones of tomorrow
+        clock.advance(TimeUnit.HOURS.toSeconds(11));
+        assertEquals(0, bucket.available(), 0.001);
+        assertEquals(TimeUnit.HOURS.toNanos(1), bucket.reserve());
+        assertEquals(TimeUnit.HOURS.toNanos(1), bucket.reserve());
+        assertEquals(TimeUnit.HOURS.toNanos(25), bucket.reserve());
+
+        // after midnight the budget is full again, less what was taken on credit
+        clock.advance(TimeUnit.HOURS.toSeconds(1));
+        assertEquals(-1, bucket.available(), 0.001);
+        clock.advance(TimeUnit.DAYS.toSeconds(3));
+        assertEquals(2, bucket.available(), 0.001);
+    }
+
+    @Test
+    void testSharedViewsGetTheirShareOfTheBudget() throws InterruptedException {
+        QuotaLimiter limiter = new QuotaLimiter(0, 10, Collections.singletonMap("1", 2), at(12));
+        assertEquals(10, limiter.getMinViewTokens(), 0.001);
+        limiter.acquire("2");
+        assertEquals(9, limiter.getMinViewTokens(), 0.001);
+        limiter.acquire("1");
+        assertEquals(4, limiter.getMinViewTokens(), 0.001);
+    }
+}
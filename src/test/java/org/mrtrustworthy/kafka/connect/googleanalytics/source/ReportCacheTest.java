@@ -0,0 +1,143 @@
+package org.mrtrustworthy.kafka.connect.googleanalytics.source;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Collections;
+
+import org.junit.jupiter.api.Test;
+
+import com.google.api.services.analyticsreporting.v4.model.DateRange;
+import com.google.api.services.analyticsreporting.v4.model.Report;
+import com.google.api.services.analyticsreporting.v4.model.ReportRequest;
+
+class ReportCacheTest {
+    private static final Clock CLOCK = Clock.fixed(Instant.parse("2018-03-20T12:00:00Z"), ZoneOffset.UTC);
+
+    /**
+     * A clock the test moves forward
+     */
+    private static class MovingClock extends Clock {
+        private Instant now = CLOCK.instant();
+
+        void advance(Duration duration) {
+            this.now = this.now.plus(duration);
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Instant instant() {
+            return this.now;
+        }
+    }
+
+    private static ReportRequest request(String startDate, String endDate, String pageToken) {
+        return new ReportRequest().setViewId("1")
+                .setDateRanges(Collections.singletonList(new DateRange().setStartDate(startDate).setEndDate(endDate)))
+                .setPageToken(pageToken);
+    }
+
+    private static Report report(boolean golden) {
+        Report report = ReportParserTest.getSampleReport("/home,201803151200,3,1.5", "/about,201803151201,1,2");
+        report.getData().setIsDataGolden(golden);
+        return report;
+    }
+
+    @Test
+    void testReportsExpireUnlessTheyAreGolden() throws IOException {
+        MovingClock clock = new MovingClock();
+        ReportCache cache = new ReportCache(1024 * 1024, 60000, null, 0, clock);
+        cache.put(request("2018-03-15", "2018-03-15", "0"), report(true));
+        cache.put(request("2018-03-19", "2018-03-19", "0"), report(false));
+        Report cached = cache.get(request("2018-03-15", "2018-03-15", "0"));
+        assertEquals(report(true).getData().getRows(), cached.getData().getRows());
+        assertNotNull(cache.get(request("2018-03-19", "2018-03-19", "0")));
+        // every part of the request is part of the key, but the page size
+        assertNull(cache.get(request("2018-03-15", "2018-03-15", "1")));
+        assertNotNull(cache.get(request("2018-03-15", "2018-03-15", "0").setPageSize(5000)));
+
+        clock.advance(Duration.ofMinutes(2));
+        assertNotNull(cache.get(request("2018-03-15", "2018-03-15", "0")));
+        assertNull(cache.get(request("2018-03-19", "2018-03-19", "0")));
+    }
+
+    @Test
+    void testRelativeDatesAreResolved() throws IOException {
+        ReportCache cache = new ReportCache(1024 * 1024, 60000, null, 0, CLOCK);
+        cache.put(request("1DaysAgo", "yesterday", "0"), report(false));
+        assertNotNull(cache.get(request("2018-03-19", "2018-03-19", "0")));
+
+        // today is still changing
+        cache.put(request("today", "today", "0"), report(false));
+        cache.put(request("2018-03-19", "2018-03-20", "0"), report(true));
+        assertNull(cache.get(request("today", "today", "0")));
+        assertNull(cache.get(request("2018-03-19", "2018-03-20", "0")));
+    }
+
+    @Test
+    void testLeastRecentlyUsedReportsAreEvicted() throws IOException {
+        ReportCache probe = new ReportCache(1024 * 1024, 60000, null, 0, CLOCK);
+        probe.put(request("2018-03-15", "2018-03-15", "0"), report(true));
+        long size = probe.getMemoryUsed();
+
+        // room for two reports
+        ReportCache cache = new ReportCache(2 * size + size / 2, 60000, null, 0, CLOCK);
+        cache.put(request("2018-03-15", "2018-03-15", "0"), report(true));
+        cache.put(request("2018-03-15", "2018-03-15", "1"), report(true));
+        assertNotNull(cache.get(request("2018-03-15", "2018-03-15", "0")));
+        cache.put(request("2018-03-15", "2018-03-15", "2"), report(true));
+
+        assertNotNull(cache.get(request("2018-03-15", "2018-03-15", "0")));
+        assertNull(cache.get(request("2018-03-15", "2018-03-15", "1")));
+        assertNotNull(cache.get(request("2018-03-15", "2018-03-15", "2")));
+        assertEquals(2 * size, cache.getMemoryUsed());
+    }
+
+    @Test
+    void testReportsSurviveInTheDirectory() throws IOException {
+        Path directory = Files.createTempDirectory("cache");
+        try {
+            ReportCache cache = new ReportCache(0, 60000, directory, 1024 * 1024, CLOCK);
+            cache.put(request("2018-03-15", "2018-03-15", "0"), report(true));
+            cache.put(request("2018-03-19", "2018-03-19", "0"), report(false));
+            long used = cache.getDiskUsed();
+            assertEquals(2, PageJournalTest.segments(directory).size());
+
+            // a restart a day later, only the golden report is left
+            ReportCache restarted = new ReportCache(0, 60000, directory, 1024 * 1024,
+                    Clock.offset(CLOCK, Duration.ofDays(1)));
+            assertEquals(used, restarted.getDiskUsed());
+            assertNotNull(restarted.get(request("2018-03-15", "2018-03-15", "0")));
+            assertNull(restarted.get(request("2018-03-19", "2018-03-19", "0")));
+            assertEquals(1, PageJournalTest.segments(directory).size());
+            long size = Files.size(PageJournalTest.segments(directory).get(0));
+            assertEquals(size, restarted.getDiskUsed());
+
+            // the directory is bounded as well
+            ReportCache small = new ReportCache(0, 60000, directory, size + size / 2, CLOCK);
+            small.put(request("2018-03-15", "2018-03-15", "1"), report(true));
+            assertNull(small.get(request("2018-03-15", "2018-03-15", "0")));
+            assertNotNull(small.get(request("2018-03-15", "2018-03-15", "1")));
+        } finally {
+            PageJournalTest.delete(directory);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package org.mrtrustworthy.kafka.connect.googleanalytics.source;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.kafka.connect.data.ConnectSchema;
+import org.apache.kafka.connect.data.Struct;
+import org.junit.jupiter.api.Test;
+import org.mrtrustworthy.kafka.connect.googleanalytics.Utils;
+
+import com.google.api.services.analyticsreporting.v4.model.ColumnHeader;
+import com.google.api.services.analyticsreporting.v4.model.DateRangeValues;
+import com.google.api.services.analyticsreporting.v4.model.MetricHeader;
+import com.google.api.services.analyticsreporting.v4.model.MetricHeaderEntry;
+import com.google.api.services.analyticsreporting.v4.model.Report;
+import com.google.api.services.analyticsreporting.v4.model.ReportData;
+import com.google.api.services.analyticsreporting.v4.model.ReportRow;
+
+class ReportParserTest {
+
+    static Report getSampleReport(String... rows) {
+        ColumnHeader header = new ColumnHeader().setDimensions(Arrays.asList("ga:pagePath", "ga:dateHourMinute"))
+                .setMetricHeader(new MetricHeader().setMetricHeaderEntries(Arrays.asList(
+                        new MetricHeaderEntry().setName("sessions").setType("INTEGER"),
+                        new MetricHeaderEntry().setName("avgTimeOnPage").setType("FLOAT"))));
+
+        // every row is "pagePath,dateHourMinute,sessions,avgTimeOnPage"
+        List<ReportRow> reportRows = new ArrayList<>();
+        for (String row : rows) {
+            List<String> values = Arrays.asList(row.split(","));
+            reportRows.add(new ReportRow().setDimensions(values.subList(0, 2)).setMetrics(
+                    Collections.singletonList(new DateRangeValues().setValues(values.subList(2, 4)))));
+        }
+
+        return new Report().setColumnHeader(header)
+                .setData(new ReportData().setRows(reportRows).setRowCount(reportRows.size()));
+    }
+
+    @Test
+    void testStructAssembly() {
+        ReportParser parser = new ReportParser();
+        RecordBatch structs = parser.parseReport(getSampleReport("/home,201803151200,3,1.5"), "pageviews");
+        assertEquals(1, structs.size());
+
+        Struct key = structs.getKey(0);
+        Struct value = structs.getValue(0);
+        assertEquals("201803151200", key.get("dateHourMinute"));
+        assertEquals(Utils.md5("/home"), key.get("urlHash"));
+        assertEquals("/home", value.get("pagePath"));
+        assertEquals(3L, value.get("sessions"));
+        assertEquals(1.5, value.get("avgTimeOnPage"));
+        assertEquals(Utils.md5("/home"), value.get("urlHash"));
+    }
+
+    @Test
+    void testEmptyReport() {
+        Report report = getSampleReport();
+        report.getData().setRows(null);
+
+        ReportParser parser = new ReportParser();
+        assertEquals(0, parser.parseReport(report, "pageviews").size());
+    }
+
+    @Test
+    void testSchemaIsOnlyRebuiltOnHeaderChange() {
+        ReportParser parser = new ReportParser();
+        parser.maybeUpdateSchema(getSampleReport("/home,201803151200,3,1.5"), "pageviews");
+        ConnectSchema first = parser.getValueSchema();
+        ConnectSchema key = parser.getKeySchema();
+
+        parser.maybeUpdateSchema(getSampleReport("/about,201803151201,4,2.5"), "pageviews");
+        assertSame(first, parser.getValueSchema());
+
+        Report changed = getSampleReport("/home,201803151200,3,1.5");
+        changed.getColumnHeader().getMetricHeader().getMetricHeaderEntries().get(1).setType("INTEGER");
+        parser.maybeUpdateSchema(changed, "pageviews");
+        assertEquals(Integer.valueOf(2), parser.getValueSchema().version());
+        assertSame(key, parser.getKeySchema());
+
+        parser.maybeUpdateSchema(getSampleReport("/home,201803151200,3,1.5"), "pageviews");
+        assertSame(first, parser.getValueSchema());
+    }
+
+    @Test
+    void testDuplicateKeyPolicies() {
+        String[] rows = { "/home,201803151200,3,1.5", "/about,201803151200,1,1.0", "/home,201803151200,2,0.5" };
+        UrlHasher hasher = new UrlHasher(UrlHasher.Algorithm.MD5, 0);
+
+        RecordBatch all = new ReportParser(hasher, RecordBatch.DuplicateKeyPolicy.KEEP_ALL)
+                .parseReport(getSampleReport(rows), "pageviews");
+        assertEquals(3, all.size());
+        assertEquals("/home", all.getValue(0).get("pagePath"));
+        assertEquals("/about", all.getValue(1).get("pagePath"));
+        assertEquals(2L, all.getValue(2).get("sessions"));
+
+        RecordBatch last = new ReportParser(hasher, RecordBatch.DuplicateKeyPolicy.KEEP_LAST)
+                .parseReport(getSampleReport(rows), "pageviews");
+        assertEquals(2, last.size());
+        assertEquals(2L, last.getValue(0).get("sessions"));
+
+        RecordBatch merged = new ReportParser(hasher, RecordBatch.DuplicateKeyPolicy.MERGE_METRICS)
+                .parseReport(getSampleReport(rows), "pageviews");
+        assertEquals(2, merged.size());
+        assertEquals(5L, merged.getValue(0).get("sessions"));
+        assertEquals(2.0, merged.getValue(0).get("avgTimeOnPage"));
+        assertEquals(1L, merged.getValue(1).get("sessions"));
+
+        // without a pagePath all rows of a minute would share their key, they are all kept
+        Report devices = getSampleReport(rows);
+        devices.getColumnHeader().setDimensions(Arrays.asList("ga:deviceCategory", "ga:dateHourMinute"));
+        assertEquals(3, new ReportParser(hasher, RecordBatch.DuplicateKeyPolicy.MERGE_METRICS)
+                .parseReport(devices, "devices").size());
+    }
+}
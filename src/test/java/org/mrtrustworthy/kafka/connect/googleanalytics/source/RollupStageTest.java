@@ -0,0 +1,90 @@
+package org.mrtrustworthy.kafka.connect.googleanalytics.source;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import com.google.api.services.analyticsreporting.v4.model.DateRange;
+import com.google.api.services.analyticsreporting.v4.model.Report;
+
+class RollupStageTest {
+
+    // timeOnPage is a TIME metric, a string in the records
+    private static RecordBatch parse(ReportParser parser, String... rows) {
+        Report report = ReportParserTest.getSampleReport(rows);
+        report.getColumnHeader().getMetricHeader().getMetricHeaderEntries().get(1).setName("timeOnPage")
+                .setType("TIME");
+        return parser.parseReport(report, "pageviews");
+    }
+
+    @Test
+    void testWindows() {
+        assertEquals("201803151200", RollupStage.Window.HOUR.start("201803151234"));
+        assertEquals("201803150000", RollupStage.Window.DAY.start("201803151234"));
+        assertEquals("201803151234", RollupStage.Window.NONE.start("201803151234"));
+
+        RollupStage hours = new RollupStage(RollupStage.Window.HOUR);
+        assertNull(hours.rewind(null));
+        assertEquals("201803151159", hours.rewind("201803151249"));
+        // the hour of 12 is complete, the next run starts with 13
+        assertEquals("201803151259", hours.rewind("201803151259"));
+        assertEquals("201803142359", new RollupStage(RollupStage.Window.DAY).rewind("201803151249"));
+        assertEquals("201803151249", new RollupStage(RollupStage.Window.NONE).rewind("201803151249"));
+    }
+
+    @Test
+    void testRowsAreSummedUpOverAllPagesOfARun() {
+        ReportDefinition report = new ReportDefinition(null, "pageviews", Arrays.asList("pagePath", "dateHourMinute"),
+                Arrays.asList("sessions", "timeOnPage"), Collections.singletonList("1"));
+        ViewState state = new ViewState(report, "1", null,
+                new DateRange().setStartDate("2018-03-15").setEndDate("2018-03-15"));
+        ReportParser parser = new ReportParser();
+        RollupStage stage = new RollupStage(RollupStage.Window.HOUR);
+
+        Map<String, Object> runOffset = state.getSourceOffset();
+        state.setPageToken("2");
+        RecordBatch first = parse(parser, "/home,201803151200,3,1.5", "/home,201803151259,1,2.0",
+                "/home,201803151300,7,0.5");
+        assertNull(stage.add(new FetchedPage(state, runOffset, 0, first.size(), first), first, 0));
+
+        Map<String, Object> secondOffset = state.getSourceOffset();
+        state.setCompleted(true);
+        RecordBatch second = parse(parser, "/about,201803151210,2,1.0", "/home,201803151230,5,1.0");
+        RollupStage.Rollup rollup = stage.add(new FetchedPage(state, secondOffset, 0, second.size(), second), second,
+                0);
+
+        RecordBatch structs = rollup.getStructs();
+        assertEquals(3, structs.size());
+        assertEquals("201803151200", structs.getKey(0).get("dateHourMinute"));
+        assertEquals("201803151200", structs.getValue(0).get("dateHourMinute"));
+        assertEquals("/home", structs.getValue(0).get("pagePath"));
+        // only the dimensions tell groups apart, the times of the rows are summed up
+        assertEquals(9L, structs.getValue(0).get("sessions"));
+        assertEquals("4.5", structs.getValue(0).get("timeOnPage"));
+        assertEquals("201803151300", structs.getKey(1).get("dateHourMinute"));
+        assertEquals(7L, structs.getValue(1).get("sessions"));
+        assertEquals("/about", structs.getValue(2).get("pagePath"));
+
+        // a restart in the middle of the records starts the run over
+        assertSame(runOffset, rollup.getSourceOffset(0));
+        assertSame(runOffset, rollup.getSourceOffset(1));
+        assertFalse(rollup.getSourceOffset(2).containsKey(ViewState.PAGE_TOKEN_OFFSET_KEY));
+
+        // the next run starts from scratch
+        state.setCompleted(false);
+        state.setPageToken("0");
+        Map<String, Object> nextRun = state.getSourceOffset();
+        state.setCompleted(true);
+        RecordBatch again = parse(parser, "/home,201803151201,1,1.0");
+        RecordBatch single = stage.add(new FetchedPage(state, nextRun, 0, again.size(), again), again, 0).getStructs();
+        assertEquals(1, single.size());
+        assertEquals(1L, single.getValue(0).get("sessions"));
+    }
+}
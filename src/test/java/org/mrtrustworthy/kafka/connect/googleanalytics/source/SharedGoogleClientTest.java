@@ -0,0 +1,50 @@
+package org.mrtrustworthy.kafka.connect.googleanalytics.source;
+
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+class SharedGoogleClientTest {
+
+    GAConnectorConfig getAnonymousConfig(String viewIds, int maxConnections) {
+        Map<String, String> map = new HashMap<>();
+        map.put(GAConnectorConfig.VIEW_CONFIG, viewIds);
+        map.put(GAConnectorConfig.TOPIC_CONFIG, "core_ga_pageviews");
+        map.put(GAConnectorConfig.DIMENSIONS, "pagePath,dateHourMinute");
+        map.put(GAConnectorConfig.MEASURES, "sessions,hits");
+        map.put(GAConnectorConfig.POLLING_FREQUENCY, "3000");
+        map.put(GAConnectorConfig.PROCESS_FROM, "30DaysAgo");
+        map.put(GAConnectorConfig.ANONYMOUS, "true");
+        map.put(GAConnectorConfig.HTTP_MAX_CONNECTIONS, Integer.toString(maxConnections));
+        return GAConnectorConfig.fromConfigMap(map, GAConnectorConfig.ConfigType.TASK_CONFIG);
+    }
+
+    @Test
+    void testTasksOfTheSameAccountShareTheTransport() throws GeneralSecurityException, IOException {
+        SharedGoogleClient first = SharedGoogleClient.acquire(getAnonymousConfig("1", 7));
+        SharedGoogleClient second = SharedGoogleClient.acquire(getAnonymousConfig("2", 7));
+        SharedGoogleClient otherPool = SharedGoogleClient.acquire(getAnonymousConfig("3", 8));
+        assertSame(first, second);
+        assertSame(first.getTransport(), second.getTransport());
+        assertNotSame(first, otherPool);
+
+        // still in use by the second task
+        first.release();
+        SharedGoogleClient third = SharedGoogleClient.acquire(getAnonymousConfig("4", 7));
+        assertSame(second, third);
+
+        second.release();
+        third.release();
+        otherPool.release();
+        // the last task released it, a new one gets a fresh transport
+        SharedGoogleClient fresh = SharedGoogleClient.acquire(getAnonymousConfig("5", 7));
+        assertNotSame(first, fresh);
+        fresh.release();
+    }
+}
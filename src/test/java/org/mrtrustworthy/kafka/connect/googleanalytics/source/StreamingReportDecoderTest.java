@@ -0,0 +1,89 @@
+package org.mrtrustworthy.kafka.connect.googleanalytics.source;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.services.analyticsreporting.v4.model.GetReportsResponse;
+import com.google.api.services.analyticsreporting.v4.model.Report;
+
+class StreamingReportDecoderTest {
+    private static final JsonFactory JSON_FACTORY = GsonFactory.getDefaultInstance();
+
+    private static List<StreamingReportDecoder.DecodedReport> decode(StreamingReportDecoder decoder, byte[] body)
+            throws IOException {
+        return decoder.decode(new ByteArrayInputStream(body), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void testStructsMatchTheParsedReport() throws IOException {
+        String[] rows = { "/home,201803151200,3,1.5", "/about,201803151201,1,2.0" };
+        Report first = ReportParserTest.getSampleReport(rows);
+        first.setNextPageToken("2");
+        Report second = ReportParserTest.getSampleReport("/contact,201803151202,7,0.5");
+        byte[] body = JSON_FACTORY.toByteArray(new GetReportsResponse().setReports(Arrays.asList(first, second)));
+
+        ReportParser parser = new ReportParser();
+        List<StreamingReportDecoder.DecodedReport> decoded = decode(new StreamingReportDecoder(parser, "pageviews"),
+                body);
+        assertEquals(2, decoded.size());
+        assertEquals("2", decoded.get(0).getNextPageToken());
+        assertEquals(Integer.valueOf(2), decoded.get(0).getRowCount());
+        assertFalse(decoded.get(0).isDataGolden());
+        assertNull(decoded.get(1).getNextPageToken());
+
+        RecordBatch streamed = decoded.get(0).getStructs();
+        RecordBatch parsed = new ReportParser().parseReport(ReportParserTest.getSampleReport(rows), "pageviews");
+        assertEquals(parsed.size(), streamed.size());
+        for (int i = 0; i < parsed.size(); i++) {
+            assertEquals(parsed.getKey(i), streamed.getKey(i));
+            assertEquals(parsed.getValue(i), streamed.getValue(i));
+        }
+        assertSame(parser.getValueSchema(), streamed.getValueSchema());
+        assertEquals("/contact", decoded.get(1).getStructs().getValue(0).get("pagePath"));
+    }
+
+    @Test
+    void testRowsBeforeTheHeaderAndUnknownFields() throws IOException {
+        String body = "{\"queryCost\":1,\"reports\":[{\"data\":{\"totals\":[{\"values\":[\"4\",\"3.5\"]}],"
+                + "\"rows\":[{\"dimensions\":[\"/home\",\"201803151200\"],\"metrics\":[{\"values\":[\"3\",\"1.5\"],"
+                + "\"pivotValueRegions\":[]}]}],\"isDataGolden\":true},"
+                + "\"columnHeader\":{\"dimensions\":[\"ga:pagePath\",\"ga:dateHourMinute\"],\"metricHeader\":"
+                + "{\"metricHeaderEntries\":[{\"name\":\"sessions\",\"type\":\"INTEGER\"},"
+                + "{\"name\":\"avgTimeOnPage\",\"type\":\"FLOAT\"}]}}}],\"resourceQuotasRemaining\":{}}";
+
+        List<StreamingReportDecoder.DecodedReport> decoded = decode(
+                new StreamingReportDecoder(new ReportParser(), "pageviews"), body.getBytes(StandardCharsets.UTF_8));
+        assertEquals(1, decoded.size());
+        RecordBatch structs = decoded.get(0).getStructs();
+        assertEquals(1, structs.size());
+        assertEquals("201803151200", structs.getKey(0).get("dateHourMinute"));
+        assertEquals(3L, structs.getValue(0).get("sessions"));
+        assertEquals(1.5, structs.getValue(0).get("avgTimeOnPage"));
+        // the field mask left the row count out
+        assertNull(decoded.get(0).getRowCount());
+        assertTrue(decoded.get(0).isDataGolden());
+    }
+
+    @Test
+    void testMalformedResponses() {
+        StreamingReportDecoder decoder = new StreamingReportDecoder(new ReportParser(), "pageviews");
+        assertThrows(IOException.class, () -> decode(decoder, "[]".getBytes(StandardCharsets.UTF_8)));
+        // a report without a column header
+        assertThrows(IOException.class,
+                () -> decode(decoder, "{\"reports\":[{\"data\":{}}]}".getBytes(StandardCharsets.UTF_8)));
+    }
+}